@@ -0,0 +1,25 @@
+--------------------------------------------------------------------------------
+-- Adds the materialized demand of each food item to a database created before
+-- it existed (new databases get these tables from schema_and_data.sql).
+--
+-- Run once. FoodItemDemand is left empty and marked as not built, so the next
+-- `shopping` command builds it from the meal plans.
+--------------------------------------------------------------------------------
+
+-- Units of each food item needed by the meal plans (maintained by the application)
+create table FoodItemDemand (
+    foodItemId number primary key,
+    required number(*, 0) not null,
+    shortfall number(*, 0) not null,
+    constraint foodItemDemandFk foreign key (foodItemId)
+        references FoodItem(id) on delete cascade
+);
+
+-- Whether FoodItemDemand has been built yet (a single row, maintained by the application)
+create table FoodItemDemandState (
+    id number primary key,
+    built number(1, 0) not null
+);
+insert into FoodItemDemandState (id, built) values (1, 0);
+
+commit;
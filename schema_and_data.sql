@@ -41,6 +41,13 @@ create table RecipeFoodItem (
         references FoodItem(id) on delete cascade
 );
 
+-- Whether FoodItemDemand has been built yet (a single row, maintained by the application)
+create table FoodItemDemandState (
+    id number primary key,
+    built number(1, 0) not null
+);
+insert into FoodItemDemandState (id, built) values (1, 0);
+
 create table MealPlan (
     id number generated always as identity primary key,
     name varchar2(20) not null,
@@ -60,6 +67,15 @@ create table RecipeMealPlan (
         references MealPlan(id) on delete cascade
 );
 
+-- Units of each food item needed by the meal plans (maintained by the application)
+create table FoodItemDemand (
+    foodItemId number primary key,
+    required number(*, 0) not null,
+    shortfall number(*, 0) not null,
+    constraint foodItemDemandFk foreign key (foodItemId)
+        references FoodItem(id) on delete cascade
+);
+
 --------------------------------------------------------------------------------
 -- Sample data for the application
 --
@@ -12,6 +12,8 @@ class CliTable {
     String[] header;
     // Rows of column values
     public List<String[]> rows;
+    // Fixed column widths, if printing rows as they arrive
+    private int[] fixedWidths;
 
     /**
      * Construct table with headers.
@@ -23,6 +25,22 @@ class CliTable {
         this.rows = new ArrayList<>();
     }
 
+    /**
+     * Construct table with headers and fixed column widths, for printing rows as they arrive.
+     *
+     * Values longer than their column's width are truncated.
+     *
+     * @param headers table headers
+     * @param widths max char width of each column
+     */
+    public CliTable(String[] headers, int[] widths) {
+        this(headers);
+        this.fixedWidths = new int[widths.length];
+        for (int i = 0; i < widths.length; i++) {
+            this.fixedWidths[i] = Math.max(widths[i], headers[i].length());
+        }
+    }
+
     /**
      * Add a row to the table.
      *
@@ -64,6 +82,65 @@ class CliTable {
         return res;
     }
 
+    /**
+     * Generate a horizontal divider for some column widths.
+     *
+     * @param widths char width of each column
+     * @return divider line
+     */
+    private String divider(int[] widths) {
+        String divider = "+";
+        for (int width : widths) {
+            divider += repeatString("-", width + 2) + "+";
+        }
+        return divider;
+    }
+
+    /**
+     * Format a single row of values for some column widths.
+     *
+     * @param values column values
+     * @param widths char width of each column
+     * @return formatted row
+     */
+    private String formatRow(String[] values, int[] widths) {
+        String rowText = "|";
+        for (int i = 0; i < header.length; i++) {
+            String value = values[i];
+            // Truncate values that don't fit in the column
+            if (value.length() > widths[i]) {
+                value = value.substring(0, Math.max(0, widths[i] - 3)) + "...";
+            }
+            rowText += " " + String.format("%-" + widths[i] + "s", value) + " |";
+        }
+        return rowText;
+    }
+
+    /**
+     * Print the top of a fixed width table (the header row and its dividers).
+     */
+    public void printHeader() {
+        System.out.println(divider(fixedWidths));
+        System.out.println(formatRow(header, fixedWidths));
+        System.out.println(divider(fixedWidths));
+    }
+
+    /**
+     * Print a single row of a fixed width table right away, without storing it.
+     *
+     * @param row column values for row
+     */
+    public void printRow(String[] row) {
+        System.out.println(formatRow(row, fixedWidths));
+    }
+
+    /**
+     * Print the bottom divider of a fixed width table.
+     */
+    public void printFooter() {
+        System.out.println(divider(fixedWidths));
+    }
+
     /**
      * Generate the ASCII table.
      *
@@ -77,24 +154,12 @@ class CliTable {
             maxWidths[i] = maxColWidth(i);
         }
         // Generate a horizontal divider
-        String divider = "+";
-        for (int maxWidth : maxWidths) {
-            divider += repeatString("-", maxWidth + 2) + "+";
-        }
-        // Generate header
-        String headerRow = "|";
-        for (int i = 0; i < header.length; i++) {
-            headerRow += " " + String.format("%-" + maxWidths[i] + "s", header[i]) + " |";
-        }
+        String divider = divider(maxWidths);
         // Start to merge stuff
-        String tableText = divider + "\n" + headerRow + "\n" + divider + "\n";
+        String tableText = divider + "\n" + formatRow(header, maxWidths) + "\n" + divider + "\n";
         // Generate and join data rows
         for (String[] row : rows) {
-            tableText += "|";
-            for (int i = 0; i < header.length; i++) {
-                tableText += " " + String.format("%-" + maxWidths[i] + "s", row[i]) + " |";
-            }
-            tableText += "\n";
+            tableText += formatRow(row, maxWidths) + "\n";
         }
         return tableText + divider;
     }
@@ -1,10 +1,11 @@
 package cli;
 
-import java.util.ArrayList;
+import database.Database;
 import java.util.Optional;
 import models.FoodItem;
 import models.NutritionFacts;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 
 /**
  * CLI for managing food items and their nutrition facts.
@@ -54,18 +55,19 @@ class FoodItemCli extends ModelCli {
                     true,
                     scanner
                 );
-                NutritionFacts newNutritionFacts = NutritionFacts.create(
-                    calories.get(),
-                    sugar.get(),
-                    protein.get(),
-                    sodium.get(),
-                    fat.get()
-                );
-                FoodItem.create(
+                // Save the nutrition facts and food item together
+                FoodItem.createWithNutritionFacts(
                     name.get(),
-                    newNutritionFacts.id,
                     group.get(),
-                    units.isPresent() ? units.get() : 0
+                    units.isPresent() ? units.get() : 0,
+                    new NutritionFacts(
+                        0,
+                        calories.get(),
+                        sugar.get(),
+                        protein.get(),
+                        sodium.get(),
+                        fat.get()
+                    )
                 );
                 return 0;
             }
@@ -74,26 +76,33 @@ class FoodItemCli extends ModelCli {
 
     @Command(name = "list", description = "List food items")
     @Override
-    int list() {
+    int list(@Mixin PageOptions paging, @Mixin SortOptions sorting) {
         return userInteraction(
             scanner -> {
-                ArrayList<FoodItem> items = FoodItem.filter("select * from FoodItem", stmt -> {});
                 CliTable table = new CliTable(
-                    new String[] { "ID", "Name", "Food Group", "Units", "More info..." }
-                );
-                for (FoodItem item : items) {
-                    table.rows.add(
-                        new String[] {
-                            String.valueOf(item.id),
-                            item.name,
-                            item.foodGroup,
-                            String.valueOf(item.units),
-                            "Run `food get` for more info",
-                        }
-                    );
-                }
-                System.out.println(table);
-                return 0;
+                    new String[] { "ID", "Name", "Food Group", "Units", "More info..." },
+                    new int[] { 6, 50, 30, 6, 28 }
+                );
+                // Print each page as it's read from the DB (or the rows in sort order)
+                return printRows(
+                    paging,
+                    sorting,
+                    FoodItem::page,
+                    FoodItem::sorted,
+                    table::printHeader,
+                    item -> {
+                        table.printRow(
+                            new String[] {
+                                String.valueOf(item.id),
+                                item.name,
+                                item.foodGroup,
+                                String.valueOf(item.units),
+                                "Run `food get` for more info",
+                            }
+                        );
+                    },
+                    table::printFooter
+                );
             }
         );
     }
@@ -213,8 +222,14 @@ class FoodItemCli extends ModelCli {
                 if (fat.isPresent()) {
                     nutritionFacts.fat = fat.get();
                 }
-                foodItemVal.update();
-                nutritionFacts.update();
+                // Save the food item and its nutrition facts together
+                Database.getInstance()
+                    .inTransaction(
+                        db -> {
+                            foodItemVal.update();
+                            nutritionFacts.update();
+                        }
+                    );
                 return 0;
             }
         );
@@ -236,8 +251,13 @@ class FoodItemCli extends ModelCli {
                     return 1;
                 }
                 NutritionFacts nutritionFacts = foodItem.get().getNutritionFacts();
-                foodItem.get().delete();
-                nutritionFacts.delete();
+                Database.getInstance()
+                    .inTransaction(
+                        db -> {
+                            foodItem.get().delete();
+                            nutritionFacts.delete();
+                        }
+                    );
                 return 0;
             }
         );
@@ -1,14 +1,22 @@
 package cli;
 
+import database.DataStore;
 import database.Database;
+import database.Query;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.Scanner;
+import models.FoodItemDemand;
 import models.MealPlan;
+import models.NutritionRollup;
 import models.Recipe;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 
 /**
  * CLI for managing meal plans.
@@ -16,6 +24,31 @@ import picocli.CommandLine.Command;
 @Command(name = "meals", description = "Meal plan management", mixinStandardHelpOptions = true)
 class MealPlanCli extends ModelCli {
 
+    // Days of the week, in order
+    private static final List<String> DAYS = Arrays.asList(
+        "mon",
+        "tue",
+        "wed",
+        "thu",
+        "fri",
+        "sat",
+        "sun"
+    );
+
+    /**
+     * A meal entered by the user, waiting to be saved.
+     */
+    private static class Meal {
+
+        String meal;
+        Integer recipeId;
+
+        Meal(String meal, Integer recipeId) {
+            this.meal = meal;
+            this.recipeId = recipeId;
+        }
+    }
+
     /**
      * Get a list of all recipes in the system.
      *
@@ -23,7 +56,10 @@ class MealPlanCli extends ModelCli {
      * @throws SQLException if error executing SQL query
      */
     private String getRecipeList() throws SQLException {
-        ArrayList<Recipe> recipes = Recipe.filter("select * from Recipe", stmt -> {});
+        ArrayList<Recipe> recipes = Recipe.filter(
+            String.format("select %s from Recipe", Recipe.META.select("name")),
+            stmt -> {}
+        );
         String text = "Recipes:";
         for (Recipe recipe : recipes) {
             text += String.format("\n  %3d: %s", recipe.id, recipe.name);
@@ -39,7 +75,7 @@ class MealPlanCli extends ModelCli {
      */
     private List<Integer> getRecipeIdList() throws SQLException {
         ArrayList<Integer> idList = new ArrayList<>();
-        Database db = Database.getInstance();
+        DataStore db = Database.getInstance();
         db.select(
             "select id from recipe",
             rs -> {
@@ -50,23 +86,16 @@ class MealPlanCli extends ModelCli {
     }
 
     /**
-     * Delete any existing meals for a meal plan and prompt the user to enter in more.
+     * Prompt the user to enter the meals for a meal plan.
      *
      * @param scanner active System.in reader
-     * @param mealPlanId ID of the meal plan
+     * @return meals entered by the user
      * @throws SQLException if error executing SQL query
      */
-    private void updateMeals(Scanner scanner, Integer mealPlanId) throws SQLException {
-        Database db = Database.getInstance();
+    private List<Meal> promptMeals(Scanner scanner) throws SQLException {
         List<Integer> recipeIds = getRecipeIdList();
-        // Delete any existing meals
-        db.modify(
-            "delete from RecipeMealPlan where mealPlanId = ?",
-            stmt -> {
-                stmt.setInt(1, mealPlanId);
-            }
-        );
         System.out.println(getRecipeList());
+        ArrayList<Meal> meals = new ArrayList<>();
         while (true) {
             // Get meal info
             Optional<String> meal = validatedString(
@@ -81,21 +110,53 @@ class MealPlanCli extends ModelCli {
                 true,
                 scanner
             );
-            // Add to DB
-            db.modify(
-                "insert into RecipeMealPlan (recipeId, mealPlanId, meal) values (?,?,?)",
-                stmt -> {
-                    stmt.setInt(1, recipeId.get());
-                    stmt.setInt(2, mealPlanId);
-                    stmt.setString(3, meal.get());
-                }
-            );
+            meals.add(new Meal(meal.get(), recipeId.get()));
             // Stop if user is done entering meal plans
             System.out.print("Would you like to add another meal to this plan? (y/N): ");
             if (!scanner.nextLine().toLowerCase().equals("y")) {
                 break;
             }
         }
+        return meals;
+    }
+
+    /**
+     * Replace any existing meals for a meal plan in a single transaction.
+     *
+     * @param mealPlanId ID of the meal plan
+     * @param meals new meals for the plan
+     * @throws SQLException if error executing SQL query
+     */
+    private void updateMeals(Integer mealPlanId, List<Meal> meals) throws SQLException {
+        Database.getInstance()
+            .inTransaction(
+                db -> {
+                    // Account for the change in the food needed for the plan's meals
+                    ArrayList<Integer> recipeIds = new ArrayList<>();
+                    for (Meal meal : meals) {
+                        recipeIds.add(meal.recipeId);
+                    }
+                    FoodItemDemand.updateForMeals(db, mealPlanId, recipeIds);
+                    // Delete any existing meals
+                    db.modify(
+                        "delete from RecipeMealPlan where mealPlanId = ?",
+                        stmt -> {
+                            stmt.setInt(1, mealPlanId);
+                        }
+                    );
+                    // Add all meals to DB in a single batch
+                    db.insertBatch(
+                        "RecipeMealPlan",
+                        new String[] { "recipeId", "mealPlanId", "meal" },
+                        meals,
+                        (stmt, meal) -> {
+                            stmt.setInt(1, meal.recipeId);
+                            stmt.setInt(2, mealPlanId);
+                            stmt.setString(3, meal.meal);
+                        }
+                    );
+                }
+            );
     }
 
     /**
@@ -130,7 +191,7 @@ class MealPlanCli extends ModelCli {
      */
     private List<String> getTakenDays() throws SQLException {
         ArrayList<String> takenDays = new ArrayList<>();
-        Database db = Database.getInstance();
+        DataStore db = Database.getInstance();
         db.select(
             "select day from MealPlan",
             rs -> {
@@ -158,8 +219,18 @@ class MealPlanCli extends ModelCli {
                     true,
                     scanner
                 );
-                MealPlan newItem = MealPlan.create(mealPlanName.get(), mealPlanDay.get());
-                updateMeals(scanner, newItem.id);
+                List<Meal> meals = promptMeals(scanner);
+                // Save the meal plan and its meals together
+                Database.getInstance()
+                    .inTransaction(
+                        db -> {
+                            MealPlan newItem = MealPlan.create(
+                                mealPlanName.get(),
+                                mealPlanDay.get()
+                            );
+                            updateMeals(newItem.id, meals);
+                        }
+                    );
                 return 0;
             }
         );
@@ -167,23 +238,32 @@ class MealPlanCli extends ModelCli {
 
     @Command(name = "list", description = "List meal plans")
     @Override
-    int list() {
+    int list(@Mixin PageOptions paging, @Mixin SortOptions sorting) {
         return userInteraction(
             scanner -> {
-                ArrayList<MealPlan> items = MealPlan.filter("select * from MealPlan", stmt -> {});
-                CliTable table = new CliTable(new String[] { "ID", "Name", "Day", "More info..." });
-                for (MealPlan item : items) {
-                    table.rows.add(
-                        new String[] {
-                            String.valueOf(item.id),
-                            item.name,
-                            item.day,
-                            "Run `meals get` for more info",
-                        }
-                    );
-                }
-                System.out.println(table.toString());
-                return 0;
+                CliTable table = new CliTable(
+                    new String[] { "ID", "Name", "Day", "More info..." },
+                    new int[] { 6, 20, 3, 29 }
+                );
+                // Print each page as it's read from the DB (or the rows in sort order)
+                return printRows(
+                    paging,
+                    sorting,
+                    MealPlan::page,
+                    MealPlan::sorted,
+                    table::printHeader,
+                    item -> {
+                        table.printRow(
+                            new String[] {
+                                String.valueOf(item.id),
+                                item.name,
+                                item.day,
+                                "Run `meals get` for more info",
+                            }
+                        );
+                    },
+                    table::printFooter
+                );
             }
         );
     }
@@ -198,7 +278,23 @@ class MealPlanCli extends ModelCli {
                     true,
                     scanner
                 );
-                Optional<MealPlan> mealPlan = MealPlan.get(mealPlanId.get());
+                DataStore db = Database.getInstance();
+                // Look up the meal plan and its meals at the same time
+                CompletableFuture<Optional<MealPlan>> mealPlanFuture = MealPlan.getAsync(
+                    mealPlanId.get()
+                );
+                Query mealsQuery = Query
+                    .select("Recipe", "r")
+                    .columns("rmp.meal as meal", "r.name as name")
+                    .join("RecipeMealPlan", "rmp", "r.id", "rmp.recipeId")
+                    .join("MealPlan", "mp", "rmp.mealPlanId", "mp.id")
+                    .where("mp.id", "=", mealPlanId.get());
+                CompletableFuture<List<String>> mealsFuture = db.selectAsync(
+                    mealsQuery.sql(),
+                    mealsQuery.binder(),
+                    rs -> String.format("  %s: %s", rs.getString("meal"), rs.getString("name"))
+                );
+                Optional<MealPlan> mealPlan = DataStore.await(mealPlanFuture);
                 if (!mealPlan.isPresent()) {
                     System.out.println("ID doesn't exist. Try again.");
                     return 1;
@@ -208,17 +304,9 @@ class MealPlanCli extends ModelCli {
                 System.out.printf("Name: %s\n", mealPlanVal.name);
                 System.out.printf("Day: %s\n", mealPlanVal.day);
                 System.out.println("Meals");
-                Database db = Database.getInstance();
-                // Get all meals for this meal plan
-                db.select(
-                    "select rmp.meal as meal, r.name as name from Recipe r join RecipeMealPlan rmp on r.id = rmp.recipeId join MealPlan mp on rmp.mealPlanId = mp.id where mp.id = ?",
-                    rs -> {
-                        System.out.printf("  %s: %s\n", rs.getString("meal"), rs.getString("name"));
-                    },
-                    stmt -> {
-                        stmt.setInt(1, mealPlanVal.id);
-                    }
-                );
+                for (String meal : DataStore.await(mealsFuture)) {
+                    System.out.println(meal);
+                }
                 return 0;
             }
         );
@@ -259,11 +347,18 @@ class MealPlanCli extends ModelCli {
                 if (mealPlanDay.isPresent()) {
                     mealPlanVal.day = mealPlanDay.get();
                 }
-                mealPlanVal.update();
                 System.out.println(
-                    "Please enter the meals for this meal plan (old ones have been deleted)"
+                    "Please enter the meals for this meal plan (they will replace the old ones)"
                 );
-                updateMeals(scanner, mealPlanVal.id);
+                List<Meal> meals = promptMeals(scanner);
+                // Save the meal plan and its meals together
+                Database.getInstance()
+                    .inTransaction(
+                        db -> {
+                            mealPlanVal.update();
+                            updateMeals(mealPlanVal.id, meals);
+                        }
+                    );
                 return 0;
             }
         );
@@ -289,4 +384,45 @@ class MealPlanCli extends ModelCli {
             }
         );
     }
+
+    @Command(name = "nutrition", description = "List the total nutrition facts of each meal plan")
+    int nutrition() {
+        return userInteraction(
+            scanner -> {
+                NutritionRollup rollup = NutritionRollup.load();
+                CliTable table = new CliTable(withNutritionHeaders("ID", "Name", "Day"));
+                for (MealPlan plan : MealPlan.sorted("id", false, null)) {
+                    table.append(
+                        withNutrition(
+                            rollup.mealPlan(plan.id),
+                            String.valueOf(plan.id),
+                            plan.name,
+                            plan.day
+                        )
+                    );
+                }
+                System.out.println(table);
+                return 0;
+            }
+        );
+    }
+
+    @Command(name = "week", description = "Show the nutrition facts of each day and the whole week")
+    int week() {
+        return userInteraction(
+            scanner -> {
+                NutritionRollup rollup = NutritionRollup.load();
+                ArrayList<MealPlan> plans = MealPlan.sorted("id", false, null);
+                // Days in week order rather than alphabetical order
+                plans.sort(Comparator.comparingInt(plan -> DAYS.indexOf(plan.day)));
+                CliTable table = new CliTable(withNutritionHeaders("Day", "Name"));
+                for (MealPlan plan : plans) {
+                    table.append(withNutrition(rollup.mealPlan(plan.id), plan.day, plan.name));
+                }
+                table.append(withNutrition(rollup.week(), "All", "Week"));
+                System.out.println(table);
+                return 0;
+            }
+        );
+    }
 }
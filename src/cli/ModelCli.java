@@ -1,5 +1,6 @@
 package cli;
 
+import database.UncheckedSQLException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -7,6 +8,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import models.NutritionFacts;
+import models.NutritionRollup;
+import utils.ModelHelper;
+import utils.Page;
 
 /**
  * Exception thrown when there is an error parsing an inputted value.
@@ -51,6 +56,28 @@ interface UserDbInteractionLambda {
     Integer run(Scanner input) throws SQLException;
 }
 
+/**
+ * Lambda function which gets a page of rows after some id.
+ */
+interface PageLoaderLambda<T> {
+    Page<T> run(Integer after, int pageSize) throws SQLException;
+}
+
+/**
+ * Lambda function which gets rows sorted by some key, throwing `IllegalArgumentException` if rows
+ * can't be sorted by it.
+ */
+interface SortedLoaderLambda<T> {
+    List<T> run(String sortBy, boolean descending, Integer limit) throws SQLException;
+}
+
+/**
+ * Lambda function which prints a row.
+ */
+interface RowPrinterLambda<T> {
+    void run(T row);
+}
+
 /**
  * Contains lambdas for input validation.
  *
@@ -483,11 +510,141 @@ abstract class ModelCli {
      */
     protected Integer userInteraction(UserDbInteractionLambda interactionHandler) {
         try (Scanner scanner = new Scanner(System.in)) {
-            return interactionHandler.run(scanner);
+            // Each command gets its own identity map, so rows are only fetched once per command
+            return ModelHelper.inSession(db -> interactionHandler.run(scanner));
         } catch (SQLException e) {
             e.printStackTrace();
             return 1;
+        } catch (UncheckedSQLException e) {
+            // Thrown while reading rows from a stream
+            e.getCause().printStackTrace();
+            return 1;
+        }
+    }
+
+    /**
+     * Print rows for a `list` command, either in sort order (if any sorting options were given) or
+     * a page at a time.
+     *
+     * @param paging paging options
+     * @param sorting sorting options
+     * @param loadPage lambda to get a page of rows after some id
+     * @param loadSorted lambda to get rows in sort order
+     * @param printHeader lambda to run before the first row is printed (e.g. to open a table)
+     * @param printRow lambda to print a row
+     * @param printFooter lambda to run after the last row is printed (e.g. to close a table)
+     * @return exit code
+     * @throws SQLException if error executing SQL
+     */
+    protected <T> int printRows(
+        PageOptions paging,
+        SortOptions sorting,
+        PageLoaderLambda<T> loadPage,
+        SortedLoaderLambda<T> loadSorted,
+        Runnable printHeader,
+        RowPrinterLambda<T> printRow,
+        Runnable printFooter
+    )
+        throws SQLException {
+        if (!sorting.isSorted()) {
+            printHeader.run();
+            Integer after = printPages(paging, loadPage, printRow);
+            printFooter.run();
+            if (after != null) {
+                System.out.printf("More rows left; list them with `--after %d`\n", after);
+            }
+            return 0;
+        }
+        if (paging.after != null) {
+            System.out.println("`--after` can only be used when listing rows in ID order");
+            return 1;
+        }
+        // Both limits cut the sort short, so let the query stop at the smaller one
+        Integer limit = sorting.top;
+        if (paging.limit != null && (limit == null || paging.limit < limit)) {
+            limit = paging.limit;
+        }
+        List<T> rows;
+        try {
+            rows =
+                loadSorted.run(
+                    sorting.sortBy == null ? "id" : sorting.sortBy,
+                    sorting.descending,
+                    limit
+                );
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return 1;
+        }
+        printHeader.run();
+        for (T row : rows) {
+            printRow.run(row);
+        }
+        printFooter.run();
+        return 0;
+    }
+
+    /**
+     * Print rows a page at a time, stopping once `--limit` rows have been printed.
+     *
+     * @param paging paging options
+     * @param loadPage lambda to get a page of rows after some id
+     * @param printRow lambda to print a row
+     * @return `--after` cursor to pass to get the rows left over (null if there are none)
+     * @throws SQLException if error executing SQL
+     */
+    private <T> Integer printPages(
+        PageOptions paging,
+        PageLoaderLambda<T> loadPage,
+        RowPrinterLambda<T> printRow
+    )
+        throws SQLException {
+        int remaining = paging.limit == null ? Integer.MAX_VALUE : paging.limit;
+        Integer after = paging.after;
+        boolean hasMore = true;
+        while (hasMore && remaining > 0) {
+            Page<T> page = loadPage.run(after, Math.max(1, Math.min(paging.pageSize, remaining)));
+            for (T row : page.items) {
+                printRow.run(row);
+            }
+            remaining -= page.items.size();
+            hasMore = page.nextAfter != null;
+            after = page.nextAfter;
+        }
+        return hasMore ? after : null;
+    }
+
+    /**
+     * Make table headers of some columns followed by the nutrients.
+     *
+     * @param headers headers of the columns before the nutrients
+     * @return table headers
+     */
+    protected static String[] withNutritionHeaders(String... headers) {
+        String[] nutrients = NutritionRollup.NUTRIENTS;
+        String[] row = Arrays.copyOf(headers, headers.length + nutrients.length);
+        for (int n = 0; n < nutrients.length; n++) {
+            // Capitalize the nutrient's name
+            row[headers.length + n] =
+                Character.toUpperCase(nutrients[n].charAt(0)) + nutrients[n].substring(1);
+        }
+        return row;
+    }
+
+    /**
+     * Make a table row of some values followed by nutrition facts.
+     *
+     * @param facts nutrition facts to end the row with
+     * @param values values of the columns before the nutrients
+     * @return table row
+     */
+    protected static String[] withNutrition(NutritionFacts facts, String... values) {
+        int[] nutrients = NutritionRollup.values(facts);
+        String[] row = Arrays.copyOf(values, values.length + nutrients.length);
+        for (int n = 0; n < nutrients.length; n++) {
+            row[values.length + n] = String.valueOf(nutrients[n]);
         }
+        return row;
     }
 
     /**
@@ -500,9 +657,11 @@ abstract class ModelCli {
     /**
      * Abstract method to handle listing a model's entries from the DB.
      *
+     * @param paging paging options
+     * @param sorting sorting options
      * @return exit code
      */
-    abstract int list();
+    abstract int list(PageOptions paging, SortOptions sorting);
 
     /**
      * Abstract method to handle getting a model entry from the DB.
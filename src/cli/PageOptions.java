@@ -0,0 +1,39 @@
+package cli;
+
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
+
+/**
+ * Paging options shared by the `list` commands.
+ */
+class PageOptions {
+
+    @Spec(Spec.Target.MIXEE)
+    CommandSpec spec;
+
+    Integer limit;
+
+    @Option(
+        names = "--after",
+        description = "Only list rows with an ID after this one (e.g. the cursor printed by the " +
+        "previous page)"
+    )
+    Integer after;
+
+    @Option(
+        names = "--page-size",
+        description = "Number of rows to read from the DB per query (default: ${DEFAULT-VALUE})",
+        defaultValue = "100"
+    )
+    int pageSize;
+
+    @Option(names = "--limit", description = "Max number of rows to list (default: all)")
+    void setLimit(Integer limit) {
+        if (limit < 1) {
+            throw new ParameterException(spec.commandLine(), "`--limit` must be at least 1");
+        }
+        this.limit = limit;
+    }
+}
@@ -1,13 +1,23 @@
 package cli;
 
+import database.DataStore;
 import database.Database;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
 import models.FoodItem;
+import models.FoodItemDemand;
+import models.IngredientIndex;
+import models.NutritionFacts;
+import models.NutritionRollup;
 import models.Recipe;
+import models.RecipeTextIndex;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 
 /**
@@ -19,35 +29,44 @@ class RecipeCli extends ModelCli {
     /**
      * Link a list of ingredients to a particular recipe.
      *
+     * Replaces the recipe's existing ingredients in a single transaction.
+     *
      * @param recipeId to link ingredients to
      * @param ingredientIds list of ingredient IDs
      * @throws SQLException if error executing query
      */
     private void saveIngredients(Integer recipeId, List<Integer> ingredientIds)
         throws SQLException {
-        Database db = Database.getInstance();
-        // Delete any existing ingredients for recipe
-        db.modify(
-            "delete from RecipeFoodItem where recipeId = ?",
-            stmt -> {
-                stmt.setInt(1, recipeId);
-            }
-        );
-        // Create new M2M ingredient links for recipe
-        for (Integer ingredientId : ingredientIds) {
-            db.modify(
-                "insert into RecipeFoodItem (recipeId, foodItemId) values (?, ?)",
-                stmt -> {
-                    stmt.setInt(1, recipeId);
-                    stmt.setInt(2, ingredientId);
+        Database.getInstance()
+            .inTransaction(
+                db -> {
+                    // Account for the change in the food needed for the recipe's meals
+                    FoodItemDemand.updateForIngredients(db, recipeId, ingredientIds);
+                    // Delete any existing ingredients for recipe
+                    db.modify(
+                        "delete from RecipeFoodItem where recipeId = ?",
+                        stmt -> {
+                            stmt.setInt(1, recipeId);
+                        }
+                    );
+                    // Create new M2M ingredient links for recipe in a single batch
+                    db.insertBatch(
+                        "RecipeFoodItem",
+                        new String[] { "recipeId", "foodItemId" },
+                        ingredientIds,
+                        (stmt, ingredientId) -> {
+                            stmt.setInt(1, recipeId);
+                            stmt.setInt(2, ingredientId);
+                        }
+                    );
+                    IngredientIndex.setIngredients(db, recipeId, ingredientIds);
                 }
             );
-        }
     }
 
     private List<Integer> getIngredientIds() throws SQLException {
         ArrayList<Integer> idList = new ArrayList<>();
-        Database db = Database.getInstance();
+        DataStore db = Database.getInstance();
         db.select(
             "select id from FoodItem",
             rs -> {
@@ -81,7 +100,11 @@ class RecipeCli extends ModelCli {
                     "select * from FoodItem",
                     stmt -> {}
                 );
-                List<Integer> possibleIngredientIds = getIngredientIds();
+                // Every ingredient was just loaded, so there's no need to query their ids
+                List<Integer> possibleIngredientIds = new ArrayList<>();
+                for (FoodItem ingredient : ingredients) {
+                    possibleIngredientIds.add(ingredient.id);
+                }
                 Optional<String> recipeName = validatedString(
                     "Enter recipe name: ",
                     100,
@@ -110,12 +133,18 @@ class RecipeCli extends ModelCli {
                     scanner
                 );
                 System.out.println("Saving to DB...");
-                Recipe newItem = Recipe.create(
-                    recipeName.get(),
-                    recipeInstructions.get(),
-                    recipeCategory.get()
-                );
-                saveIngredients(newItem.id, ingredientIds.get());
+                // Save the recipe and its ingredients together
+                Database.getInstance()
+                    .inTransaction(
+                        db -> {
+                            Recipe newItem = Recipe.create(
+                                recipeName.get(),
+                                recipeInstructions.get(),
+                                recipeCategory.get()
+                            );
+                            saveIngredients(newItem.id, ingredientIds.get());
+                        }
+                    );
                 return 0;
             }
         );
@@ -123,12 +152,32 @@ class RecipeCli extends ModelCli {
 
     @Command(name = "list", description = "List recipes")
     @Override
-    int list() {
+    int list(@Mixin PageOptions paging, @Mixin SortOptions sorting) {
         return userInteraction(
             scanner -> {
-                ArrayList<Recipe> items = Recipe.filter("select * from Recipe", stmt -> {});
-                System.out.println(getRecipeTable(items));
-                return 0;
+                CliTable table = new CliTable(
+                    new String[] { "ID", "Name", "Category", "More info..." },
+                    new int[] { 6, 40, 30, 35 }
+                );
+                // Print each page as it's read from the DB (or the rows in sort order)
+                return printRows(
+                    paging,
+                    sorting,
+                    Recipe::page,
+                    Recipe::sorted,
+                    table::printHeader,
+                    recipe -> {
+                        table.printRow(
+                            new String[] {
+                                String.valueOf(recipe.id),
+                                recipe.name,
+                                recipe.category,
+                                "Run `get` sub-command for more info",
+                            }
+                        );
+                    },
+                    table::printFooter
+                );
             }
         );
     }
@@ -143,20 +192,30 @@ class RecipeCli extends ModelCli {
                     true,
                     scanner
                 );
-                Optional<Recipe> recipe = Recipe.get(foodId.get());
-                if (!recipe.isPresent()) {
+                // Load the recipe, its ingredients and their nutrition facts in one query
+                Optional<Recipe.Graph> graph = Recipe.getGraph(foodId.get());
+                if (!graph.isPresent()) {
                     System.out.println("ID doesn't exist. Try again.");
                     return 1;
                 }
-                Recipe recipeVal = recipe.get();
-                List<FoodItem> ingredients = recipeVal.getFoodItems();
+                Recipe recipeVal = graph.get().recipe;
                 System.out.printf("\nID: %s\n", recipeVal.id);
                 System.out.printf("Name: %s\n", recipeVal.name);
                 System.out.printf("Category: %s\n", recipeVal.category);
                 System.out.println("Ingredients:");
-                for (FoodItem ingredient : ingredients) {
+                for (FoodItem ingredient : graph.get().foodItems) {
                     System.out.printf("  %s\n", ingredient);
                 }
+                NutritionFacts total = graph.get().totalNutrition();
+                System.out.println("Nutrition (all ingredients):");
+                System.out.printf("  Calories: %s\n", total.calories);
+                System.out.printf("  Sugar: %s\n", total.sugar);
+                System.out.printf("  Protein: %s\n", total.protein);
+                System.out.printf("  Sodium: %s\n", total.sodium);
+                System.out.printf("  Fat: %s\n", total.fat);
+                System.out.println("Instructions:");
+                recipeVal.streamInstructions(System.out);
+                System.out.println();
                 return 0;
             }
         );
@@ -214,19 +273,25 @@ class RecipeCli extends ModelCli {
                 Optional<String> recipeInstructions = validatedMultilineString(
                     String.format(
                         "Enter the recipe instructions (\"%s...\"):\n",
-                        recipeVal.instructions
-                            .substring(0, Math.min(20, recipeVal.instructions.length()))
+                        recipeVal.getInstructions()
+                            .substring(0, Math.min(20, recipeVal.getInstructions().length()))
                             .replace("\n", "\\n")
                     ),
                     false,
                     scanner
                 );
                 if (recipeInstructions.isPresent()) {
-                    recipeVal.instructions = recipeInstructions.get();
+                    recipeVal.setInstructions(recipeInstructions.get());
                 }
                 System.out.println("Saving to DB...");
-                recipeVal.update();
-                saveIngredients(recipeVal.id, ingredientIds.get());
+                // Save the recipe and its ingredients together
+                Database.getInstance()
+                    .inTransaction(
+                        db -> {
+                            recipeVal.update();
+                            saveIngredients(recipeVal.id, ingredientIds.get());
+                        }
+                    );
                 return 0;
             }
         );
@@ -253,6 +318,27 @@ class RecipeCli extends ModelCli {
         );
     }
 
+    @Command(name = "nutrition", description = "List the total nutrition facts of each recipe")
+    int nutrition() {
+        return userInteraction(
+            scanner -> {
+                NutritionRollup rollup = NutritionRollup.load();
+                CliTable table = new CliTable(withNutritionHeaders("ID", "Name"));
+                for (Recipe recipe : Recipe.sorted("id", false, null)) {
+                    table.append(
+                        withNutrition(
+                            rollup.recipe(recipe.id),
+                            String.valueOf(recipe.id),
+                            recipe.name
+                        )
+                    );
+                }
+                System.out.println(table);
+                return 0;
+            }
+        );
+    }
+
     @Command(name = "search", description = "Search for a recipe")
     int search(
         @Option(
@@ -264,16 +350,95 @@ class RecipeCli extends ModelCli {
             names = "-c",
             description = "Category filter string",
             defaultValue = ""
-        ) String category
+        ) String category,
+        @Option(
+            names = "--with",
+            description = "Comma-separated IDs of food items the recipes must all use",
+            split = ","
+        ) List<Integer> with,
+        @Option(
+            names = "--without",
+            description = "Comma-separated IDs of food items the recipes must not use",
+            split = ","
+        ) List<Integer> without,
+        @Option(
+            names = "--any",
+            description = "Comma-separated IDs of food items the recipes must use at least one of",
+            split = ","
+        ) List<Integer> any,
+        @Option(
+            names = "--makeable",
+            description = "Only recipes whose ingredients are all in stock"
+        ) boolean makeable,
+        @Option(
+            names = "--text",
+            description = "Words to look for in recipe names and instructions (quote phrases)"
+        ) String text,
+        @Option(
+            names = "--top",
+            description = "Max number of recipes found by --text",
+            defaultValue = "10"
+        ) int top,
+        @Option(
+            names = "--reindex",
+            description = "Rebuild the --text index first (e.g. after changing recipes with SQL)"
+        ) boolean reindex
     ) {
-        if (ingredient.equals("") == category.equals("")) {
-            System.err.println("Must provide one of [-c] or [-i] options");
+        boolean byIndex = with != null || without != null || any != null || makeable;
+        int filters = (ingredient.equals("") ? 0 : 1) + (category.equals("") ? 0 : 1);
+        if (filters + (byIndex ? 1 : 0) + (text == null ? 0 : 1) != 1) {
+            System.err.println(
+                "Must provide one of [-c], [-i], [--text] or " +
+                "[--with/--without/--any/--makeable] options"
+            );
             return 1;
         }
         try {
-            //checks if category string from command is empty, if not, queries database for
-            //recipe with a matching category
-            if (category.isBlank() == false) {
+            if (text != null) {
+                if (reindex) {
+                    RecipeTextIndex.rebuild();
+                }
+                // Ranked by the text index, only querying for the recipes found
+                List<RecipeTextIndex.Hit> hits = RecipeTextIndex.search(text, top);
+                ArrayList<Integer> ids = new ArrayList<>();
+                for (RecipeTextIndex.Hit hit : hits) {
+                    ids.add(hit.recipeId);
+                }
+                HashMap<Integer, Recipe> recipes = new HashMap<>();
+                for (Recipe recipe : Recipe.getSummaries(ids)) {
+                    recipes.put(recipe.id, recipe);
+                }
+                CliTable table = new CliTable(new String[] { "ID", "Name", "Category", "Score" });
+                for (RecipeTextIndex.Hit hit : hits) {
+                    Recipe recipe = recipes.get(hit.recipeId);
+                    if (recipe != null) {
+                        table.append(
+                            new String[] {
+                                String.valueOf(recipe.id),
+                                recipe.name,
+                                recipe.category,
+                                String.format("%.2f", hit.score),
+                            }
+                        );
+                    }
+                }
+                System.out.println(table);
+            } else if (byIndex) {
+                // Answered by the ingredient index, only querying for the recipes found
+                BitSet found = IngredientIndex.search(
+                    with == null ? Collections.emptyList() : with,
+                    any == null ? Collections.emptyList() : any,
+                    without == null ? Collections.emptyList() : without,
+                    makeable
+                );
+                ArrayList<Integer> ids = new ArrayList<>();
+                for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+                    ids.add(id);
+                }
+                System.out.println(getRecipeTable(Recipe.getSummaries(ids)));
+            } else if (category.isBlank() == false) {
+                //checks if category string from command is empty, if not, queries database for
+                //recipe with a matching category
                 ArrayList<Recipe> recipes = Recipe.filter(
                     "select * from recipe where category=?",
                     stmt -> {
@@ -1,5 +1,6 @@
 package cli;
 
+import database.DataStore;
 import database.Database;
 import java.sql.SQLException;
 import picocli.CommandLine;
@@ -10,7 +11,13 @@ import picocli.CommandLine.Command;
  */
 @Command(
     name = "recipe_mgmt",
-    subcommands = { FoodItemCli.class, RecipeCli.class, MealPlanCli.class, ShoppingCli.class },
+    subcommands = {
+        FoodItemCli.class,
+        RecipeCli.class,
+        MealPlanCli.class,
+        ShoppingCli.class,
+        StatsCli.class,
+    },
     mixinStandardHelpOptions = true,
     description = "Manage recipes, meal plans, and a shopping list for items needed.",
     version = "1.0.0"
@@ -19,7 +26,7 @@ public class RecipeMgmt {
 
     public static void main(String... args) {
         int exitCode = 1;
-        try (Database db = Database.getInstance()) {
+        try (DataStore db = Database.getInstance()) {
             exitCode = new CommandLine(new RecipeMgmt()).execute(args);
         } catch (SQLException e) {
             e.printStackTrace();
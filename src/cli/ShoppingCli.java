@@ -1,9 +1,11 @@
 package cli;
 
-import database.Database;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.concurrent.Callable;
+import models.ShoppingList;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 /**
  * CLI for generating a shopping list.
@@ -15,17 +17,51 @@ import picocli.CommandLine.Command;
 )
 public class ShoppingCli implements Callable<Integer> {
 
+    @Option(
+        names = "--all",
+        description = "List every food item the meal plans use, not just what we need to buy"
+    )
+    boolean all;
+
+    @Option(
+        names = "--rebuild",
+        description = "Recompute the food needed from scratch (e.g. after editing the DB by hand)"
+    )
+    boolean rebuild;
+
     @Override
     public Integer call() {
-        System.out.println("Food needed this week that we don't have:");
         try {
-            Database db = Database.getInstance();
-            db.select(
-                "SELECT distinct fooditem.name as name FROM fooditem INNER JOIN recipefooditem ON recipefooditem.fooditemid = fooditem.id INNER JOIN recipemealplan ON recipemealplan.recipeid = recipefooditem.recipeid WHERE fooditem.units = 0",
-                rs -> {
-                    System.out.println(rs.getString("name"));
-                }
+            if (rebuild) {
+                ShoppingList.rebuild();
+            }
+            List<ShoppingList.Item> items = ShoppingList.load(!all).items;
+            System.out.println(
+                all
+                    ? "Food used by this week's meal plans:"
+                    : "Food needed this week that we don't have enough of:"
+            );
+            if (items.isEmpty()) {
+                System.out.println("Nothing");
+                return 0;
+            }
+            CliTable table = new CliTable(
+                new String[] { "ID", "Name", "Needed", "Have", "To buy" },
+                new int[] { 6, 50, 6, 6, 6 }
             );
+            table.printHeader();
+            for (ShoppingList.Item item : items) {
+                table.printRow(
+                    new String[] {
+                        String.valueOf(item.foodItem.id),
+                        item.foodItem.name,
+                        String.valueOf(item.required),
+                        String.valueOf(item.foodItem.units),
+                        String.valueOf(item.shortfall()),
+                    }
+                );
+            }
+            table.printFooter();
         } catch (SQLException e) {
             e.printStackTrace();
             return 1;
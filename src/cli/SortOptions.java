@@ -0,0 +1,41 @@
+package cli;
+
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.Spec;
+
+/**
+ * Sorting options shared by the `list` commands.
+ */
+class SortOptions {
+
+    @Spec(Spec.Target.MIXEE)
+    CommandSpec spec;
+
+    @Option(
+        names = "--sort",
+        description = "Sort rows by this (e.g. name or calories) instead of by ID"
+    )
+    String sortBy;
+
+    @Option(names = "--desc", description = "Sort in descending order")
+    boolean descending;
+
+    Integer top;
+
+    @Option(names = "--top", description = "Only list the first N rows of the sort order")
+    void setTop(Integer top) {
+        if (top < 1) {
+            throw new ParameterException(spec.commandLine(), "`--top` must be at least 1");
+        }
+        this.top = top;
+    }
+
+    /**
+     * @return whether rows should be listed in sort order, rather than a page at a time by ID
+     */
+    boolean isSorted() {
+        return sortBy != null || descending || top != null;
+    }
+}
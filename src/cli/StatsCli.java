@@ -0,0 +1,84 @@
+package cli;
+
+import database.QueryStats;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/**
+ * CLI for showing how long each SQL statement takes.
+ */
+@Command(
+    name = "stats",
+    description = "Show latency and row count statistics of each SQL statement run so far",
+    mixinStandardHelpOptions = true
+)
+public class StatsCli implements Callable<Integer> {
+
+    @Option(names = { "-n", "--top" }, description = "Only show the N slowest statements")
+    Integer top;
+
+    @Option(names = "--reset", description = "Clear the statistics collected so far")
+    boolean reset;
+
+    @Override
+    public Integer call() {
+        try {
+            if (reset) {
+                QueryStats.reset();
+                System.out.println("Statistics cleared");
+                return 0;
+            }
+            List<QueryStats.Summary> summaries = QueryStats.all();
+            if (summaries.isEmpty()) {
+                System.out.println("No statistics collected yet");
+                return 0;
+            }
+            CliTable table = new CliTable(
+                new String[] {
+                    "Count",
+                    "Errors",
+                    "Avg rows",
+                    "p50 ms",
+                    "p95 ms",
+                    "p99 ms",
+                    "Max ms",
+                    "Total ms",
+                    "SQL",
+                },
+                new int[] { 8, 6, 8, 8, 8, 8, 8, 10, 60 }
+            );
+            table.printHeader();
+            int shown = 0;
+            for (QueryStats.Summary summary : summaries) {
+                if (top != null && shown++ >= top) {
+                    break;
+                }
+                table.printRow(
+                    new String[] {
+                        Long.toString(summary.count),
+                        Long.toString(summary.errors),
+                        String.format("%.1f", (double) summary.rows / summary.count),
+                        millis(summary.percentileNanos(50)),
+                        millis(summary.percentileNanos(95)),
+                        millis(summary.percentileNanos(99)),
+                        millis(summary.maxNanos),
+                        millis(summary.totalNanos),
+                        summary.template,
+                    }
+                );
+            }
+            table.printFooter();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+        return 0;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
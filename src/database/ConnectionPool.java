@@ -0,0 +1,375 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of database connections.
+ *
+ * At most `maxSize` connections are handed out at once; a borrower waits up to the borrow timeout
+ * for one to free up. Idle connections are validated before being handed out, and ones that have
+ * been idle longer than the idle timeout are closed by a background evictor (never dropping below
+ * `minSize`).
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long borrowTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    private final int statementCacheSize;
+
+    // Limits the number of connections that can be borrowed at once
+    private final Semaphore permits;
+    // Idle connections, most recently returned first
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+    // Runs the idle connection evictor
+    private final ScheduledExecutorService evictor;
+    // Total number of open physical connections (idle + borrowed)
+    private int openCount = 0;
+    private boolean closed = false;
+
+    // Metrics
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowTimeouts = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+
+    /**
+     * Create a pool and open its minimum number of connections.
+     *
+     * @param url JDBC URL to connect to
+     * @param username DB username
+     * @param password DB password
+     * @param minSize number of connections to keep open even when idle
+     * @param maxSize max number of connections open at once
+     * @param idleTimeoutMillis how long a connection can sit idle before being evicted
+     * @param borrowTimeoutMillis how long to wait for a free connection before giving up
+     * @param validationTimeoutSeconds how long to wait when validating a connection on borrow
+     * @param statementCacheSize max number of prepared statements cached per connection
+     * @throws SQLException if there's an error opening the initial connections
+     */
+    ConnectionPool(
+        String url,
+        String username,
+        String password,
+        int minSize,
+        int maxSize,
+        long idleTimeoutMillis,
+        long borrowTimeoutMillis,
+        int validationTimeoutSeconds,
+        int statementCacheSize
+    )
+        throws SQLException {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(this.maxSize, true);
+        // Open the minimum number of connections up front
+        for (int i = 0; i < this.minSize; i++) {
+            PooledConnection pooled = open();
+            synchronized (this) {
+                idle.push(pooled);
+            }
+        }
+        // Periodically evict connections that have been idle for too long
+        evictor =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                    Thread thread = new Thread(runnable, "db-pool-evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            );
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Open a new physical connection.
+     *
+     * @return new pooled connection
+     * @throws SQLException if there's an error connecting to the database
+     */
+    private PooledConnection open() throws SQLException {
+        Connection conn = DriverManager.getConnection(url, username, password);
+        synchronized (this) {
+            openCount++;
+        }
+        createdCount.incrementAndGet();
+        return new PooledConnection(this, conn, statementCacheSize);
+    }
+
+    /**
+     * Close a physical connection and forget about it.
+     *
+     * @param pooled connection to close
+     */
+    private void discard(PooledConnection pooled) {
+        synchronized (this) {
+            openCount--;
+        }
+        pooled.destroy();
+    }
+
+    /**
+     * Borrow a connection, waiting up to the borrow timeout for one to become free.
+     *
+     * @return validated connection (close it to give it back)
+     * @throws SQLException if no connection is free in time or a new one can't be opened
+     */
+    PooledConnection borrow() throws SQLException {
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a DB connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        if (!acquired) {
+            borrowTimeouts.incrementAndGet();
+            throw new SQLTimeoutException(
+                String.format(
+                    "Timed out after %d ms waiting for a DB connection (max pool size %d)",
+                    borrowTimeoutMillis,
+                    maxSize
+                )
+            );
+        }
+        borrowCount.incrementAndGet();
+        borrowWaitNanos.addAndGet(waited);
+        maxBorrowWaitNanos.accumulateAndGet(waited, Math::max);
+        try {
+            // Reuse an idle connection if a valid one is available
+            while (true) {
+                PooledConnection pooled;
+                synchronized (this) {
+                    if (closed) {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    pooled = idle.poll();
+                }
+                if (pooled == null) {
+                    break;
+                }
+                if (isValid(pooled)) {
+                    return pooled;
+                }
+                validationFailures.incrementAndGet();
+                discard(pooled);
+            }
+            // Else, open a new one
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Check that a connection is still usable.
+     *
+     * @param pooled connection to check
+     * @return whether the connection is valid
+     */
+    private boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.conn.isValid(validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Give a borrowed connection back to the pool.
+     *
+     * @param pooled connection to return
+     */
+    void release(PooledConnection pooled) {
+        pooled.lastReturned = System.currentTimeMillis();
+        boolean keep;
+        synchronized (this) {
+            keep = !closed;
+            if (keep) {
+                idle.push(pooled);
+            }
+        }
+        if (!keep) {
+            discard(pooled);
+        }
+        permits.release();
+    }
+
+    void recordStatementHit() {
+        statementHits.incrementAndGet();
+    }
+
+    void recordStatementMiss() {
+        statementMisses.incrementAndGet();
+    }
+
+    /**
+     * Close connections that have been idle longer than the idle timeout.
+     */
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMillis;
+        ArrayDeque<PooledConnection> evicted = new ArrayDeque<>();
+        synchronized (this) {
+            // Oldest connections are at the end of the deque
+            Iterator<PooledConnection> it = idle.descendingIterator();
+            while (it.hasNext() && openCount - evicted.size() > minSize) {
+                PooledConnection pooled = it.next();
+                if (pooled.lastReturned > cutoff) {
+                    break;
+                }
+                it.remove();
+                evicted.add(pooled);
+            }
+        }
+        for (PooledConnection pooled : evicted) {
+            evictedCount.incrementAndGet();
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Close every idle connection and stop handing out new ones.
+     *
+     * Borrowed connections are closed as they are returned.
+     */
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+        ArrayDeque<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        for (PooledConnection pooled : toClose) {
+            discard(pooled);
+        }
+    }
+
+    /**
+     * @return number of connections currently borrowed
+     */
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * @return number of open connections sitting idle in the pool
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of successful borrows
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * @return number of borrows that gave up waiting for a free connection
+     */
+    public long getBorrowTimeouts() {
+        return borrowTimeouts.get();
+    }
+
+    /**
+     * @return average time spent waiting for a free connection, in ms
+     */
+    public double getAverageBorrowWaitMillis() {
+        long count = borrowCount.get();
+        return count == 0 ? 0 : borrowWaitNanos.get() / 1e6 / count;
+    }
+
+    /**
+     * @return longest time spent waiting for a free connection, in ms
+     */
+    public double getMaxBorrowWaitMillis() {
+        return maxBorrowWaitNanos.get() / 1e6;
+    }
+
+    /**
+     * @return number of physical connections opened
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    /**
+     * @return number of idle connections closed by the evictor
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * @return number of idle connections that failed validation when borrowed
+     */
+    public long getValidationFailures() {
+        return validationFailures.get();
+    }
+
+    /**
+     * @return number of statements served from a connection's statement cache
+     */
+    public long getStatementCacheHits() {
+        return statementHits.get();
+    }
+
+    /**
+     * @return number of statements that had to be prepared
+     */
+    public long getStatementCacheMisses() {
+        return statementMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "active=%d idle=%d borrows=%d timeouts=%d avgWait=%.2fms maxWait=%.2fms created=%d evicted=%d invalid=%d stmtHits=%d stmtMisses=%d",
+            getActiveCount(),
+            getIdleCount(),
+            getBorrowCount(),
+            getBorrowTimeouts(),
+            getAverageBorrowWaitMillis(),
+            getMaxBorrowWaitMillis(),
+            getCreatedCount(),
+            getEvictedCount(),
+            getValidationFailures(),
+            getStatementCacheHits(),
+            getStatementCacheMisses()
+        );
+    }
+}
@@ -0,0 +1,459 @@
+package database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * Storage engine the models and CLI talk to.
+ *
+ * Implemented by `Database` (the Oracle server, over JDBC), `MemoryStore` (an in-process engine),
+ * and `DurableStore` (the in-process engine, persisted to local disk). Use
+ * `Database.getInstance()` to get the configured engine.
+ */
+public interface DataStore extends AutoCloseable {
+    /**
+     * Run a parametrized SQL select query.
+     *
+     * @param sql query string
+     * @param applyToRow lambda function to run on each returned row
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @throws SQLException if there's an error running the query
+     */
+    void select(
+        String sql,
+        ThrowingConsumer<ResultSet, SQLException> applyToRow,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException;
+
+    /**
+     * Run a non-parametrized SQL select query.
+     *
+     * @param sql query string
+     * @param applyToRow lambda function to run on each returned row
+     * @throws SQLException if there's an error running the query
+     */
+    default void select(String sql, ThrowingConsumer<ResultSet, SQLException> applyToRow)
+        throws SQLException {
+        select(sql, applyToRow, stmt -> {});
+    }
+
+    /**
+     * Run a parametrized SQL select query, lazily streaming the mapped rows.
+     *
+     * The stream must be closed when done with it, so use it with try with resource syntax.
+     *
+     * @param <T> type each row is mapped to
+     * @param sql query string
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @param mapRow lambda function to map the current row of the ResultSet
+     * @param fetchSize number of rows to fetch per round trip
+     * @return stream of mapped rows (throws `UncheckedSQLException` if reading a row fails)
+     * @throws SQLException if there's an error running the query
+     */
+    <T> Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow,
+        int fetchSize
+    )
+        throws SQLException;
+
+    /**
+     * Run a parametrized SQL select query, lazily streaming the mapped rows with the default fetch
+     * size.
+     */
+    default <T> Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow
+    )
+        throws SQLException {
+        return stream(sql, setValues, mapRow, Database.FETCH_SIZE);
+    }
+
+    /**
+     * Run a parametrized SQL modifying query (e.g. one that doesn't return anything).
+     *
+     * @param sql modifying query string
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @throws SQLException if there's an error running the query
+     */
+    void modify(String sql, ThrowingConsumer<PreparedStatement, SQLException> setValues)
+        throws SQLException;
+
+    /**
+     * Run a non-parametrized SQL modifying query (e.g. one that doesn't return anything).
+     *
+     * @param sql modifying query string
+     * @throws SQLException if there's an error running the query
+     */
+    default void modify(String sql) throws SQLException {
+        modify(sql, stmt -> {});
+    }
+
+    /**
+     * Insert a row into a table.
+     *
+     * @param tableName name of the table
+     * @param columns column names provided when inserting
+     * @param setValues lambda to bind column values to query
+     * @param getGeneratedKey should fetch id of newly generated row
+     * @return id of new row if `getGeneratedKey == true`
+     * @throws SQLException if error executing SQL
+     */
+    Optional<Integer> insert(
+        String tableName,
+        String[] columns,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        boolean getGeneratedKey
+    )
+        throws SQLException;
+
+    /**
+     * Insert a row into a table, getting back its column values (including generated ids and
+     * defaults) from the same statement.
+     *
+     * @param <T> type the new row is mapped to
+     * @param tableName name of the table
+     * @param columns column names provided when inserting
+     * @param setValues lambda to bind column values to query
+     * @param returnColumns column names to get back
+     * @param mapRow lambda to map a result set positioned on the new row (has `returnColumns`)
+     * @return mapped new row
+     * @throws SQLException if error executing SQL
+     */
+    <T> T insertReturning(
+        String tableName,
+        String[] columns,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        String[] returnColumns,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow
+    )
+        throws SQLException;
+
+    /**
+     * Insert a row along with a row that references it (e.g. nutrition facts and the food item
+     * they belong to).
+     *
+     * @param parentTable name of the referenced row's table
+     * @param parentColumns column names provided when inserting the referenced row
+     * @param setParentValues lambda to bind the referenced row's column values
+     * @param tableName name of the referencing row's table
+     * @param columns column names provided when inserting the referencing row (excluding the
+     *     reference)
+     * @param referenceColumn column of the referencing row holding the referenced row's id
+     * @param setValues lambda to bind the referencing row's column values
+     * @return ids of the new referenced row, then the new referencing row
+     * @throws SQLException if error executing SQL
+     */
+    default int[] insertWithParent(
+        String parentTable,
+        String[] parentColumns,
+        ThrowingConsumer<PreparedStatement, SQLException> setParentValues,
+        String tableName,
+        String[] columns,
+        String referenceColumn,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        String[] allColumns = Arrays.copyOf(columns, columns.length + 1);
+        allColumns[columns.length] = referenceColumn;
+        return computeInTransaction(
+            db -> {
+                int parentId = db.insert(parentTable, parentColumns, setParentValues, true).get();
+                int id = db
+                    .insert(
+                        tableName,
+                        allColumns,
+                        stmt -> {
+                            setValues.accept(stmt);
+                            stmt.setInt(allColumns.length, parentId);
+                        },
+                        true
+                    )
+                    .get();
+                return new int[] { parentId, id };
+            }
+        );
+    }
+
+    /**
+     * Insert many rows into a table, `batchSize` rows per round trip.
+     *
+     * @param <T> type of the items being inserted
+     * @param tableName name of the table
+     * @param columns column names provided when inserting
+     * @param items items to insert, one row each
+     * @param bindRow lambda to bind an item's column values to the query
+     * @param batchSize max number of rows per round trip
+     * @return number of rows inserted
+     * @throws SQLException if error executing SQL
+     */
+    <T> int insertBatch(
+        String tableName,
+        String[] columns,
+        List<T> items,
+        ThrowingBiConsumer<PreparedStatement, T, SQLException> bindRow,
+        int batchSize
+    )
+        throws SQLException;
+
+    /**
+     * Insert many rows into a table using the default batch size.
+     */
+    default <T> int insertBatch(
+        String tableName,
+        String[] columns,
+        List<T> items,
+        ThrowingBiConsumer<PreparedStatement, T, SQLException> bindRow
+    )
+        throws SQLException {
+        return insertBatch(tableName, columns, items, bindRow, Database.BATCH_SIZE);
+    }
+
+    /**
+     * Update the values of a table entry based on its id.
+     *
+     * @param tableName name of the table
+     * @param columns column names to update
+     * @param id id of the row to update
+     * @param setValues lambda to bind column values to query
+     * @throws SQLException if error executing SQL
+     */
+    void update(
+        String tableName,
+        String[] columns,
+        int id,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException;
+
+    /**
+     * Delete a table entry by its id.
+     *
+     * @param tableName name of the table
+     * @param id id of the row to delete
+     * @throws SQLException if error executing SQL
+     */
+    void delete(String tableName, int id) throws SQLException;
+
+    /**
+     * Run some work in a transaction, committing once at the end and rolling back if it throws.
+     *
+     * If a transaction is already open on the current thread, `work` just joins it.
+     *
+     * @param <T> type of the result
+     * @param isolationLevel JDBC transaction isolation level (e.g.
+     *     `Connection.TRANSACTION_SERIALIZABLE`), or -1 for the engine's default
+     * @param work lambda to run in the transaction, given this store
+     * @return result of `work`
+     * @throws SQLException if error executing SQL or committing
+     */
+    <T> T computeInTransaction(int isolationLevel, ThrowingFunction<DataStore, T, SQLException> work)
+        throws SQLException;
+
+    /**
+     * Run some work in a transaction with the default isolation level, returning its result.
+     */
+    default <T> T computeInTransaction(ThrowingFunction<DataStore, T, SQLException> work)
+        throws SQLException {
+        return computeInTransaction(Database.TRANSACTION_ISOLATION, work);
+    }
+
+    /**
+     * Run some work in a transaction, committing once at the end.
+     *
+     * @param isolationLevel JDBC transaction isolation level, or -1 for the engine's default
+     * @param work lambda to run in the transaction, given this store
+     * @throws SQLException if error executing SQL or committing
+     */
+    default void inTransaction(int isolationLevel, ThrowingConsumer<DataStore, SQLException> work)
+        throws SQLException {
+        computeInTransaction(
+            isolationLevel,
+            db -> {
+                work.accept(db);
+                return null;
+            }
+        );
+    }
+
+    /**
+     * Run some work in a transaction with the default isolation level.
+     */
+    default void inTransaction(ThrowingConsumer<DataStore, SQLException> work)
+        throws SQLException {
+        inTransaction(Database.TRANSACTION_ISOLATION, work);
+    }
+
+    /**
+     * Get the most values a single `in (...)` list should have.
+     *
+     * @return max list size (Oracle allows up to 1000 expressions)
+     */
+    default int maxInListSize() {
+        return 1000;
+    }
+
+    /**
+     * @return whether a transaction is open on the current thread
+     */
+    boolean isInTransaction();
+
+    /**
+     * Identify the data the store holds, so files derived from it (e.g. a saved index) can be
+     * checked against the store before being used.
+     *
+     * @return identity of the store's data, or null if its data doesn't outlive the process
+     */
+    String identity();
+
+    /**
+     * Run an action once the transaction open on the current thread commits (e.g. to update an
+     * in-memory index), or right away if there isn't one. The action is dropped if the transaction
+     * rolls back.
+     *
+     * @param action action to run
+     */
+    void afterCommit(Runnable action);
+
+    /**
+     * Run an action if the transaction open on the current thread rolls back (e.g. to forget
+     * values cached while it was open). Does nothing if there isn't one.
+     *
+     * @param action action to run
+     */
+    void afterRollback(Runnable action);
+
+    /**
+     * Run some work on a background thread.
+     *
+     * Each task uses its own pooled connection, so independent queries can overlap. Work doesn't
+     * join a transaction open on the calling thread, so don't wait for async work from inside one.
+     *
+     * @param <T> type of the result
+     * @param work lambda to run, given this store
+     * @return future result of `work` (completed exceptionally with the `SQLException` if it fails)
+     */
+    default <T> CompletableFuture<T> supplyAsync(ThrowingFunction<DataStore, T, SQLException> work) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Database
+            .asyncExecutor()
+            .execute(
+                () -> {
+                    try {
+                        future.complete(work.apply(this));
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            );
+        return future;
+    }
+
+    /**
+     * Run a parametrized SQL select query on a background thread.
+     *
+     * @param <T> type each row is mapped to
+     * @param sql query string
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @param mapRow lambda function to map the current row of the ResultSet
+     * @return future list of mapped rows
+     */
+    default <T> CompletableFuture<List<T>> selectAsync(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow
+    ) {
+        return supplyAsync(
+            db -> {
+                ArrayList<T> rows = new ArrayList<>();
+                db.select(sql, rs -> rows.add(mapRow.apply(rs)), setValues);
+                return rows;
+            }
+        );
+    }
+
+    /**
+     * Run a parametrized SQL modifying query on a background thread.
+     *
+     * @param sql modifying query string
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @return future that completes once the query has run
+     */
+    default CompletableFuture<Void> modifyAsync(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    ) {
+        return supplyAsync(
+            db -> {
+                db.modify(sql, setValues);
+                return null;
+            }
+        );
+    }
+
+    /**
+     * Get the execution plan a statement would use, without running it.
+     *
+     * @param sql statement
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @return lines of the plan (empty if the store can't explain statements)
+     * @throws SQLException if there's an error getting the plan
+     */
+    default List<String> explain(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Wait for async work to finish, rethrowing the `SQLException` it failed with (if any).
+     *
+     * @param <T> type of the result
+     * @param future future result
+     * @return result
+     * @throws SQLException if the work failed with one
+     */
+    static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a query", e);
+        } catch (ExecutionException | CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof UncheckedSQLException) {
+                throw ((UncheckedSQLException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Release the store's resources.
+     */
+    @Override
+    void close();
+}
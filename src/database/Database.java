@@ -1,8 +1,16 @@
 package database;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Database interaction wrapper.
@@ -10,17 +18,76 @@ import java.util.Optional;
  * Singleton pattern based on this example: https://www.geeksforgeeks.org/singleton-class-java/
  * Uses try with resource syntax to auto-close connection when done:
  *   https://stackoverflow.com/a/15768083/11354266
+ *
+ * Queries run on connections borrowed from a bounded `ConnectionPool`, so several threads can use
+ * the shared instance at once. Pool settings can be overridden with `recipe_mgmt.pool.*` system
+ * properties. Every statement's time and row count is recorded in `QueryStats`.
+ *
+ * `getInstance()` returns this Oracle-backed store by default, or an in-process `MemoryStore` or
+ * `DurableStore` when the `recipe_mgmt.engine` system property is set to `memory` or `durable`.
  */
-public class Database implements AutoCloseable {
+public class Database implements DataStore {
 
-    // Singleton database instance
-    private static Database instance = null;
+    // Singleton data store instance
+    private static DataStore instance = null;
+
+    // Storage engine to use ("oracle", "memory", or "durable")
+    static final String ENGINE = System.getProperty("recipe_mgmt.engine", "oracle");
 
     static final String JDBC_DRIVER = "oracle.jdbc.driver.OracleDriver";
     static final String DB_URL = "jdbc:oracle:thin:@157.89.28.130:1521:cscdb";
 
-    // Persistent database connection
-    Connection conn;
+    // Connection pool settings
+    static final int POOL_MIN_SIZE = Integer.getInteger("recipe_mgmt.pool.minSize", 1);
+    static final int POOL_MAX_SIZE = Integer.getInteger("recipe_mgmt.pool.maxSize", 8);
+    static final long POOL_IDLE_TIMEOUT_MS = Long.getLong(
+        "recipe_mgmt.pool.idleTimeoutMs",
+        5 * 60 * 1000
+    );
+    static final long POOL_BORROW_TIMEOUT_MS = Long.getLong(
+        "recipe_mgmt.pool.borrowTimeoutMs",
+        30 * 1000
+    );
+    static final int STATEMENT_CACHE_SIZE = Integer.getInteger(
+        "recipe_mgmt.pool.statementCacheSize",
+        50
+    );
+    static final int POOL_VALIDATION_TIMEOUT_S = Integer.getInteger(
+        "recipe_mgmt.pool.validationTimeoutS",
+        2
+    );
+
+    // Isolation level of transactions that don't ask for one (-1 for the driver's default)
+    static final int TRANSACTION_ISOLATION = Integer.getInteger("recipe_mgmt.tx.isolation", -1);
+
+    // Number of rows sent per round trip by batch inserts
+    static final int BATCH_SIZE = Integer.getInteger("recipe_mgmt.batchSize", 100);
+
+    // Number of rows fetched per round trip by streaming queries
+    static final int FETCH_SIZE = Integer.getInteger("recipe_mgmt.fetchSize", 100);
+
+    // Number of threads running async queries (by default, one per pooled connection)
+    static final int ASYNC_THREADS = Integer.getInteger("recipe_mgmt.async.threads", POOL_MAX_SIZE);
+
+    // Runs async queries (created when first needed)
+    private static ExecutorService asyncExecutor = null;
+
+    // Pool of database connections
+    final ConnectionPool pool;
+
+    // Connection of the transaction open on each thread (if any)
+    private final ThreadLocal<PooledConnection> transactionConnection = new ThreadLocal<>();
+    // Actions waiting for the transaction open on each thread to end
+    private final TransactionCallbacks callbacks = new TransactionCallbacks();
+
+    // Number of statements explained so far (used for unique plan table statement ids)
+    private final AtomicInteger explainCount = new AtomicInteger();
+
+    // Generated insert/update SQL by table name and column list
+    private static final ConcurrentHashMap<String, String> insertSqlCache =
+        new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> updateSqlCache =
+        new ConcurrentHashMap<>();
 
     /**
      * Setup the database connection.
@@ -36,9 +103,20 @@ public class Database implements AutoCloseable {
             System.out.println("JDBC driver not installed");
             System.exit(1);
         }
-        // Open connection
+        // Open connection pool
         try {
-            conn = DriverManager.getConnection(DB_URL, Credentials.USERNAME, Credentials.PASSWORD);
+            pool =
+                new ConnectionPool(
+                    DB_URL,
+                    Credentials.USERNAME,
+                    Credentials.PASSWORD,
+                    POOL_MIN_SIZE,
+                    POOL_MAX_SIZE,
+                    POOL_IDLE_TIMEOUT_MS,
+                    POOL_BORROW_TIMEOUT_MS,
+                    POOL_VALIDATION_TIMEOUT_S,
+                    STATEMENT_CACHE_SIZE
+                );
         } catch (SQLException e) {
             System.out.println("Failed to connect to DB");
             throw e;
@@ -46,32 +124,269 @@ public class Database implements AutoCloseable {
     }
 
     /**
-     * Get or create the shared database singleton instance.
+     * Get or create the shared data store singleton instance.
      *
-     * @return database instance
+     * @return data store instance for the configured engine
      * @throws SQLException if there's an error connecting to the database
      */
-    public static Database getInstance() throws SQLException {
+    public static synchronized DataStore getInstance() throws SQLException {
         // Create instance if one doesn't exist
         if (instance == null) {
-            instance = new Database();
+            if (ENGINE.equalsIgnoreCase("memory")) {
+                instance = new MemoryStore();
+            } else if (ENGINE.equalsIgnoreCase("durable")) {
+                instance = new DurableStore();
+            } else {
+                instance = new Database();
+            }
         }
         return instance;
     }
 
     /**
-     * Close the shared database connection if it is open.
+     * Get the executor that runs async queries.
+     *
+     * It has a fixed number of daemon threads, so at most `ASYNC_THREADS` queries wait on the
+     * connection pool at once, and extra tasks queue up instead.
+     *
+     * @return shared executor
+     */
+    static synchronized ExecutorService asyncExecutor() {
+        if (asyncExecutor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            asyncExecutor =
+                Executors.newFixedThreadPool(
+                    Math.max(1, ASYNC_THREADS),
+                    runnable -> {
+                        Thread thread = new Thread(
+                            runnable,
+                            "db-async-" + threadCount.incrementAndGet()
+                        );
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                );
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Forget the shared instance once it has been closed, so the next `getInstance()` call makes
+     * a new one.
+     *
+     * @param closed store that was closed
+     */
+    static synchronized void forgetInstance(DataStore closed) {
+        if (instance == closed) {
+            instance = null;
+        }
+    }
+
+    /**
+     * Get the execution plan Oracle would use for a statement, using `EXPLAIN PLAN`.
+     *
+     * Parameters are left unbound (Oracle plans the statement the way it would before peeking at
+     * bind values), so `setValues` isn't used.
+     *
+     * @param sql statement
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @return lines of the plan, as formatted by `DBMS_XPLAN`
+     * @throws SQLException if error explaining the statement
+     */
+    @Override
+    public List<String> explain(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        String statementId = "recipe_mgmt_" + explainCount.incrementAndGet();
+        ArrayList<String> lines = new ArrayList<>();
+        // Use a connection of its own, so plan table rows never end up in a caller's transaction
+        try (
+            PooledConnection pooled = pool.borrow();
+            Statement stmt = pooled.conn.createStatement()
+        ) {
+            stmt.execute(
+                String.format(
+                    "explain plan set statement_id = '%s' for %s",
+                    statementId,
+                    namedPlaceholders(sql)
+                )
+            );
+            try {
+                PreparedStatement display = pooled.prepare(
+                    "select plan_table_output " +
+                    "from table(dbms_xplan.display('PLAN_TABLE', ?, 'TYPICAL'))"
+                );
+                try {
+                    display.setString(1, statementId);
+                    try (ResultSet rs = display.executeQuery()) {
+                        while (rs.next()) {
+                            lines.add(rs.getString(1));
+                        }
+                    }
+                } finally {
+                    pooled.done(display);
+                }
+            } finally {
+                PreparedStatement cleanUp = pooled.prepare(
+                    "delete from plan_table where statement_id = ?"
+                );
+                try {
+                    cleanUp.setString(1, statementId);
+                    cleanUp.executeUpdate();
+                } finally {
+                    pooled.done(cleanUp);
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Replace each `?` placeholder (outside string literals) with a named one (`:p1`, `:p2`,
+     * etc.), since `EXPLAIN PLAN` isn't run as a prepared statement.
+     */
+    private static String namedPlaceholders(String sql) {
+        StringBuilder named = new StringBuilder();
+        boolean inString = false;
+        int param = 0;
+        for (char c : sql.toCharArray()) {
+            if (c == '\'') {
+                inString = !inString;
+            }
+            if (c == '?' && !inString) {
+                named.append(":p").append(++param);
+            } else {
+                named.append(c);
+            }
+        }
+        return named.toString();
+    }
+
+    /**
+     * Close the shared database connection pool if it is open.
      */
     @Override
     public void close() {
-        if (instance != null) {
-            // Try to close, but proceed even if there's an error
+        // Slow statements still being logged may need a connection to explain them
+        SlowQueryLog.flush();
+        pool.close();
+        QueryStats.dumpQuietly();
+        forgetInstance(this);
+    }
+
+    /**
+     * Get the connection pool, e.g. to inspect its metrics.
+     *
+     * @return connection pool
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Get a connection to run a statement on.
+     *
+     * If a transaction is open on the current thread, its connection is used (closing it won't
+     * give it back to the pool until the transaction ends). Else, one is borrowed from the pool.
+     *
+     * @return connection (close it when done)
+     * @throws SQLException if a connection can't be borrowed
+     */
+    private PooledConnection acquire() throws SQLException {
+        PooledConnection bound = transactionConnection.get();
+        return bound != null ? bound : pool.borrow();
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return transactionConnection.get() != null;
+    }
+
+    @Override
+    public String identity() {
+        return DB_URL + " as " + Credentials.USERNAME;
+    }
+
+    @Override
+    public void afterCommit(Runnable action) {
+        callbacks.afterCommit(action);
+    }
+
+    @Override
+    public void afterRollback(Runnable action) {
+        callbacks.afterRollback(action);
+    }
+
+    /**
+     * Run some work in a transaction, committing once at the end.
+     *
+     * Every statement run through this instance on the current thread until `work` returns uses
+     * the same connection. If `work` throws, everything is rolled back. If a transaction is
+     * already open on the current thread, `work` just joins it.
+     *
+     * @param <T> type of the result
+     * @param isolationLevel JDBC transaction isolation level (e.g.
+     *     `Connection.TRANSACTION_SERIALIZABLE`), or -1 for the driver's default
+     * @param work lambda to run in the transaction, given this database instance
+     * @return result of `work`
+     * @throws SQLException if error executing SQL or committing
+     */
+    @Override
+    public <T> T computeInTransaction(
+        int isolationLevel,
+        ThrowingFunction<DataStore, T, SQLException> work
+    )
+        throws SQLException {
+        // Join the transaction that's already open, if there is one
+        if (transactionConnection.get() != null) {
+            return work.apply(this);
+        }
+        PooledConnection pooled = pool.borrow();
+        Connection conn = pooled.conn;
+        int previousIsolation;
+        try {
+            previousIsolation = conn.getTransactionIsolation();
+        } catch (SQLException | RuntimeException e) {
+            // Don't leak the connection (broken ones are caught by validation on the next borrow)
+            pooled.close();
+            throw e;
+        }
+        boolean committed = false;
+        try {
+            if (isolationLevel != -1) {
+                conn.setTransactionIsolation(isolationLevel);
+            }
+            conn.setAutoCommit(false);
+            // Bind the connection to this thread for the rest of the transaction
+            pooled.inTransaction = true;
+            transactionConnection.set(pooled);
+            callbacks.begin();
+            T result = work.apply(this);
+            conn.commit();
+            committed = true;
+            return result;
+        } catch (Throwable e) {
+            // Undo any partial changes
             try {
-                instance.conn.close();
+                conn.rollback();
+            } catch (SQLException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+            throw e;
+        } finally {
+            transactionConnection.remove();
+            pooled.inTransaction = false;
+            // Put the connection back the way it was before returning it to the pool
+            try {
+                conn.setAutoCommit(true);
+                conn.setTransactionIsolation(previousIsolation);
             } catch (SQLException e) {
-                System.out.println("Error closing DB connection, but proceeding");
+                // Broken connections are caught by validation on the next borrow
             }
-            instance = null;
+            pooled.close();
+            callbacks.end(committed);
         }
     }
 
@@ -83,36 +398,94 @@ public class Database implements AutoCloseable {
      * @param setValues lambda function to bind parameters to prepared statement
      * @throws SQLException if there's an error running the query
      */
+    @Override
     public void select(
         String sql,
         ThrowingConsumer<ResultSet, SQLException> applyToRow,
         ThrowingConsumer<PreparedStatement, SQLException> setValues
     )
         throws SQLException {
-        // Create a statement
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            // Bind any statement parameters
-            setValues.accept(stmt);
-            // Run the query
-            try (ResultSet rs = stmt.executeQuery()) {
-                // For each result, call the `applyToRow` lambda, passing the row's ResultSet
-                while (rs.next()) {
-                    applyToRow.accept(rs);
+        long start = System.nanoTime();
+        long rowCount = 0;
+        boolean failed = true;
+        // Borrow a connection and get its cached statement
+        try (PooledConnection pooled = acquire()) {
+            PreparedStatement stmt = pooled.prepare(sql);
+            try {
+                // Bind any statement parameters
+                setValues.accept(stmt);
+                // Run the query
+                try (ResultSet rs = stmt.executeQuery()) {
+                    // For each result, call the `applyToRow` lambda, passing the row's ResultSet
+                    while (rs.next()) {
+                        rowCount++;
+                        applyToRow.accept(rs);
+                    }
                 }
+            } finally {
+                pooled.done(stmt);
             }
+            failed = false;
+        } finally {
+            QueryStats.record(this, sql, setValues, start, rowCount, failed);
         }
     }
 
     /**
-     * Run a non-parametrized SQL select query.
+     * Run a parametrized SQL select query, lazily streaming the mapped rows.
      *
+     * Rows are read from the database `fetchSize` at a time as the stream is consumed, so memory
+     * use doesn't grow with the size of the result. The stream holds a pooled connection until it
+     * has been fully consumed or closed, so use it with try with resource syntax.
+     *
+     * @param <T> type each row is mapped to
      * @param sql query string
-     * @param applyToRow lambda function to run on each returned row
+     * @param setValues lambda function to bind parameters to prepared statement
+     * @param mapRow lambda function to map the current row of the ResultSet
+     * @param fetchSize number of rows to fetch per round trip
+     * @return stream of mapped rows (throws `UncheckedSQLException` if reading a row fails)
      * @throws SQLException if there's an error running the query
      */
-    public void select(String sql, ThrowingConsumer<ResultSet, SQLException> applyToRow)
+    @Override
+    public <T> Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow,
+        int fetchSize
+    )
         throws SQLException {
-        select(sql, applyToRow, stmt -> {});
+        long start = System.nanoTime();
+        PooledConnection pooled = acquire();
+        PreparedStatement stmt = null;
+        ResultSet rs;
+        try {
+            stmt = pooled.prepare(sql);
+            stmt.setFetchSize(fetchSize);
+            // Bind any statement parameters
+            setValues.accept(stmt);
+            rs = stmt.executeQuery();
+        } catch (SQLException | RuntimeException e) {
+            if (stmt != null) {
+                pooled.done(stmt);
+            }
+            pooled.close();
+            QueryStats.record(this, sql, setValues, start, 0, true);
+            throw e;
+        }
+        PreparedStatement streamed = stmt;
+        ResultSetSpliterator<T> rows = new ResultSetSpliterator<>(
+            rs,
+            () -> {
+                pooled.done(streamed);
+                pooled.close();
+            },
+            mapRow,
+            this,
+            sql,
+            setValues,
+            start
+        );
+        return StreamSupport.stream(rows, false).onClose(rows::close);
     }
 
     /**
@@ -122,25 +495,41 @@ public class Database implements AutoCloseable {
      * @param setValues lambda function to bind parameters to prepared statement
      * @throws SQLException if there's an error running the query
      */
+    @Override
     public void modify(String sql, ThrowingConsumer<PreparedStatement, SQLException> setValues)
         throws SQLException {
-        // Create a statement
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-            // Bind any parameters
-            setValues.accept(stmt);
-            // Execute it
-            stmt.executeUpdate();
+        long start = System.nanoTime();
+        int rowCount = 0;
+        boolean failed = true;
+        // Borrow a connection and get its cached statement
+        try (PooledConnection pooled = acquire()) {
+            PreparedStatement stmt = pooled.prepare(sql);
+            try {
+                // Bind any parameters
+                setValues.accept(stmt);
+                // Execute it
+                rowCount = stmt.executeUpdate();
+            } finally {
+                pooled.done(stmt);
+            }
+            failed = false;
+        } finally {
+            QueryStats.record(this, sql, setValues, start, rowCount, failed);
         }
     }
 
     /**
-     * Run a non-parametrized SQL modifying query (e.g. one that doesn't return anything).
+     * Get (or generate) the insert statement for a table and column list.
      *
-     * @param sql modifying query string
-     * @throws SQLException if there's an error running the query
+     * @param tableName name of the table
+     * @param columns column names provided when inserting
+     * @return insert SQL with a placeholder per column
      */
-    public void modify(String sql) throws SQLException {
-        modify(sql, stmt -> {});
+    static String insertSql(String tableName, String[] columns) {
+        return insertSqlCache.computeIfAbsent(
+            tableName + ":" + String.join(",", columns),
+            key -> Query.insertInto(tableName, columns).sql()
+        );
     }
 
     /**
@@ -156,6 +545,7 @@ public class Database implements AutoCloseable {
      * @return id of new row if `getGeneratedKey == true`
      * @throws SQLException if error executing SQL
      */
+    @Override
     public Optional<Integer> insert(
         String tableName,
         String[] columns,
@@ -163,35 +553,227 @@ public class Database implements AutoCloseable {
         boolean getGeneratedKey
     )
         throws SQLException {
-        // Generate placeholders for `VALUES` section of query
+        String sql = insertSql(tableName, columns);
+        long start = System.nanoTime();
+        int rowCount = 0;
+        boolean failed = true;
+        try (PooledConnection pooled = acquire()) {
+            PreparedStatement stmt = pooled.prepare(
+                sql,
+                // If should return id, specify that it should be returned
+                getGeneratedKey ? new String[] { "id" } : new String[] {}
+            );
+            Optional<Integer> id = Optional.empty();
+            try {
+                // Bind column values
+                setValues.accept(stmt);
+                // Execute insert
+                rowCount = stmt.executeUpdate();
+                // Try to get the auto generated key if needed
+                if (getGeneratedKey) {
+                    try (ResultSet rs = stmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            id = Optional.of(rs.getInt(1));
+                        }
+                    }
+                }
+            } finally {
+                pooled.done(stmt);
+            }
+            failed = false;
+            return id;
+        } finally {
+            QueryStats.record(this, sql, setValues, start, rowCount, failed);
+        }
+    }
+
+    /**
+     * Insert a row into a table, getting back its column values from the same statement.
+     *
+     * The driver turns the requested generated key columns into a `RETURNING` clause, so no
+     * second query is needed to read the new row.
+     *
+     * @param <T> type the new row is mapped to
+     * @param tableName name of the table
+     * @param columns column names provided when inserting
+     * @param setValues lambda to bind column values to query
+     * @param returnColumns column names to get back
+     * @param mapRow lambda to map a result set positioned on the new row (has `returnColumns`)
+     * @return mapped new row
+     * @throws SQLException if error executing SQL
+     */
+    @Override
+    public <T> T insertReturning(
+        String tableName,
+        String[] columns,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        String[] returnColumns,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow
+    )
+        throws SQLException {
+        String sql = insertSql(tableName, columns);
+        long start = System.nanoTime();
+        int rowCount = 0;
+        boolean failed = true;
+        try (PooledConnection pooled = acquire()) {
+            PreparedStatement stmt = pooled.prepare(sql, returnColumns);
+            T row;
+            try {
+                // Bind column values
+                setValues.accept(stmt);
+                // Execute insert
+                rowCount = stmt.executeUpdate();
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    if (!rs.next()) {
+                        throw new SQLException("Insert into " + tableName + " returned no row");
+                    }
+                    row = mapRow.apply(rs);
+                }
+            } finally {
+                pooled.done(stmt);
+            }
+            failed = false;
+            return row;
+        } finally {
+            QueryStats.record(this, sql, setValues, start, rowCount, failed);
+        }
+    }
+
+    /**
+     * Insert a row along with a row that references it, in a single PL/SQL block (one round
+     * trip).
+     *
+     * @param parentTable name of the referenced row's table
+     * @param parentColumns column names provided when inserting the referenced row
+     * @param setParentValues lambda to bind the referenced row's column values
+     * @param tableName name of the referencing row's table
+     * @param columns column names provided when inserting the referencing row (excluding the
+     *     reference)
+     * @param referenceColumn column of the referencing row holding the referenced row's id
+     * @param setValues lambda to bind the referencing row's column values
+     * @return ids of the new referenced row, then the new referencing row
+     * @throws SQLException if error executing SQL
+     */
+    @Override
+    public int[] insertWithParent(
+        String parentTable,
+        String[] parentColumns,
+        ThrowingConsumer<PreparedStatement, SQLException> setParentValues,
+        String tableName,
+        String[] columns,
+        String referenceColumn,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
         String[] placeholders = new String[columns.length];
         Arrays.fill(placeholders, "?");
-        // Generate insert statement
+        // Parameters: parent values, then child values, then the two new ids
+        String sql = String.format(
+            "declare parent_id number; begin %s returning id into parent_id; " +
+            "insert into %s (%s,%s) values (%s,parent_id) returning id into ?; " +
+            "? := parent_id; end;",
+            insertSql(parentTable, parentColumns),
+            tableName,
+            String.join(",", columns),
+            referenceColumn,
+            String.join(",", placeholders)
+        );
+        int idParam = parentColumns.length + columns.length + 1;
+        // Bind the parent's values, then the child's shifted after them
+        ThrowingConsumer<PreparedStatement, SQLException> setAll = stmt -> {
+            setParentValues.accept(stmt);
+            setValues.accept(JdbcProxies.shifted(stmt, parentColumns.length));
+        };
+        long start = System.nanoTime();
+        boolean failed = true;
         try (
-            PreparedStatement stmt = conn.prepareStatement(
-                String.format(
-                    "insert into %s (%s) values (%s)",
-                    tableName,
-                    String.join(",", columns),
-                    String.join(",", placeholders)
-                ),
-                // If should return id, specify that it should be returned
-                getGeneratedKey ? new String[] { "id" } : new String[] {}
-            )
+            PooledConnection pooled = acquire();
+            CallableStatement stmt = pooled.conn.prepareCall(sql)
         ) {
-            // Bind column values
-            setValues.accept(stmt);
-            // Execute insert
-            stmt.executeUpdate();
-            // Try to get the auto generated key if needed
-            if (getGeneratedKey) {
-                ResultSet rs = stmt.getGeneratedKeys();
-                if (rs.next()) {
-                    return Optional.of(rs.getInt(1));
+            setAll.accept(stmt);
+            stmt.registerOutParameter(idParam, Types.INTEGER);
+            stmt.registerOutParameter(idParam + 1, Types.INTEGER);
+            stmt.execute();
+            int[] ids = new int[] { stmt.getInt(idParam + 1), stmt.getInt(idParam) };
+            failed = false;
+            return ids;
+        } finally {
+            QueryStats.record(this, sql, setAll, start, failed ? 0 : 2, failed);
+        }
+    }
+
+    /**
+     * Insert many rows into a table using JDBC batching.
+     *
+     * Rows are sent to the database `batchSize` at a time, so inserting N rows takes
+     * `ceil(N / batchSize)` round trips instead of N.
+     *
+     * @param <T> type of the items being inserted
+     * @param tableName name of the table
+     * @param columns column names provided when inserting
+     * @param items items to insert, one row each
+     * @param bindRow lambda to bind an item's column values to the query
+     * @param batchSize max number of rows per round trip
+     * @return number of rows inserted
+     * @throws SQLException if error executing SQL
+     */
+    @Override
+    public <T> int insertBatch(
+        String tableName,
+        String[] columns,
+        List<T> items,
+        ThrowingBiConsumer<PreparedStatement, T, SQLException> bindRow,
+        int batchSize
+    )
+        throws SQLException {
+        if (items.isEmpty()) {
+            return 0;
+        }
+        String sql = insertSql(tableName, columns);
+        long start = System.nanoTime();
+        int inserted = 0;
+        boolean failed = true;
+        try (PooledConnection pooled = acquire()) {
+            PreparedStatement stmt = pooled.prepare(sql);
+            try {
+                int pending = 0;
+                for (T item : items) {
+                    // Bind and queue the row
+                    bindRow.accept(stmt, item);
+                    stmt.addBatch();
+                    pending++;
+                    // Send a full batch
+                    if (pending == batchSize) {
+                        inserted += stmt.executeBatch().length;
+                        pending = 0;
+                    }
                 }
+                // Send any remaining rows
+                if (pending > 0) {
+                    inserted += stmt.executeBatch().length;
+                }
+            } finally {
+                pooled.done(stmt);
             }
+            failed = false;
+        } finally {
+            QueryStats.record(this, sql, null, start, inserted, failed);
         }
-        return Optional.empty();
+        return inserted;
+    }
+
+    /**
+     * Get (or generate) the update-by-id statement for a table and column list.
+     *
+     * @param tableName name of the table
+     * @param columns column names to update
+     * @return update SQL with a placeholder per column, then one for the id
+     */
+    static String updateSql(String tableName, String[] columns) {
+        return updateSqlCache.computeIfAbsent(
+            tableName + ":" + String.join(",", columns),
+            key -> Query.update(tableName, columns).where("id", "=").sql()
+        );
     }
 
     /**
@@ -203,6 +785,7 @@ public class Database implements AutoCloseable {
      * @param setValues lambda to bind column values to query
      * @throws SQLException if error executing SQL
      */
+    @Override
     public void update(
         String tableName,
         String[] columns,
@@ -210,27 +793,40 @@ public class Database implements AutoCloseable {
         ThrowingConsumer<PreparedStatement, SQLException> setValues
     )
         throws SQLException {
-        // Generate array of the update command's `SET` parameters
-        String[] updateAttrs = new String[columns.length];
-        for (int i = 0; i < columns.length; i++) {
-            updateAttrs[i] = columns[i] + " = ?";
-        }
-        // Create update statement
-        try (
-            PreparedStatement stmt = conn.prepareStatement(
-                String.format(
-                    "update %s set %s where id = ?",
-                    tableName,
-                    String.join(",", updateAttrs)
-                )
-            )
-        ) {
-            // Bind id param
-            stmt.setInt(columns.length + 1, id);
-            // Bind column values
+        String sql = updateSql(tableName, columns);
+        // Bind column values, then the id param
+        ThrowingConsumer<PreparedStatement, SQLException> setAll = stmt -> {
             setValues.accept(stmt);
-            // Execute update
-            stmt.executeUpdate();
+            stmt.setInt(columns.length + 1, id);
+        };
+        long start = System.nanoTime();
+        int rowCount = 0;
+        boolean failed = true;
+        try (PooledConnection pooled = acquire()) {
+            PreparedStatement stmt = pooled.prepare(sql);
+            try {
+                setAll.accept(stmt);
+                // Execute update
+                rowCount = stmt.executeUpdate();
+            } finally {
+                pooled.done(stmt);
+            }
+            failed = false;
+        } finally {
+            QueryStats.record(this, sql, setAll, start, rowCount, failed);
         }
     }
+
+    /**
+     * Delete a table entry by its id.
+     *
+     * @param tableName name of the table
+     * @param id id of the row to delete
+     * @throws SQLException if error executing SQL
+     */
+    @Override
+    public void delete(String tableName, int id) throws SQLException {
+        Query query = Query.deleteFrom(tableName).where("id", "=", id);
+        modify(query.sql(), query.binder());
+    }
 }
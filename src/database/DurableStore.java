@@ -0,0 +1,714 @@
+package database;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded storage engine that keeps the tables of `MemoryStore` on local disk.
+ *
+ * Every committed transaction is appended to a write-ahead log as one checksummed record, and the
+ * committing thread waits until the record has been forced to disk. A single writer thread
+ * flushes whatever records have queued up since its last flush with one `force()`, so concurrent
+ * commits share the cost of a sync (group commit).
+ *
+ * The log is split into segment files named after the first record they hold. Once enough log has
+ * been written, a background task saves a snapshot of every table and deletes the segments it
+ * covers (compaction), so recovery only has to load the snapshot and replay the log written since.
+ *
+ * Files live in the `recipe_mgmt.durable.dir` directory. On first start, the store loads the
+ * `recipe_mgmt.memory.seed` script if one is set.
+ */
+public class DurableStore extends MemoryStore {
+
+    // Directory holding the snapshot and log segments
+    static final String DATA_DIR = System.getProperty(
+        "recipe_mgmt.durable.dir",
+        "recipe_mgmt_data"
+    );
+    // Size a log segment can grow to before a new one is started
+    static final long SEGMENT_BYTES = Long.getLong(
+        "recipe_mgmt.durable.segmentBytes",
+        4L * 1024 * 1024
+    );
+    // Amount of log written since the last snapshot that triggers a new one
+    static final long SNAPSHOT_BYTES = Long.getLong(
+        "recipe_mgmt.durable.snapshotBytes",
+        1024 * 1024
+    );
+    // How often to check whether a snapshot is due
+    static final long SNAPSHOT_INTERVAL_MS = Long.getLong(
+        "recipe_mgmt.durable.snapshotIntervalMs",
+        5000
+    );
+
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final String ID_FILE = "store.id";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("wal-(\\d{20})\\.log");
+    private static final int SNAPSHOT_MAGIC = 0x524d5353;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // Kinds of changes in a log record
+    private static final byte INSERT = 1;
+    private static final byte UPDATE = 2;
+    private static final byte DELETE = 3;
+
+    // Kinds of values in a row
+    private static final byte NULL = 0;
+    private static final byte INT = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+
+    /**
+     * A committed transaction waiting to be written to the log.
+     */
+    private static class LogRecord {
+
+        final long lsn;
+        final byte[] bytes;
+
+        LogRecord(long lsn, byte[] bytes) {
+            this.lsn = lsn;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Path dir;
+    // Random id generated when the store was created (so a recreated directory gets a new one)
+    private final String id;
+
+    // Changes made by the open transaction (guarded by the write lock)
+    private final ByteArrayOutputStream changeBytes = new ByteArrayOutputStream();
+    private final DataOutputStream changes = new DataOutputStream(changeBytes);
+    private int changeCount = 0;
+    // Log sequence number of the last committed transaction (guarded by the write lock)
+    private long lastLsn = 0;
+
+    // Guards the commit queue and everything below it
+    private final Object logLock = new Object();
+    private final ArrayDeque<LogRecord> queue = new ArrayDeque<>();
+    // Last log sequence number forced to disk
+    private long durableLsn = 0;
+    // Set if writing the log failed, after which no more commits are accepted
+    private IOException failure = null;
+    private boolean closing = false;
+    private long commitCount = 0;
+    private long flushCount = 0;
+
+    // Guards the open log segment
+    private final Object segmentLock = new Object();
+    private FileChannel segment;
+    private long segmentSize = 0;
+    // Last log sequence number written to a segment
+    private long writtenLsn = 0;
+
+    // Log sequence number the latest snapshot is up to date with
+    private volatile long snapshotLsn = 0;
+    private final AtomicLong bytesSinceSnapshot = new AtomicLong();
+
+    private final Thread writer;
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Open (or create) the store in the configured data directory.
+     *
+     * @throws SQLException if the store's files can't be read or are corrupt
+     */
+    public DurableStore() throws SQLException {
+        this(Paths.get(DATA_DIR));
+    }
+
+    /**
+     * Open (or create) the store in a directory, recovering its tables from the latest snapshot
+     * and the log written since.
+     *
+     * @param dir data directory
+     * @throws SQLException if the store's files can't be read or are corrupt
+     */
+    public DurableStore(Path dir) throws SQLException {
+        super(null);
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            id = readId();
+            recover();
+        } catch (IOException e) {
+            throw new SQLException("Couldn't open data directory " + dir, e);
+        }
+        // Start writing the log
+        writer = new Thread(this::writeLog, "durable-store-wal");
+        writer.setDaemon(true);
+        writer.start();
+        // Periodically save a snapshot and compact the log
+        compactor =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                    Thread thread = new Thread(runnable, "durable-store-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            );
+        compactor.scheduleWithFixedDelay(
+            this::snapshotIfDue,
+            SNAPSHOT_INTERVAL_MS,
+            SNAPSHOT_INTERVAL_MS,
+            TimeUnit.MILLISECONDS
+        );
+        // Seed a brand new store
+        if (lastLsn == 0 && SEED_SCRIPT != null) {
+            loadScript(Paths.get(SEED_SCRIPT));
+        }
+    }
+
+    /**
+     * Read the store's id, generating one if the store is new.
+     */
+    private String readId() throws IOException {
+        Path path = dir.resolve(ID_FILE);
+        if (!Files.exists(path)) {
+            // Write it in one step, so a crash never leaves part of an id
+            Path temp = dir.resolve(ID_FILE + ".tmp");
+            Files.write(temp, UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Load the latest snapshot, then replay the log written since it, dropping a partially
+     * written record at the end of the log (e.g. after a crash).
+     */
+    private void recover() throws IOException, SQLException {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            loadSnapshot(Files.readAllBytes(snapshot));
+        }
+        TreeMap<Long, Path> segments = listSegments();
+        Path last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        for (Path path : segments.values()) {
+            replaySegment(path, path.equals(last));
+        }
+        durableLsn = lastLsn;
+        writtenLsn = lastLsn;
+        // Keep appending to the last segment if there's room, else start a new one
+        if (last != null && Files.size(last) < SEGMENT_BYTES) {
+            openSegment(last);
+        } else {
+            openSegment(segmentPath(lastLsn + 1));
+        }
+    }
+
+    /**
+     * @return log segment files by the first log sequence number they hold
+     */
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(
+                path -> {
+                    Matcher m = SEGMENT_NAME.matcher(path.getFileName().toString());
+                    if (m.matches()) {
+                        segments.put(Long.parseLong(m.group(1)), path);
+                    }
+                }
+            );
+        }
+        return segments;
+    }
+
+    private Path segmentPath(long firstLsn) {
+        return dir.resolve(String.format("wal-%020d.log", firstLsn));
+    }
+
+    private void openSegment(Path path) throws IOException {
+        segment =
+            FileChannel.open(
+                path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND
+            );
+        segmentSize = segment.size();
+    }
+
+    /**
+     * Replay the records of a log segment that aren't in the snapshot.
+     *
+     * @param path segment file
+     * @param isLast whether it's the newest segment (which may end with a torn record)
+     */
+    private void replaySegment(Path path, boolean isLast) throws IOException, SQLException {
+        byte[] bytes = Files.readAllBytes(path);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.remaining() > 0) {
+            int start = buffer.position();
+            boolean intact = buffer.remaining() >= 8;
+            int length = intact ? buffer.getInt() : 0;
+            long crc = intact ? buffer.getInt() & 0xffffffffL : 0;
+            intact = intact && length >= 0 && length <= buffer.remaining();
+            if (intact) {
+                CRC32 check = new CRC32();
+                check.update(bytes, buffer.position(), length);
+                intact = check.getValue() == crc;
+            }
+            if (!intact) {
+                if (!isLast) {
+                    throw new SQLException("Corrupt transaction log segment " + path);
+                }
+                // Drop the record that was being written when the process stopped
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    channel.truncate(start);
+                }
+                return;
+            }
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes, buffer.position(), length)
+            );
+            buffer.position(buffer.position() + length);
+            long lsn = in.readLong();
+            if (lsn <= lastLsn) {
+                // Already in the snapshot
+                continue;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                applyChange(in);
+            }
+            lastLsn = lsn;
+            // Count the replayed log towards the next snapshot
+            bytesSinceSnapshot.addAndGet(length + 8);
+        }
+    }
+
+    /**
+     * Apply a logged change to the tables.
+     */
+    private void applyChange(DataInputStream in) throws IOException, SQLException {
+        byte kind = in.readByte();
+        MemoryTable table = table(in.readUTF());
+        Object[] row = readRow(in);
+        if (kind == INSERT) {
+            table.add(row);
+            return;
+        }
+        Object[] existing = table.get(table.key(row));
+        if (existing == null) {
+            throw new SQLException("Transaction log refers to a missing row of " + table.name);
+        }
+        if (kind == UPDATE) {
+            table.replace(existing, readRow(in), false);
+        } else {
+            table.remove(existing);
+        }
+    }
+
+    private void loadSnapshot(byte[] bytes) throws IOException, SQLException {
+        CRC32 check = new CRC32();
+        check.update(bytes, 0, Math.max(0, bytes.length - 8));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        boolean intact = bytes.length >= 8;
+        if (!intact || ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != check.getValue()) {
+            throw new SQLException("Corrupt snapshot in " + dir);
+        }
+        if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+            throw new SQLException("Unrecognized snapshot in " + dir);
+        }
+        lastLsn = in.readLong();
+        snapshotLsn = lastLsn;
+        int tableCount = in.readInt();
+        for (int t = 0; t < tableCount; t++) {
+            MemoryTable table = table(in.readUTF());
+            int nextId = in.readInt();
+            int rowCount = in.readInt();
+            for (int i = 0; i < rowCount; i++) {
+                table.add(readRow(in));
+            }
+            table.setNextId(nextId);
+        }
+    }
+
+    /**
+     * Save a snapshot if enough log has been written since the last one, then delete the log
+     * segments it covers.
+     */
+    private void snapshotIfDue() {
+        if (bytesSinceSnapshot.get() < SNAPSHOT_BYTES) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            // The log still has everything, so just try again later
+            System.err.println("Couldn't save snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Save a snapshot of every table, then delete the log segments it covers.
+     *
+     * @throws IOException if the snapshot can't be written
+     */
+    void snapshot() throws IOException {
+        // Copy the tables while no transaction is running
+        byte[] image;
+        long lsn;
+        lock.readLock().lock();
+        try {
+            lsn = lastLsn;
+            if (lsn == snapshotLsn) {
+                return;
+            }
+            image = encodeSnapshot(lsn);
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Write a new snapshot and swap it in
+        Path temp = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (
+            FileChannel channel = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+            )
+        ) {
+            ByteBuffer buffer = ByteBuffer.wrap(image);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(
+            temp,
+            dir.resolve(SNAPSHOT_FILE),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE
+        );
+        snapshotLsn = lsn;
+        bytesSinceSnapshot.set(0);
+        // Compact the log
+        synchronized (segmentLock) {
+            rotateSegment();
+            Long previous = null;
+            for (Long firstLsn : listSegments().keySet()) {
+                // A segment ends right before the next one starts
+                if (previous != null && firstLsn - 1 <= lsn) {
+                    Files.deleteIfExists(segmentPath(previous));
+                }
+                previous = firstLsn;
+            }
+        }
+    }
+
+    private byte[] encodeSnapshot(long lsn) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeLong(lsn);
+        out.writeInt(tables.size());
+        for (MemoryTable table : tables.values()) {
+            out.writeUTF(table.name);
+            out.writeInt(table.peekNextId());
+            out.writeInt(table.size());
+            for (Object[] row : table.rows()) {
+                writeRow(out, row);
+            }
+        }
+        CRC32 check = new CRC32();
+        check.update(bytes.toByteArray());
+        out.writeLong(check.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Start a new log segment, unless the open one is empty.
+     */
+    private void rotateSegment() throws IOException {
+        if (segmentSize == 0) {
+            return;
+        }
+        segment.close();
+        openSegment(segmentPath(writtenLsn + 1));
+    }
+
+    /**
+     * Body of the writer thread: repeatedly write every queued record and force them to disk
+     * together.
+     */
+    private void writeLog() {
+        while (true) {
+            ArrayList<LogRecord> batch;
+            synchronized (logLock) {
+                while (queue.isEmpty() && !closing) {
+                    try {
+                        logLock.wait();
+                    } catch (InterruptedException e) {
+                        // Only stops once closing
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+            }
+            long written = 0;
+            try {
+                synchronized (segmentLock) {
+                    for (LogRecord record : batch) {
+                        ByteBuffer buffer = ByteBuffer.wrap(record.bytes);
+                        while (buffer.hasRemaining()) {
+                            written += segment.write(buffer);
+                        }
+                        writtenLsn = record.lsn;
+                    }
+                    segment.force(false);
+                    segmentSize += written;
+                    if (segmentSize >= SEGMENT_BYTES) {
+                        rotateSegment();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (logLock) {
+                    failure = e;
+                    logLock.notifyAll();
+                }
+                return;
+            }
+            bytesSinceSnapshot.addAndGet(written);
+            synchronized (logLock) {
+                durableLsn = batch.get(batch.size() - 1).lsn;
+                commitCount += batch.size();
+                flushCount++;
+                logLock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    void rowInserted(MemoryTable table, Object[] row) {
+        logChange(INSERT, table, row, null);
+    }
+
+    @Override
+    void rowUpdated(MemoryTable table, Object[] row, Object[] old) {
+        logChange(UPDATE, table, old, row);
+    }
+
+    @Override
+    void rowDeleted(MemoryTable table, Object[] row) {
+        logChange(DELETE, table, row, null);
+    }
+
+    /**
+     * Add a change to the open transaction's log record.
+     */
+    private void logChange(byte kind, MemoryTable table, Object[] row, Object[] updated) {
+        try {
+            changes.writeByte(kind);
+            changes.writeUTF(table.name);
+            writeRow(changes, row);
+            if (updated != null) {
+                writeRow(changes, updated);
+            }
+            changeCount++;
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    long commit() throws SQLException {
+        if (changeCount == 0) {
+            // Nothing to wait for
+            return 0;
+        }
+        synchronized (logLock) {
+            if (failure != null || closing) {
+                throw new SQLException("Store is not accepting changes", failure);
+            }
+        }
+        long lsn = lastLsn + 1;
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(changeBytes.size() + 12);
+        DataOutputStream out = new DataOutputStream(payload);
+        try {
+            out.writeLong(lsn);
+            out.writeInt(changeCount);
+            changeBytes.writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] body = payload.toByteArray();
+        CRC32 check = new CRC32();
+        check.update(body);
+        ByteBuffer record = ByteBuffer.allocate(body.length + 8);
+        record.putInt(body.length).putInt((int) check.getValue()).put(body);
+        resetChanges();
+        lastLsn = lsn;
+        synchronized (logLock) {
+            queue.add(new LogRecord(lsn, record.array()));
+            logLock.notifyAll();
+        }
+        return lsn;
+    }
+
+    @Override
+    void rollback() {
+        resetChanges();
+    }
+
+    private void resetChanges() {
+        changeBytes.reset();
+        changeCount = 0;
+    }
+
+    @Override
+    void awaitCommitted(long ticket) throws SQLException {
+        if (ticket == 0) {
+            return;
+        }
+        boolean interrupted = false;
+        synchronized (logLock) {
+            while (durableLsn < ticket && failure == null) {
+                try {
+                    logLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (durableLsn < ticket) {
+            throw new SQLException("Couldn't write the transaction log", failure);
+        }
+    }
+
+    private static void writeRow(DataOutputStream out, Object[] row) throws IOException {
+        out.writeShort(row.length);
+        for (Object value : row) {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else {
+                // Not `writeUTF()`, since strings (e.g. instructions) can be over 64KB
+                byte[] text = value.toString().getBytes(StandardCharsets.UTF_8);
+                out.writeByte(STRING);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+        }
+    }
+
+    private static Object[] readRow(DataInputStream in) throws IOException {
+        Object[] row = new Object[in.readShort()];
+        for (int i = 0; i < row.length; i++) {
+            byte kind = in.readByte();
+            switch (kind) {
+                case NULL:
+                    break;
+                case INT:
+                    row[i] = in.readInt();
+                    break;
+                case LONG:
+                    row[i] = in.readLong();
+                    break;
+                case DOUBLE:
+                    row[i] = in.readDouble();
+                    break;
+                case STRING:
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    row[i] = new String(text, StandardCharsets.UTF_8);
+                    break;
+                default:
+                    throw new IOException("Unknown value kind " + kind);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Flush the log, save a snapshot if one is due, and close the store's files.
+     */
+    @Override
+    public void close() {
+        synchronized (logLock) {
+            closing = true;
+            logLock.notifyAll();
+        }
+        try {
+            writer.join();
+            compactor.shutdown();
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure == null) {
+            snapshotIfDue();
+        }
+        synchronized (segmentLock) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                // Everything written was already forced to disk
+            }
+        }
+        super.close();
+    }
+
+    @Override
+    public String identity() {
+        return "durable " + id;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (logLock) {
+            return String.format(
+                "durable=%d snapshot=%d commits=%d flushes=%d avgGroup=%.2f logSinceSnapshot=%d",
+                durableLsn,
+                snapshotLsn,
+                commitCount,
+                flushCount,
+                flushCount == 0 ? 0.0 : (double) commitCount / flushCount,
+                bytesSinceSnapshot.get()
+            );
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package database;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Lightweight stand-ins for JDBC objects, for code that doesn't talk to a real database.
+ *
+ * `PreparedStatement` and `ResultSet` have hundreds of methods, but the binding and row mapping
+ * lambdas used in this project only call a handful (`setInt`, `getString`, etc.). These are
+ * implemented with dynamic proxies, and anything else throws `SQLFeatureNotSupportedException`.
+ * There's also a wrapper for binding a lambda's parameters further along a real statement.
+ */
+class JdbcProxies {
+
+    /**
+     * Records the parameters bound to a statement.
+     */
+    static class ParameterCapture implements InvocationHandler {
+
+        // Bound values by (1 based) parameter index
+        private final HashMap<Integer, Object> values = new HashMap<>();
+        // Proxy statement that records into this capture
+        final PreparedStatement statement;
+
+        ParameterCapture() {
+            statement =
+                (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    this
+                );
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            boolean isSetter = name.startsWith("set") && args != null && args.length >= 2;
+            if (isSetter && args[0] instanceof Integer) {
+                Object value = args[1];
+                if (name.equals("setNull")) {
+                    value = null;
+                } else if (value instanceof Reader) {
+                    value = readAll((Reader) value);
+                }
+                values.put((Integer) args[0], MemoryStore.normalize(value));
+                return null;
+            }
+            switch (name) {
+                case "clearParameters":
+                    values.clear();
+                    return null;
+                case "setFetchSize":
+                case "close":
+                case "addBatch":
+                    return null;
+                case "isClosed":
+                    return false;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "ParameterCapture" + values;
+                default:
+                    throw new SQLFeatureNotSupportedException(
+                        "PreparedStatement." + name + " isn't supported here"
+                    );
+            }
+        }
+
+        /**
+         * Get the bound values in order.
+         *
+         * @param count number of parameters expected
+         * @return values of parameters 1 to `count`
+         * @throws SQLException if a parameter wasn't bound
+         */
+        Object[] values(int count) throws SQLException {
+            Object[] result = new Object[count];
+            for (int i = 0; i < count; i++) {
+                if (!values.containsKey(i + 1)) {
+                    throw new SQLException(String.format("Parameter %d not bound", i + 1));
+                }
+                result[i] = values.get(i + 1);
+            }
+            return result;
+        }
+
+        /**
+         * @return bound values by (1 based) parameter index
+         */
+        HashMap<Integer, Object> boundValues() {
+            return values;
+        }
+
+        private static String readAll(Reader reader) throws IOException {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, n);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Wrap a statement so parameter indexes passed to its setters are shifted by an offset.
+     *
+     * Used to bind a lambda written for a statement of its own (binding parameters 1, 2, etc.) to
+     * parameters further along a combined statement.
+     *
+     * @param stmt statement to bind to
+     * @param offset number to add to each parameter index
+     * @return wrapped statement
+     */
+    static PreparedStatement shifted(PreparedStatement stmt, int offset) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+            PreparedStatement.class.getClassLoader(),
+            new Class<?>[] { PreparedStatement.class },
+            (proxy, method, args) -> {
+                boolean isSetter = method.getName().startsWith("set") &&
+                    args != null &&
+                    args.length >= 2 &&
+                    args[0] instanceof Integer;
+                if (isSetter) {
+                    args = args.clone();
+                    args[0] = (Integer) args[0] + offset;
+                }
+                try {
+                    return method.invoke(stmt, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        );
+    }
+
+    /**
+     * Create a read only, forward only result set over some rows.
+     *
+     * @param labels column labels
+     * @param rows column values of each row
+     * @return result set
+     */
+    static ResultSet resultSet(String[] labels, List<Object[]> rows) {
+        return (ResultSet) Proxy.newProxyInstance(
+            ResultSet.class.getClassLoader(),
+            new Class<?>[] { ResultSet.class },
+            new RowsHandler(labels, rows)
+        );
+    }
+
+    /**
+     * Backs a result set proxy with a list of rows.
+     */
+    private static class RowsHandler implements InvocationHandler {
+
+        private final String[] labels;
+        private final List<Object[]> rows;
+        // Column positions by lower case label (first column wins)
+        private final HashMap<String, Integer> positions = new HashMap<>();
+        private int cursor = -1;
+        private boolean lastWasNull = false;
+        private boolean closed = false;
+
+        RowsHandler(String[] labels, List<Object[]> rows) {
+            this.labels = labels;
+            this.rows = rows;
+            for (int i = labels.length - 1; i >= 0; i--) {
+                positions.put(labels[i].toLowerCase(), i);
+            }
+        }
+
+        /**
+         * Get a column position from a 1 based index or a label.
+         */
+        private int position(Object column) throws SQLException {
+            if (column instanceof Integer) {
+                int i = (Integer) column - 1;
+                if (i < 0 || i >= labels.length) {
+                    throw new SQLException("Invalid column index " + column);
+                }
+                return i;
+            }
+            Integer i = positions.get(((String) column).toLowerCase());
+            if (i == null) {
+                throw new SQLException("Invalid column name " + column);
+            }
+            return i;
+        }
+
+        /**
+         * Get a value of the current row.
+         */
+        private Object value(Object column) throws SQLException {
+            if (cursor < 0 || cursor >= rows.size()) {
+                throw new SQLException("Result set isn't on a row");
+            }
+            Object value = rows.get(cursor)[position(column)];
+            lastWasNull = value == null;
+            return value;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "next":
+                    cursor++;
+                    return cursor < rows.size();
+                case "getInt":
+                case "getLong":
+                case "getDouble":
+                    {
+                        Object value = value(args[0]);
+                        Number number = value == null
+                            ? 0
+                            : value instanceof Number
+                                ? (Number) value
+                                : Double.valueOf(value.toString());
+                        if (name.equals("getInt")) {
+                            return number.intValue();
+                        }
+                        return name.equals("getLong") ? number.longValue() : number.doubleValue();
+                    }
+                case "getString":
+                    {
+                        Object value = value(args[0]);
+                        return value == null ? null : value.toString();
+                    }
+                case "getObject":
+                    return value(args[0]);
+                case "getCharacterStream":
+                    {
+                        Object value = value(args[0]);
+                        return value == null ? null : new StringReader(value.toString());
+                    }
+                case "findColumn":
+                    return position(args[0]) + 1;
+                case "wasNull":
+                    return lastWasNull;
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getMetaData":
+                    return metaData(labels);
+                case "setFetchSize":
+                    return null;
+                case "getFetchSize":
+                    return 0;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "MemoryResultSet(" + rows.size() + " rows)";
+                default:
+                    throw new SQLFeatureNotSupportedException(
+                        "ResultSet." + name + " isn't supported here"
+                    );
+            }
+        }
+    }
+
+    /**
+     * Create result set metadata describing some column labels.
+     */
+    private static ResultSetMetaData metaData(String[] labels) {
+        return (ResultSetMetaData) Proxy.newProxyInstance(
+            ResultSetMetaData.class.getClassLoader(),
+            new Class<?>[] { ResultSetMetaData.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getColumnCount":
+                        return labels.length;
+                    case "getColumnLabel":
+                    case "getColumnName":
+                        return labels[(Integer) args[0] - 1];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "MemoryResultSetMetaData";
+                    default:
+                        throw new SQLFeatureNotSupportedException(
+                            "ResultSetMetaData." + method.getName() + " isn't supported here"
+                        );
+                }
+            }
+        );
+    }
+}
@@ -0,0 +1,563 @@
+package database;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser for the subset of SQL understood by the in-memory storage engine.
+ *
+ * Supported statements:
+ * - `select [distinct] * | t.* | [t.]col [as label], ... from table [t] {[inner] join table [t] on
+ *   a.col = b.col} [where cond {and cond}] [order by [t.]col [asc|desc], ...]
+ *   [fetch first n rows only]`
+ * - `insert into table (col, ...) values (value, ...)`
+ * - `update table set col = value, ... [where cond {and cond}]`
+ * - `delete from table [where cond {and cond}]`
+ *
+ * A condition compares a column with a `?` parameter, a literal or another column (`=`, `<>`,
+ * `!=`, `<`, `<=`, `>`, `>=`), or checks that a column is `in (value, ...)`. Anything else (e.g.
+ * aggregates, `or`, outer joins) throws `SQLFeatureNotSupportedException`.
+ */
+class MemorySql {
+
+    /**
+     * A value in a statement: a column reference, a `?` parameter, or a literal.
+     */
+    static class Operand {
+
+        // Table alias of a column reference (null if unqualified)
+        String qualifier;
+        // Column name of a column reference (null if not a column)
+        String column;
+        // Position of a `?` parameter (0 based, -1 if not a parameter)
+        int param = -1;
+        // Value of a literal
+        Object literal;
+
+        boolean isColumn() {
+            return column != null;
+        }
+
+        @Override
+        public String toString() {
+            if (isColumn()) {
+                return qualifier == null ? column : qualifier + "." + column;
+            }
+            return param >= 0 ? "?" : String.valueOf(literal);
+        }
+    }
+
+    /**
+     * A condition of a `where` or `on` clause.
+     */
+    static class Condition {
+
+        Operand left;
+        // One of =, <>, <, <=, >, >=, in
+        String op;
+        // Right hand side (one operand unless `op` is `in`)
+        List<Operand> right = new ArrayList<>();
+
+        @Override
+        public String toString() {
+            if (op.equals("in")) {
+                return left + " in (" + right.size() + " values)";
+            }
+            return left + " " + op + " " + right.get(0);
+        }
+    }
+
+    /**
+     * A column (or `*`) in a select list.
+     */
+    static class SelectItem {
+
+        // Table alias of `t.*` or `t.col` (null if unqualified)
+        String qualifier;
+        // Column name (null for `*`)
+        String column;
+        // Output label (null to use the column name)
+        String label;
+    }
+
+    /**
+     * A table in a `from` clause.
+     */
+    static class TableRef {
+
+        String table;
+        String alias;
+    }
+
+    /**
+     * A column in an `order by` clause.
+     */
+    static class Order {
+
+        Operand column;
+        boolean descending;
+    }
+
+    /**
+     * Base of a parsed statement.
+     */
+    abstract static class Statement {
+
+        // Number of `?` parameters
+        int paramCount;
+    }
+
+    static class Select extends Statement {
+
+        boolean distinct;
+        List<SelectItem> items = new ArrayList<>();
+        List<TableRef> from = new ArrayList<>();
+        // `on` conditions of every join, followed by the `where` conditions
+        List<Condition> conditions = new ArrayList<>();
+        List<Order> orderBy = new ArrayList<>();
+        // Max number of rows (null if no limit)
+        Operand limit;
+    }
+
+    static class Insert extends Statement {
+
+        String table;
+        List<String> columns = new ArrayList<>();
+        List<Operand> values = new ArrayList<>();
+    }
+
+    static class Update extends Statement {
+
+        String table;
+        List<String> columns = new ArrayList<>();
+        List<Operand> values = new ArrayList<>();
+        List<Condition> conditions = new ArrayList<>();
+    }
+
+    static class Delete extends Statement {
+
+        String table;
+        List<Condition> conditions = new ArrayList<>();
+    }
+
+    // Token kinds
+    private static final int WORD = 0;
+    private static final int NUMBER = 1;
+    private static final int STRING = 2;
+    private static final int SYMBOL = 3;
+    private static final int PARAM = 4;
+    private static final int END = 5;
+
+    private final String sql;
+    // Kind and text of each token
+    private final ArrayList<Integer> kinds = new ArrayList<>();
+    private final ArrayList<String> texts = new ArrayList<>();
+    private int pos = 0;
+    private int paramCount = 0;
+
+    private MemorySql(String sql) throws SQLException {
+        this.sql = sql;
+        tokenize();
+    }
+
+    /**
+     * Parse a SQL statement.
+     *
+     * @param sql statement text
+     * @return parsed statement
+     * @throws SQLException if the statement is invalid or isn't supported
+     */
+    static Statement parse(String sql) throws SQLException {
+        MemorySql parser = new MemorySql(sql);
+        Statement stmt;
+        if (parser.acceptWord("select")) {
+            stmt = parser.parseSelect();
+        } else if (parser.acceptWord("insert")) {
+            stmt = parser.parseInsert();
+        } else if (parser.acceptWord("update")) {
+            stmt = parser.parseUpdate();
+        } else if (parser.acceptWord("delete")) {
+            stmt = parser.parseDelete();
+        } else {
+            throw parser.unsupported();
+        }
+        // Allow a trailing semicolon
+        parser.acceptSymbol(";");
+        if (parser.kind() != END) {
+            throw parser.unsupported();
+        }
+        stmt.paramCount = parser.paramCount;
+        return stmt;
+    }
+
+    /**
+     * Split the SQL into tokens.
+     */
+    private void tokenize() throws SQLException {
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+                // Skip line comments
+                while (i < n && sql.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (
+                    i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_')
+                ) {
+                    i++;
+                }
+                add(WORD, sql.substring(start, i));
+            } else if (Character.isDigit(c)) {
+                int start = i;
+                while (i < n && Character.isDigit(sql.charAt(i))) {
+                    i++;
+                }
+                add(NUMBER, sql.substring(start, i));
+            } else if (c == '\'') {
+                // String literal, with '' as an escaped quote
+                StringBuilder value = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= n) {
+                        throw new SQLSyntaxErrorException("Unterminated string literal: " + sql);
+                    }
+                    char ch = sql.charAt(i);
+                    if (ch == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            value.append('\'');
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    value.append(ch);
+                    i++;
+                }
+                add(STRING, value.toString());
+            } else if (c == '?') {
+                add(PARAM, "?");
+                i++;
+            } else if ((c == '<' || c == '>' || c == '!') && i + 1 < n) {
+                String two = sql.substring(i, i + 2);
+                if (two.equals("<=") || two.equals(">=") || two.equals("<>") || two.equals("!=")) {
+                    add(SYMBOL, two);
+                    i += 2;
+                } else {
+                    add(SYMBOL, String.valueOf(c));
+                    i++;
+                }
+            } else if ("(),.*=<>;".indexOf(c) >= 0) {
+                add(SYMBOL, String.valueOf(c));
+                i++;
+            } else {
+                throw new SQLSyntaxErrorException(
+                    String.format("Unexpected character '%s' in: %s", c, sql)
+                );
+            }
+        }
+        add(END, "");
+    }
+
+    private void add(int kind, String text) {
+        kinds.add(kind);
+        texts.add(text);
+    }
+
+    private int kind() {
+        return kinds.get(pos);
+    }
+
+    private String text() {
+        return texts.get(pos);
+    }
+
+    private boolean acceptWord(String word) {
+        if (kind() == WORD && text().equalsIgnoreCase(word)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean acceptSymbol(String symbol) {
+        if (kind() == SYMBOL && text().equals(symbol)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expectWord(String word) throws SQLException {
+        if (!acceptWord(word)) {
+            throw unsupported();
+        }
+    }
+
+    private void expectSymbol(String symbol) throws SQLException {
+        if (!acceptSymbol(symbol)) {
+            throw unsupported();
+        }
+    }
+
+    private String identifier() throws SQLException {
+        if (kind() != WORD) {
+            throw unsupported();
+        }
+        return texts.get(pos++);
+    }
+
+    /**
+     * @return error for SQL this engine doesn't understand
+     */
+    private SQLException unsupported() {
+        return new SQLFeatureNotSupportedException(
+            String.format(
+                "In-memory engine can't handle '%s' (at token %d) in: %s",
+                text(),
+                pos,
+                sql
+            )
+        );
+    }
+
+    /**
+     * @return whether the current word is one that ends a table alias
+     */
+    private boolean atKeyword() {
+        if (kind() != WORD) {
+            return true;
+        }
+        String word = text().toLowerCase();
+        return (
+            word.equals("where") ||
+            word.equals("join") ||
+            word.equals("inner") ||
+            word.equals("on") ||
+            word.equals("order") ||
+            word.equals("fetch") ||
+            word.equals("set") ||
+            word.equals("left") ||
+            word.equals("group") ||
+            word.equals("for")
+        );
+    }
+
+    private Select parseSelect() throws SQLException {
+        Select select = new Select();
+        select.distinct = acceptWord("distinct");
+        // Select list
+        do {
+            SelectItem item = new SelectItem();
+            if (acceptSymbol("*")) {
+                select.items.add(item);
+                continue;
+            }
+            String first = identifier();
+            if (acceptSymbol("(")) {
+                // Function calls (e.g. aggregates) aren't supported
+                pos -= 2;
+                throw unsupported();
+            }
+            if (acceptSymbol(".")) {
+                item.qualifier = first;
+                if (!acceptSymbol("*")) {
+                    item.column = identifier();
+                }
+            } else {
+                item.column = first;
+            }
+            if (item.column != null && acceptWord("as")) {
+                item.label = identifier();
+            }
+            select.items.add(item);
+        } while (acceptSymbol(","));
+        // Tables
+        expectWord("from");
+        select.from.add(tableRef());
+        while (true) {
+            if (acceptWord("inner")) {
+                expectWord("join");
+            } else if (!acceptWord("join")) {
+                break;
+            }
+            select.from.add(tableRef());
+            expectWord("on");
+            select.conditions.add(condition());
+            while (acceptWord("and")) {
+                select.conditions.add(condition());
+            }
+        }
+        if (acceptWord("where")) {
+            conditions(select.conditions);
+        }
+        if (acceptWord("order")) {
+            expectWord("by");
+            do {
+                Order order = new Order();
+                order.column = operand();
+                if (!order.column.isColumn()) {
+                    throw unsupported();
+                }
+                if (acceptWord("desc")) {
+                    order.descending = true;
+                } else {
+                    acceptWord("asc");
+                }
+                select.orderBy.add(order);
+            } while (acceptSymbol(","));
+        }
+        if (acceptWord("fetch")) {
+            if (!acceptWord("first")) {
+                expectWord("next");
+            }
+            select.limit = operand();
+            if (!acceptWord("rows")) {
+                expectWord("row");
+            }
+            expectWord("only");
+        }
+        if (acceptWord("for")) {
+            // Transactions hold the write lock throughout, so there's nothing more to lock
+            expectWord("update");
+        }
+        return select;
+    }
+
+    private TableRef tableRef() throws SQLException {
+        TableRef ref = new TableRef();
+        ref.table = identifier();
+        ref.alias = ref.table;
+        if (!atKeyword()) {
+            ref.alias = identifier();
+        }
+        return ref;
+    }
+
+    private Insert parseInsert() throws SQLException {
+        Insert insert = new Insert();
+        expectWord("into");
+        insert.table = identifier();
+        expectSymbol("(");
+        do {
+            insert.columns.add(identifier());
+        } while (acceptSymbol(","));
+        expectSymbol(")");
+        expectWord("values");
+        expectSymbol("(");
+        do {
+            insert.values.add(operand());
+        } while (acceptSymbol(","));
+        expectSymbol(")");
+        if (insert.columns.size() != insert.values.size()) {
+            throw new SQLSyntaxErrorException("Column and value counts differ in: " + sql);
+        }
+        return insert;
+    }
+
+    private Update parseUpdate() throws SQLException {
+        Update update = new Update();
+        update.table = identifier();
+        expectWord("set");
+        do {
+            update.columns.add(identifier());
+            expectSymbol("=");
+            update.values.add(operand());
+        } while (acceptSymbol(","));
+        if (acceptWord("where")) {
+            conditions(update.conditions);
+        }
+        return update;
+    }
+
+    private Delete parseDelete() throws SQLException {
+        Delete delete = new Delete();
+        expectWord("from");
+        delete.table = identifier();
+        if (acceptWord("where")) {
+            conditions(delete.conditions);
+        }
+        return delete;
+    }
+
+    private void conditions(List<Condition> conditions) throws SQLException {
+        do {
+            conditions.add(condition());
+        } while (acceptWord("and"));
+    }
+
+    private Condition condition() throws SQLException {
+        Condition condition = new Condition();
+        condition.left = operand();
+        if (acceptWord("in")) {
+            condition.op = "in";
+            expectSymbol("(");
+            do {
+                condition.right.add(operand());
+            } while (acceptSymbol(","));
+            expectSymbol(")");
+            return condition;
+        }
+        if (kind() != SYMBOL) {
+            throw unsupported();
+        }
+        String op = texts.get(pos++);
+        switch (op) {
+            case "=":
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+            case "<>":
+                condition.op = op;
+                break;
+            case "!=":
+                condition.op = "<>";
+                break;
+            default:
+                pos--;
+                throw unsupported();
+        }
+        condition.right.add(operand());
+        return condition;
+    }
+
+    private Operand operand() throws SQLException {
+        Operand operand = new Operand();
+        switch (kind()) {
+            case PARAM:
+                operand.param = paramCount++;
+                pos++;
+                return operand;
+            case STRING:
+                operand.literal = texts.get(pos++);
+                return operand;
+            case NUMBER:
+                operand.literal = MemoryStore.normalize(Long.parseLong(texts.get(pos++)));
+                return operand;
+            case WORD:
+                if (acceptWord("null")) {
+                    return operand;
+                }
+                String first = identifier();
+                if (acceptSymbol(".")) {
+                    operand.qualifier = first;
+                    operand.column = identifier();
+                } else {
+                    operand.column = first;
+                }
+                return operand;
+            default:
+                throw unsupported();
+        }
+    }
+}
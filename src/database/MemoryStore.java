@@ -0,0 +1,1474 @@
+package database;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * In-process storage engine holding the application's tables in memory.
+ *
+ * Mirrors the tables of `schema_and_data.sql` (including identity ids, foreign keys with cascading
+ * deletes, and the unique meal plan day), with hash indexes on every primary key and foreign key
+ * column. Queries are written in the SQL subset understood by `MemorySql`; parsed statements are
+ * cached by SQL text.
+ *
+ * Reads share a lock, and writes (and whole transactions) hold it exclusively, so transactions are
+ * serializable. Set the `recipe_mgmt.memory.seed` system property to a SQL script (e.g.
+ * `schema_and_data.sql`) to load its `insert` statements on startup.
+ */
+public class MemoryStore implements DataStore {
+
+    /**
+     * Foreign key from a child table column to the id of a parent table.
+     */
+    static class ForeignKey {
+
+        final MemoryTable child;
+        final int childColumn;
+        final MemoryTable parent;
+
+        ForeignKey(MemoryTable child, String childColumn, MemoryTable parent) {
+            this.child = child;
+            this.childColumn = child.column(childColumn);
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Rows returned by a select.
+     */
+    static class Result {
+
+        final String[] labels;
+        final List<Object[]> rows;
+
+        Result(String[] labels, List<Object[]> rows) {
+            this.labels = labels;
+            this.rows = rows;
+        }
+    }
+
+    // SQL script whose inserts are loaded into a new store (if set)
+    static final String SEED_SCRIPT = System.getProperty("recipe_mgmt.memory.seed");
+
+    // Tables by lower case name
+    final LinkedHashMap<String, MemoryTable> tables = new LinkedHashMap<>();
+    final ArrayList<ForeignKey> foreignKeys = new ArrayList<>();
+
+    // Parsed statements by SQL text
+    private final ConcurrentHashMap<String, MemorySql.Statement> parsed = new ConcurrentHashMap<>();
+    // Shared by reads, exclusive for writes and transactions
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Actions that undo the changes of the transaction open on each thread (null if none)
+    private final ThreadLocal<ArrayList<Runnable>> undoLog = new ThreadLocal<>();
+    // Actions waiting for the transaction open on each thread to end
+    private final TransactionCallbacks callbacks = new TransactionCallbacks();
+
+    /**
+     * Create the application's (empty) tables, then load the seed script if one is configured.
+     *
+     * @throws SQLException if the seed script can't be loaded
+     */
+    public MemoryStore() throws SQLException {
+        this(SEED_SCRIPT);
+    }
+
+    /**
+     * Create the application's (empty) tables, then load a seed script.
+     *
+     * @param seedScript path of the script to load, or null for none
+     * @throws SQLException if the seed script can't be loaded
+     */
+    MemoryStore(String seedScript) throws SQLException {
+        MemoryTable nutritionFacts = addTable(
+            "NutritionFacts",
+            new String[] { "id", "calories", "sugar", "protein", "sodium", "fat" },
+            new String[] { "id" },
+            true
+        );
+        MemoryTable foodItem = addTable(
+            "FoodItem",
+            new String[] { "id", "name", "foodGroup", "units", "nutritionFactsId" },
+            new String[] { "id" },
+            true
+        );
+        foodItem.setDefault("units", 0);
+        MemoryTable recipe = addTable(
+            "Recipe",
+            new String[] { "id", "name", "instructions", "category" },
+            new String[] { "id" },
+            true
+        );
+        MemoryTable recipeFoodItem = addTable(
+            "RecipeFoodItem",
+            new String[] { "recipeId", "foodItemId" },
+            new String[] { "recipeId", "foodItemId" },
+            false
+        );
+        MemoryTable mealPlan = addTable(
+            "MealPlan",
+            new String[] { "id", "name", "day" },
+            new String[] { "id" },
+            true
+        );
+        mealPlan.addUnique("day");
+        MemoryTable recipeMealPlan = addTable(
+            "RecipeMealPlan",
+            new String[] { "recipeId", "mealPlanId", "meal" },
+            new String[] { "recipeId", "mealPlanId" },
+            false
+        );
+        MemoryTable foodItemDemand = addTable(
+            "FoodItemDemand",
+            new String[] { "foodItemId", "required", "shortfall" },
+            new String[] { "foodItemId" },
+            false
+        );
+        addTable(
+            "FoodItemDemandState",
+            new String[] { "id", "built" },
+            new String[] { "id" },
+            false
+        );
+        addForeignKey(foodItem, "nutritionFactsId", nutritionFacts);
+        addForeignKey(recipeFoodItem, "recipeId", recipe);
+        addForeignKey(recipeFoodItem, "foodItemId", foodItem);
+        addForeignKey(recipeMealPlan, "recipeId", recipe);
+        addForeignKey(recipeMealPlan, "mealPlanId", mealPlan);
+        addForeignKey(foodItemDemand, "foodItemId", foodItem);
+        // Load seed data
+        if (seedScript != null) {
+            loadScript(Paths.get(seedScript));
+        }
+    }
+
+    /**
+     * Add an empty table.
+     */
+    private MemoryTable addTable(
+        String name,
+        String[] columns,
+        String[] primaryKey,
+        boolean identity
+    ) {
+        MemoryTable table = new MemoryTable(name, columns, primaryKey, identity);
+        tables.put(name.toLowerCase(), table);
+        return table;
+    }
+
+    /**
+     * Add a cascading foreign key (and a hash index on its column).
+     */
+    private void addForeignKey(MemoryTable child, String childColumn, MemoryTable parent) {
+        child.addIndex(childColumn);
+        foreignKeys.add(new ForeignKey(child, childColumn, parent));
+    }
+
+    /**
+     * Run every `insert` statement of a SQL script in one transaction (other statements are
+     * skipped).
+     *
+     * @param script path to the script
+     * @throws SQLException if the script can't be read or an insert fails
+     */
+    public void loadScript(Path script) throws SQLException {
+        String text;
+        try {
+            text = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Couldn't read SQL script " + script, e);
+        }
+        inTransaction(
+            db -> {
+                for (String statement : splitScript(text)) {
+                    if (statement.toLowerCase().startsWith("insert")) {
+                        db.modify(statement);
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Split a SQL script into statements on semicolons outside of string literals, dropping
+     * comment lines.
+     */
+    static List<String> splitScript(String text) {
+        ArrayList<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inString = false;
+        for (String line : text.split("\n", -1)) {
+            if (!inString && line.trim().startsWith("--")) {
+                continue;
+            }
+            for (char c : (line + "\n").toCharArray()) {
+                if (c == '\'') {
+                    inString = !inString;
+                }
+                if (c == ';' && !inString) {
+                    statements.add(current.toString().trim());
+                    current.setLength(0);
+                } else {
+                    current.append(c);
+                }
+            }
+        }
+        if (!current.toString().trim().isEmpty()) {
+            statements.add(current.toString().trim());
+        }
+        return statements;
+    }
+
+    /**
+     * Convert a value to the type the engine stores it as (whole numbers become `Integer` when
+     * they fit, else `Long`).
+     *
+     * @param value value to convert
+     * @return stored value
+     */
+    static Object normalize(Object value) {
+        if (value instanceof Integer || value == null || value instanceof String) {
+            return value;
+        }
+        if (value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            return number == (int) number ? (Object) (int) number : (Object) number;
+        }
+        if (value instanceof BigInteger) {
+            return normalize(((BigInteger) value).longValue());
+        }
+        if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            return decimal.scale() <= 0 || decimal.stripTrailingZeros().scale() <= 0
+                ? normalize(decimal.longValue())
+                : decimal.doubleValue();
+        }
+        if (value instanceof Character) {
+            return value.toString();
+        }
+        return value;
+    }
+
+    /**
+     * Get a table by name.
+     *
+     * @throws SQLException if there's no such table
+     */
+    MemoryTable table(String name) throws SQLException {
+        MemoryTable table = tables.get(name.toLowerCase());
+        if (table == null) {
+            throw new SQLSyntaxErrorException("Table or view does not exist: " + name);
+        }
+        return table;
+    }
+
+    /**
+     * Parse a statement (or get it from the cache).
+     */
+    MemorySql.Statement parse(String sql) throws SQLException {
+        MemorySql.Statement stmt = parsed.get(sql);
+        if (stmt == null) {
+            stmt = MemorySql.parse(sql);
+            parsed.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Parse a statement and bind its parameters.
+     *
+     * @return bound parameter values
+     */
+    private Object[] bind(
+        MemorySql.Statement stmt,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        JdbcProxies.ParameterCapture capture = new JdbcProxies.ParameterCapture();
+        setValues.accept(capture.statement);
+        return capture.values(stmt.paramCount);
+    }
+
+    /**
+     * Run a select, returning every row.
+     */
+    Result query(String sql, ThrowingConsumer<PreparedStatement, SQLException> setValues)
+        throws SQLException {
+        MemorySql.Statement stmt = parse(sql);
+        if (!(stmt instanceof MemorySql.Select)) {
+            throw new SQLSyntaxErrorException("Not a select statement: " + sql);
+        }
+        Object[] params = bind(stmt, setValues);
+        lock.readLock().lock();
+        try {
+            return runSelect((MemorySql.Select) stmt, params);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void select(
+        String sql,
+        ThrowingConsumer<ResultSet, SQLException> applyToRow,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        long start = System.nanoTime();
+        long rowCount = 0;
+        boolean failed = true;
+        try {
+            // Rows are copied out before calling back, so callbacks can write to the store
+            Result result = query(sql, setValues);
+            try (ResultSet rs = JdbcProxies.resultSet(result.labels, result.rows)) {
+                while (rs.next()) {
+                    rowCount++;
+                    applyToRow.accept(rs);
+                }
+            }
+            failed = false;
+        } finally {
+            QueryStats.record(this, sql, setValues, start, rowCount, failed);
+        }
+    }
+
+    @Override
+    public <T> Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow,
+        int fetchSize
+    )
+        throws SQLException {
+        // The rows are already in memory, so the fetch size doesn't matter
+        long start = System.nanoTime();
+        Result result;
+        try {
+            result = query(sql, setValues);
+        } catch (SQLException | RuntimeException e) {
+            QueryStats.record(this, sql, setValues, start, 0, true);
+            throw e;
+        }
+        ResultSet rs = JdbcProxies.resultSet(result.labels, result.rows);
+        ResultSetSpliterator<T> rows = new ResultSetSpliterator<>(
+            rs,
+            () -> {},
+            mapRow,
+            this,
+            sql,
+            setValues,
+            start
+        );
+        return StreamSupport.stream(rows, false).onClose(rows::close);
+    }
+
+    @Override
+    public void modify(String sql, ThrowingConsumer<PreparedStatement, SQLException> setValues)
+        throws SQLException {
+        MemorySql.Statement stmt = parse(sql);
+        Object[] params = bind(stmt, setValues);
+        change(
+            sql,
+            setValues,
+            db -> {
+                if (stmt instanceof MemorySql.Insert) {
+                    return runInsert((MemorySql.Insert) stmt, params);
+                } else if (stmt instanceof MemorySql.Update) {
+                    return runUpdate((MemorySql.Update) stmt, params);
+                } else if (stmt instanceof MemorySql.Delete) {
+                    return runDelete((MemorySql.Delete) stmt, params);
+                }
+                throw new SQLSyntaxErrorException("Not a modifying statement: " + sql);
+            }
+        );
+    }
+
+    /**
+     * Run a change in its own transaction (unless one is already open), recording it in
+     * `QueryStats`.
+     *
+     * @param sql statement (or equivalent SQL) to record the change as
+     * @param setValues lambda binding the statement's parameters (or null if there isn't one)
+     * @param work lambda making the change, returning the number of rows affected
+     * @return number of rows affected
+     */
+    private int change(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ThrowingFunction<DataStore, Integer, SQLException> work
+    )
+        throws SQLException {
+        long start = System.nanoTime();
+        int rowCount = 0;
+        boolean failed = true;
+        try {
+            rowCount = computeInTransaction(work);
+            failed = false;
+            return rowCount;
+        } finally {
+            QueryStats.record(this, sql, setValues, start, rowCount, failed);
+        }
+    }
+
+    @Override
+    public Optional<Integer> insert(
+        String tableName,
+        String[] columns,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        boolean getGeneratedKey
+    )
+        throws SQLException {
+        MemoryTable table = table(tableName);
+        JdbcProxies.ParameterCapture capture = new JdbcProxies.ParameterCapture();
+        setValues.accept(capture.statement);
+        Object[] values = capture.values(columns.length);
+        Object[][] inserted = new Object[1][];
+        change(
+            Database.insertSql(tableName, columns),
+            setValues,
+            db -> {
+                inserted[0] = insertRow(table, Arrays.asList(columns), values);
+                return 1;
+            }
+        );
+        if (getGeneratedKey && table.identity) {
+            return Optional.of((Integer) inserted[0][table.primaryKey[0]]);
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public <T> T insertReturning(
+        String tableName,
+        String[] columns,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        String[] returnColumns,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow
+    )
+        throws SQLException {
+        MemoryTable table = table(tableName);
+        int[] positions = new int[returnColumns.length];
+        for (int i = 0; i < returnColumns.length; i++) {
+            positions[i] = table.column(returnColumns[i]);
+            if (positions[i] < 0) {
+                throw new SQLSyntaxErrorException(
+                    String.format("Invalid column %s of %s", returnColumns[i], table.name)
+                );
+            }
+        }
+        JdbcProxies.ParameterCapture capture = new JdbcProxies.ParameterCapture();
+        setValues.accept(capture.statement);
+        Object[] values = capture.values(columns.length);
+        Object[] returned = new Object[returnColumns.length];
+        change(
+            Database.insertSql(tableName, columns),
+            setValues,
+            db -> {
+                Object[] row = insertRow(table, Arrays.asList(columns), values);
+                for (int i = 0; i < positions.length; i++) {
+                    returned[i] = row[positions[i]];
+                }
+                return 1;
+            }
+        );
+        try (
+            ResultSet rs = JdbcProxies.resultSet(
+                returnColumns,
+                Collections.singletonList(returned)
+            )
+        ) {
+            rs.next();
+            return mapRow.apply(rs);
+        }
+    }
+
+    @Override
+    public <T> int insertBatch(
+        String tableName,
+        String[] columns,
+        List<T> items,
+        ThrowingBiConsumer<PreparedStatement, T, SQLException> bindRow,
+        int batchSize
+    )
+        throws SQLException {
+        MemoryTable table = table(tableName);
+        List<String> columnList = Arrays.asList(columns);
+        // Bind every row up front, then insert them all at once
+        ArrayList<Object[]> rows = new ArrayList<>();
+        JdbcProxies.ParameterCapture capture = new JdbcProxies.ParameterCapture();
+        for (T item : items) {
+            capture.boundValues().clear();
+            bindRow.accept(capture.statement, item);
+            rows.add(capture.values(columns.length));
+        }
+        return change(
+            Database.insertSql(tableName, columns),
+            null,
+            db -> {
+                for (Object[] values : rows) {
+                    insertRow(table, columnList, values);
+                }
+                return rows.size();
+            }
+        );
+    }
+
+    @Override
+    public void update(
+        String tableName,
+        String[] columns,
+        int id,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        MemoryTable table = table(tableName);
+        JdbcProxies.ParameterCapture capture = new JdbcProxies.ParameterCapture();
+        setValues.accept(capture.statement);
+        Object[] values = capture.values(columns.length);
+        change(
+            Database.updateSql(tableName, columns),
+            stmt -> {
+                setValues.accept(stmt);
+                stmt.setInt(columns.length + 1, id);
+            },
+            db -> {
+                Object[] row = table.get(id);
+                if (row == null) {
+                    return 0;
+                }
+                updateRow(table, row, Arrays.asList(columns), values);
+                return 1;
+            }
+        );
+    }
+
+    @Override
+    public void delete(String tableName, int id) throws SQLException {
+        MemoryTable table = table(tableName);
+        Query query = Query.deleteFrom(tableName).where("id", "=", id);
+        change(
+            query.sql(),
+            query.binder(),
+            db -> {
+                Object[] row = table.get(id);
+                if (row == null) {
+                    return 0;
+                }
+                deleteRow(table, row);
+                return 1;
+            }
+        );
+    }
+
+    /**
+     * Lists are just matched against a hash index, so there's no need to split them up much.
+     */
+    @Override
+    public int maxInListSize() {
+        return 65536;
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return undoLog.get() != null;
+    }
+
+    /**
+     * Tables start over (from the seed script) on every run, so nothing derived from them should be
+     * kept.
+     */
+    @Override
+    public String identity() {
+        return null;
+    }
+
+    @Override
+    public void afterCommit(Runnable action) {
+        callbacks.afterCommit(action);
+    }
+
+    @Override
+    public void afterRollback(Runnable action) {
+        callbacks.afterRollback(action);
+    }
+
+    @Override
+    public <T> T computeInTransaction(
+        int isolationLevel,
+        ThrowingFunction<DataStore, T, SQLException> work
+    )
+        throws SQLException {
+        // Join the transaction that's already open, if there is one
+        if (undoLog.get() != null) {
+            return work.apply(this);
+        }
+        // Transactions hold the write lock throughout, so they're always serializable
+        lock.writeLock().lock();
+        ArrayList<Runnable> undo = new ArrayList<>();
+        undoLog.set(undo);
+        callbacks.begin();
+        boolean committed = false;
+        try {
+            T result;
+            long ticket;
+            try {
+                result = work.apply(this);
+                ticket = commit();
+            } catch (Throwable e) {
+                // Undo changes, most recent first
+                for (int i = undo.size() - 1; i >= 0; i--) {
+                    undo.get(i).run();
+                }
+                rollback();
+                throw e;
+            } finally {
+                undoLog.remove();
+                lock.writeLock().unlock();
+            }
+            awaitCommitted(ticket);
+            committed = true;
+            return result;
+        } finally {
+            // Treat commits that didn't complete as rolled back (forgetting cached state is safe)
+            callbacks.end(committed);
+        }
+    }
+
+    /**
+     * Called with the write lock held once a transaction's changes are final.
+     *
+     * @return ticket to pass to `awaitCommitted()` once the lock has been released
+     * @throws SQLException if the changes can't be made final (they're then undone)
+     */
+    long commit() throws SQLException {
+        return 0;
+    }
+
+    /**
+     * Called with the write lock held after a transaction's changes have been undone.
+     */
+    void rollback() {}
+
+    /**
+     * Called after a transaction has committed and released the write lock.
+     *
+     * @param ticket value returned by `commit()`
+     * @throws SQLException if the commit didn't complete
+     */
+    void awaitCommitted(long ticket) throws SQLException {}
+
+    /**
+     * Record how to undo a change made in the current transaction.
+     */
+    private void recordUndo(Runnable action) {
+        ArrayList<Runnable> undo = undoLog.get();
+        if (undo != null) {
+            undo.add(action);
+        }
+    }
+
+    /**
+     * Called with the write lock held after a row has been inserted.
+     */
+    void rowInserted(MemoryTable table, Object[] row) {}
+
+    /**
+     * Called with the write lock held after a row has been updated in place.
+     */
+    void rowUpdated(MemoryTable table, Object[] row, Object[] old) {}
+
+    /**
+     * Called with the write lock held after a row has been deleted.
+     */
+    void rowDeleted(MemoryTable table, Object[] row) {}
+
+    /**
+     * Insert a row, filling in defaults and a generated id.
+     *
+     * @param table table to insert into
+     * @param columns names of the given columns
+     * @param values values of the given columns
+     * @return inserted row
+     * @throws SQLException if the row breaks a constraint
+     */
+    Object[] insertRow(MemoryTable table, List<String> columns, Object[] values)
+        throws SQLException {
+        Object[] row = table.defaults.clone();
+        boolean[] given = new boolean[row.length];
+        for (int i = 0; i < columns.size(); i++) {
+            int col = table.column(columns.get(i));
+            if (col < 0) {
+                throw new SQLSyntaxErrorException(
+                    String.format("Invalid column %s of %s", columns.get(i), table.name)
+                );
+            }
+            row[col] = normalize(values[i]);
+            given[col] = true;
+        }
+        if (table.identity && !given[table.primaryKey[0]]) {
+            row[table.primaryKey[0]] = table.generateId();
+        }
+        checkRow(table, row);
+        table.insert(row);
+        recordUndo(() -> table.remove(row));
+        rowInserted(table, row);
+        return row;
+    }
+
+    /**
+     * Change some column values of a row.
+     */
+    private void updateRow(MemoryTable table, Object[] row, List<String> columns, Object[] values)
+        throws SQLException {
+        Object[] old = row.clone();
+        Object[] updated = row.clone();
+        for (int i = 0; i < columns.size(); i++) {
+            int col = table.column(columns.get(i));
+            if (col < 0) {
+                throw new SQLSyntaxErrorException(
+                    String.format("Invalid column %s of %s", columns.get(i), table.name)
+                );
+            }
+            updated[col] = normalize(values[i]);
+        }
+        checkRow(table, updated);
+        table.replace(row, updated, true);
+        recordUndo(
+            () -> {
+                try {
+                    table.replace(row, old, false);
+                } catch (SQLException e) {
+                    // Unchecked replacements don't throw
+                }
+            }
+        );
+        rowUpdated(table, row, old);
+    }
+
+    /**
+     * Delete a row, and any rows that reference it.
+     */
+    private void deleteRow(MemoryTable table, Object[] row) {
+        for (ForeignKey fk : foreignKeys) {
+            if (fk.parent == table) {
+                Collection<Object[]> children = fk.child.lookup(
+                    fk.childColumn,
+                    row[table.primaryKey[0]]
+                );
+                for (Object[] child : new ArrayList<>(children)) {
+                    deleteRow(fk.child, child);
+                }
+            }
+        }
+        table.remove(row);
+        recordUndo(() -> table.add(row));
+        rowDeleted(table, row);
+    }
+
+    /**
+     * Check a row's not null and foreign key constraints.
+     */
+    private void checkRow(MemoryTable table, Object[] row) throws SQLException {
+        for (int i = 0; i < row.length; i++) {
+            if (row[i] == null) {
+                throw new SQLIntegrityConstraintViolationException(
+                    String.format("Cannot insert NULL into %s.%s", table.name, table.columns[i])
+                );
+            }
+        }
+        for (ForeignKey fk : foreignKeys) {
+            if (fk.child == table && fk.parent.get(row[fk.childColumn]) == null) {
+                throw new SQLIntegrityConstraintViolationException(
+                    String.format(
+                        "Parent key %s not found in %s for %s.%s",
+                        row[fk.childColumn],
+                        fk.parent.name,
+                        table.name,
+                        table.columns[fk.childColumn]
+                    )
+                );
+            }
+        }
+    }
+
+    private int runInsert(MemorySql.Insert insert, Object[] params) throws SQLException {
+        Object[] values = new Object[insert.values.size()];
+        for (int i = 0; i < values.length; i++) {
+            MemorySql.Operand operand = insert.values.get(i);
+            if (operand.isColumn()) {
+                throw new SQLFeatureNotSupportedException("Insert values must be constants");
+            }
+            values[i] = operand.param >= 0 ? params[operand.param] : operand.literal;
+        }
+        insertRow(table(insert.table), insert.columns, values);
+        return 1;
+    }
+
+    private int runUpdate(MemorySql.Update update, Object[] params) throws SQLException {
+        MemoryTable table = table(update.table);
+        Object[] values = new Object[update.values.size()];
+        for (int i = 0; i < values.length; i++) {
+            MemorySql.Operand operand = update.values.get(i);
+            if (operand.isColumn()) {
+                throw new SQLFeatureNotSupportedException("Update values must be constants");
+            }
+            values[i] = operand.param >= 0 ? params[operand.param] : operand.literal;
+        }
+        List<Object[]> rows = matchRows(table, update.conditions, params);
+        for (Object[] row : rows) {
+            updateRow(table, row, update.columns, values);
+        }
+        return rows.size();
+    }
+
+    private int runDelete(MemorySql.Delete delete, Object[] params) throws SQLException {
+        MemoryTable table = table(delete.table);
+        int deleted = 0;
+        for (Object[] row : matchRows(table, delete.conditions, params)) {
+            // Might have already been deleted by a cascade
+            if (table.get(table.key(row)) == row) {
+                deleteRow(table, row);
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Find the rows of a single table that match some conditions.
+     */
+    private List<Object[]> matchRows(
+        MemoryTable table,
+        List<MemorySql.Condition> conditions,
+        Object[] params
+    )
+        throws SQLException {
+        Plan plan = singleTablePlan(table.name, conditions);
+        ArrayList<Object[]> rows = new ArrayList<>();
+        for (Object[][] joined : plan.run(params)) {
+            rows.add(joined[0]);
+        }
+        return rows;
+    }
+
+    /**
+     * Plan finding the rows of a single table that match some conditions.
+     */
+    private Plan singleTablePlan(String tableName, List<MemorySql.Condition> conditions)
+        throws SQLException {
+        MemorySql.TableRef ref = new MemorySql.TableRef();
+        ref.table = table(tableName).name;
+        ref.alias = ref.table;
+        return new Plan(Collections.singletonList(ref), conditions);
+    }
+
+    /**
+     * Run a select with its parameters bound.
+     */
+    private Result runSelect(MemorySql.Select select, Object[] params) throws SQLException {
+        Plan plan = new Plan(select.from, select.conditions);
+        List<Object[][]> joined = plan.run(params);
+        // Work out the output columns
+        ArrayList<String> labels = new ArrayList<>();
+        ArrayList<int[]> sources = new ArrayList<>();
+        for (MemorySql.SelectItem item : select.items) {
+            if (item.column == null) {
+                // `*` or `t.*`
+                for (int t = 0; t < plan.tables.length; t++) {
+                    if (item.qualifier == null || plan.matchesAlias(t, item.qualifier)) {
+                        for (int c = 0; c < plan.tables[t].columns.length; c++) {
+                            labels.add(plan.tables[t].columns[c]);
+                            sources.add(new int[] { t, c });
+                        }
+                    }
+                }
+            } else {
+                MemorySql.Operand operand = new MemorySql.Operand();
+                operand.qualifier = item.qualifier;
+                operand.column = item.column;
+                int[] source = plan.resolve(operand);
+                labels.add(
+                    item.label != null ? item.label : plan.tables[source[0]].columns[source[1]]
+                );
+                sources.add(source);
+            }
+        }
+        // Project each row
+        ArrayList<Object[]> projected = new ArrayList<>(joined.size());
+        for (Object[][] row : joined) {
+            Object[] values = new Object[sources.size()];
+            for (int i = 0; i < values.length; i++) {
+                int[] source = sources.get(i);
+                values[i] = row[source[0]][source[1]];
+            }
+            projected.add(values);
+        }
+        // Sort
+        if (!select.orderBy.isEmpty()) {
+            ArrayList<Comparator<Integer>> keys = new ArrayList<>();
+            for (MemorySql.Order order : select.orderBy) {
+                Comparator<Integer> key;
+                int label = labelPosition(labels, order.column);
+                if (order.column.qualifier == null && label >= 0) {
+                    key = (a, b) -> compareForSort(projected.get(a)[label], projected.get(b)[label]);
+                } else {
+                    int[] source = plan.resolve(order.column);
+                    key =
+                        (a, b) ->
+                            compareForSort(
+                                joined.get(a)[source[0]][source[1]],
+                                joined.get(b)[source[0]][source[1]]
+                            );
+                }
+                keys.add(order.descending ? key.reversed() : key);
+            }
+            Integer[] positions = new Integer[projected.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i;
+            }
+            Arrays.sort(
+                positions,
+                (a, b) -> {
+                    for (Comparator<Integer> key : keys) {
+                        int cmp = key.compare(a, b);
+                        if (cmp != 0) {
+                            return cmp;
+                        }
+                    }
+                    return 0;
+                }
+            );
+            ArrayList<Object[]> sorted = new ArrayList<>(projected.size());
+            for (int position : positions) {
+                sorted.add(projected.get(position));
+            }
+            projected.clear();
+            projected.addAll(sorted);
+        }
+        // Remove duplicates
+        List<Object[]> rows = projected;
+        if (select.distinct) {
+            LinkedHashMap<List<Object>, Object[]> unique = new LinkedHashMap<>();
+            for (Object[] row : projected) {
+                unique.putIfAbsent(Arrays.asList(row), row);
+            }
+            rows = new ArrayList<>(unique.values());
+        }
+        // Limit
+        if (select.limit != null) {
+            Object limit = select.limit.param >= 0
+                ? params[select.limit.param]
+                : select.limit.literal;
+            int max = ((Number) limit).intValue();
+            if (rows.size() > max) {
+                rows = new ArrayList<>(rows.subList(0, Math.max(0, max)));
+            }
+        }
+        return new Result(labels.toArray(new String[0]), rows);
+    }
+
+    /**
+     * @return position of an output label matching an unqualified column, or -1
+     */
+    private static int labelPosition(List<String> labels, MemorySql.Operand column) {
+        for (int i = 0; i < labels.size(); i++) {
+            if (labels.get(i).equalsIgnoreCase(column.column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compare two values, with nulls last.
+     */
+    private static int compareForSort(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : 1) : -1;
+        }
+        return compareValues(a, b);
+    }
+
+    /**
+     * Compare two non-null values (numbers numerically, everything else as strings).
+     */
+    static int compareValues(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            if (a instanceof Double || b instanceof Double) {
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            }
+            return Long.compare(((Number) a).longValue(), ((Number) b).longValue());
+        }
+        if (a instanceof Number || b instanceof Number) {
+            // Compare a number with a numeric string as numbers
+            try {
+                return Double.compare(
+                    Double.parseDouble(a.toString()),
+                    Double.parseDouble(b.toString())
+                );
+            } catch (NumberFormatException e) {
+                // Fall back to comparing as strings
+            }
+        }
+        return a.toString().compareTo(b.toString());
+    }
+
+    /**
+     * How a select's tables are joined and filtered.
+     *
+     * Tables are visited starting from one that can be looked up through a hash index (a
+     * condition like `t.id = ?`), then following join conditions, using a hash index on the join
+     * column (or a hash table built on the fly) to find matching rows. Each condition is checked as
+     * soon as all the tables it mentions have been visited.
+     */
+    class Plan {
+
+        final List<MemorySql.TableRef> from;
+        final MemoryTable[] tables;
+        final List<MemorySql.Condition> conditions;
+        // Column positions ({table, column}) of each condition's left side and right side values
+        private final int[][] leftColumns;
+        private final int[][][] rightColumns;
+        // Order tables are visited in
+        final int[] order;
+        // For each visited table after the first: the condition used to find its rows (or -1)
+        final int[] joinCondition;
+        // For each step: conditions to check once that step's table has been visited
+        private final ArrayList<ArrayList<Integer>> checks = new ArrayList<>();
+        // Condition used to look up the first table's rows (or -1 for a full scan)
+        final int driverCondition;
+        // Hash tables built on the fly for join columns without an index
+        private final HashMap<Integer, HashMap<Object, List<Object[]>>> builtHashes =
+            new HashMap<>();
+
+        Plan(List<MemorySql.TableRef> from, List<MemorySql.Condition> conditions)
+            throws SQLException {
+            this.from = from;
+            this.conditions = conditions;
+            tables = new MemoryTable[from.size()];
+            for (int i = 0; i < tables.length; i++) {
+                tables[i] = table(from.get(i).table);
+            }
+            // Resolve column references
+            leftColumns = new int[conditions.size()][];
+            rightColumns = new int[conditions.size()][][];
+            for (int i = 0; i < conditions.size(); i++) {
+                MemorySql.Condition condition = conditions.get(i);
+                leftColumns[i] = condition.left.isColumn() ? resolve(condition.left) : null;
+                rightColumns[i] = new int[condition.right.size()][];
+                for (int j = 0; j < condition.right.size(); j++) {
+                    MemorySql.Operand operand = condition.right.get(j);
+                    rightColumns[i][j] = operand.isColumn() ? resolve(operand) : null;
+                }
+            }
+            // Pick the first table: prefer one with an indexed lookup
+            int driver = -1;
+            int driverTable = 0;
+            for (int i = 0; i < conditions.size() && driver < 0; i++) {
+                if (isIndexedLookup(i)) {
+                    driver = i;
+                    driverTable = leftColumns[i][0];
+                }
+            }
+            driverCondition = driver;
+            // Visit the rest of the tables by following join conditions
+            order = new int[tables.length];
+            joinCondition = new int[tables.length];
+            boolean[] visited = new boolean[tables.length];
+            order[0] = driverTable;
+            joinCondition[0] = -1;
+            visited[driverTable] = true;
+            for (int step = 1; step < tables.length; step++) {
+                int next = -1;
+                int via = -1;
+                for (int i = 0; i < conditions.size(); i++) {
+                    int candidate = joinTarget(i, visited);
+                    if (candidate < 0) {
+                        continue;
+                    }
+                    int col = joinColumn(i, candidate)[1];
+                    // Prefer a join that can use an index
+                    if (
+                        next < 0 ||
+                        (tables[candidate].isIndexed(col) && !indexedJoin(via, next))
+                    ) {
+                        next = candidate;
+                        via = i;
+                    }
+                }
+                if (next < 0) {
+                    // No join condition, so take the next table in `from` order
+                    for (int t = 0; t < tables.length && next < 0; t++) {
+                        if (!visited[t]) {
+                            next = t;
+                        }
+                    }
+                }
+                order[step] = next;
+                joinCondition[step] = via;
+                visited[next] = true;
+            }
+            // Work out when each condition can be checked
+            for (int step = 0; step < tables.length; step++) {
+                checks.add(new ArrayList<>());
+            }
+            for (int i = 0; i < conditions.size(); i++) {
+                int last = 0;
+                for (int t : tablesOf(i)) {
+                    last = Math.max(last, stepOf(t));
+                }
+                checks.get(last).add(i);
+            }
+        }
+
+        /**
+         * Resolve a column reference to {table position, column position}.
+         */
+        int[] resolve(MemorySql.Operand operand) throws SQLException {
+            for (int t = 0; t < tables.length; t++) {
+                if (operand.qualifier == null || matchesAlias(t, operand.qualifier)) {
+                    int col = tables[t].column(operand.column);
+                    if (col >= 0) {
+                        return new int[] { t, col };
+                    }
+                }
+            }
+            throw new SQLSyntaxErrorException("Invalid identifier " + operand);
+        }
+
+        boolean matchesAlias(int t, String alias) {
+            return (
+                from.get(t).alias.equalsIgnoreCase(alias) ||
+                from.get(t).table.equalsIgnoreCase(alias)
+            );
+        }
+
+        private int stepOf(int table) {
+            for (int step = 0; step < order.length; step++) {
+                if (order[step] == table) {
+                    return step;
+                }
+            }
+            return 0;
+        }
+
+        private HashSet<Integer> tablesOf(int i) {
+            HashSet<Integer> result = new HashSet<>();
+            if (leftColumns[i] != null) {
+                result.add(leftColumns[i][0]);
+            }
+            for (int[] right : rightColumns[i]) {
+                if (right != null) {
+                    result.add(right[0]);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * @return whether a condition is `indexed column = constant` or `indexed column in
+         *     (constants)`
+         */
+        private boolean isIndexedLookup(int i) {
+            MemorySql.Condition condition = conditions.get(i);
+            if (leftColumns[i] == null || !(condition.op.equals("=") || condition.op.equals("in"))) {
+                return false;
+            }
+            for (int[] right : rightColumns[i]) {
+                if (right != null) {
+                    return false;
+                }
+            }
+            return tables[leftColumns[i][0]].isIndexed(leftColumns[i][1]);
+        }
+
+        /**
+         * @return the unvisited table a `a.x = b.y` condition leads to from a visited one, or -1
+         */
+        private int joinTarget(int i, boolean[] visited) {
+            MemorySql.Condition condition = conditions.get(i);
+            if (
+                !condition.op.equals("=") || leftColumns[i] == null || rightColumns[i][0] == null
+            ) {
+                return -1;
+            }
+            int left = leftColumns[i][0];
+            int right = rightColumns[i][0][0];
+            if (visited[left] && !visited[right]) {
+                return right;
+            }
+            if (visited[right] && !visited[left]) {
+                return left;
+            }
+            return -1;
+        }
+
+        /**
+         * @return {table, column} of a join condition's side that belongs to `table`
+         */
+        private int[] joinColumn(int i, int table) {
+            return leftColumns[i][0] == table ? leftColumns[i] : rightColumns[i][0];
+        }
+
+        /**
+         * @return {table, column} of a join condition's side that doesn't belong to `table`
+         */
+        private int[] otherColumn(int i, int table) {
+            return leftColumns[i][0] == table ? rightColumns[i][0] : leftColumns[i];
+        }
+
+        private boolean indexedJoin(int i, int table) {
+            return tables[table].isIndexed(joinColumn(i, table)[1]);
+        }
+
+        /**
+         * Find the joined rows.
+         *
+         * @param params bound parameter values
+         * @return rows, with one table row per table in `from` order
+         */
+        List<Object[][]> run(Object[] params) throws SQLException {
+            ArrayList<Object[][]> out = new ArrayList<>();
+            // Rows of the first table
+            Collection<Object[]> first;
+            if (driverCondition >= 0) {
+                MemorySql.Condition condition = conditions.get(driverCondition);
+                LinkedHashSet<Object> keys = new LinkedHashSet<>();
+                for (MemorySql.Operand operand : condition.right) {
+                    keys.add(constant(operand, params));
+                }
+                int col = leftColumns[driverCondition][1];
+                if (keys.size() == 1) {
+                    first = tables[order[0]].lookup(col, keys.iterator().next());
+                } else {
+                    ArrayList<Object[]> rows = new ArrayList<>();
+                    for (Object key : keys) {
+                        rows.addAll(tables[order[0]].lookup(col, key));
+                    }
+                    first = rows;
+                }
+            } else {
+                first = tables[order[0]].rows();
+            }
+            for (Object[] row : first) {
+                Object[][] joined = new Object[tables.length][];
+                joined[order[0]] = row;
+                if (passes(0, joined, params)) {
+                    visit(1, joined, params, out);
+                }
+            }
+            return out;
+        }
+
+        private void visit(int step, Object[][] joined, Object[] params, List<Object[][]> out)
+            throws SQLException {
+            if (step == order.length) {
+                out.add(joined.clone());
+                return;
+            }
+            int t = order[step];
+            Collection<Object[]> candidates;
+            int via = joinCondition[step];
+            if (via >= 0) {
+                int[] own = joinColumn(via, t);
+                int[] other = otherColumn(via, t);
+                Object key = joined[other[0]][other[1]];
+                candidates = tables[t].lookup(own[1], key);
+                if (candidates == null) {
+                    candidates = builtHash(t, own[1]).getOrDefault(key, Collections.emptyList());
+                }
+            } else {
+                candidates = tables[t].rows();
+            }
+            for (Object[] row : candidates) {
+                joined[t] = row;
+                if (passes(step, joined, params)) {
+                    visit(step + 1, joined, params, out);
+                }
+            }
+            joined[t] = null;
+        }
+
+        /**
+         * Get (or build) a hash table of a table's rows by the value of a column.
+         */
+        private HashMap<Object, List<Object[]>> builtHash(int t, int col) {
+            return builtHashes.computeIfAbsent(
+                t * 1000 + col,
+                key -> {
+                    HashMap<Object, List<Object[]>> hash = new HashMap<>();
+                    for (Object[] row : tables[t].rows()) {
+                        hash.computeIfAbsent(row[col], k -> new ArrayList<>()).add(row);
+                    }
+                    return hash;
+                }
+            );
+        }
+
+        /**
+         * Check the conditions that become checkable at a step.
+         */
+        private boolean passes(int step, Object[][] joined, Object[] params) {
+            for (int i : checks.get(step)) {
+                if (!test(i, joined, params)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Object value(
+            MemorySql.Operand operand,
+            int[] column,
+            Object[][] joined,
+            Object[] params
+        ) {
+            return column != null ? joined[column[0]][column[1]] : constant(operand, params);
+        }
+
+        private boolean test(int i, Object[][] joined, Object[] params) {
+            MemorySql.Condition condition = conditions.get(i);
+            Object left = value(condition.left, leftColumns[i], joined, params);
+            if (left == null) {
+                return false;
+            }
+            if (condition.op.equals("in")) {
+                for (int j = 0; j < condition.right.size(); j++) {
+                    Object right = value(condition.right.get(j), rightColumns[i][j], joined, params);
+                    if (right != null && compareValues(left, right) == 0) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            Object right = value(condition.right.get(0), rightColumns[i][0], joined, params);
+            if (right == null) {
+                return false;
+            }
+            int cmp = compareValues(left, right);
+            switch (condition.op) {
+                case "=":
+                    return cmp == 0;
+                case "<>":
+                    return cmp != 0;
+                case "<":
+                    return cmp < 0;
+                case "<=":
+                    return cmp <= 0;
+                case ">":
+                    return cmp > 0;
+                default:
+                    return cmp >= 0;
+            }
+        }
+
+        /**
+         * Describe the plan (e.g. for an execution plan log).
+         */
+        List<String> describe() {
+            ArrayList<String> lines = new ArrayList<>();
+            for (int step = 0; step < order.length; step++) {
+                MemorySql.TableRef ref = from.get(order[step]);
+                String access;
+                if (step == 0) {
+                    access = driverCondition >= 0
+                        ? "HASH INDEX LOOKUP (" + conditions.get(driverCondition) + ")"
+                        : "FULL SCAN";
+                } else if (joinCondition[step] >= 0) {
+                    int via = joinCondition[step];
+                    access =
+                        (indexedJoin(via, order[step]) ? "HASH INDEX JOIN (" : "HASH JOIN (") +
+                        conditions.get(via) +
+                        ")";
+                } else {
+                    access = "NESTED LOOP (cross join)";
+                }
+                lines.add(
+                    String.format(
+                        "%d: %s %s (%d rows) %s",
+                        step,
+                        ref.table,
+                        ref.alias,
+                        tables[order[step]].size(),
+                        access
+                    )
+                );
+                for (int i : checks.get(step)) {
+                    if (i != driverCondition && i != joinCondition[step]) {
+                        lines.add("     FILTER " + conditions.get(i));
+                    }
+                }
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Get the value of a parameter or literal.
+     */
+    private static Object constant(MemorySql.Operand operand, Object[] params) {
+        return operand.param >= 0 ? params[operand.param] : operand.literal;
+    }
+
+    @Override
+    public List<String> explain(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        MemorySql.Statement stmt = parse(sql);
+        ArrayList<String> lines = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (stmt instanceof MemorySql.Select) {
+                MemorySql.Select select = (MemorySql.Select) stmt;
+                lines.addAll(new Plan(select.from, select.conditions).describe());
+            } else if (stmt instanceof MemorySql.Insert) {
+                lines.add("INSERT INTO " + table(((MemorySql.Insert) stmt).table).name);
+            } else if (stmt instanceof MemorySql.Update) {
+                MemorySql.Update update = (MemorySql.Update) stmt;
+                lines.add("UPDATE " + table(update.table).name);
+                lines.addAll(singleTablePlan(update.table, update.conditions).describe());
+            } else if (stmt instanceof MemorySql.Delete) {
+                MemorySql.Delete delete = (MemorySql.Delete) stmt;
+                lines.add("DELETE FROM " + table(delete.table).name);
+                lines.addAll(singleTablePlan(delete.table, delete.conditions).describe());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() {
+        SlowQueryLog.flush();
+        QueryStats.dumpQuietly();
+        Database.forgetInstance(this);
+    }
+}
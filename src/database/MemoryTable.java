@@ -0,0 +1,303 @@
+package database;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of the in-memory storage engine.
+ *
+ * Rows are stored as `Object[]` (one value per column) in a hash map keyed by primary key.
+ * Secondary hash indexes (e.g. on foreign key columns) map a column value to the rows that have
+ * it.
+ */
+class MemoryTable {
+
+    // Name of the table (as declared)
+    final String name;
+    // Column names (as declared)
+    final String[] columns;
+    // Column positions by lower case name
+    private final HashMap<String, Integer> columnIndex = new HashMap<>();
+    // Whether the `id` column (the primary key) is generated when not given
+    final boolean identity;
+    // Positions of the primary key columns
+    final int[] primaryKey;
+    // Default value of each column (null if it has none)
+    final Object[] defaults;
+    // Positions of columns whose values must be unique
+    private final ArrayList<Integer> uniqueColumns = new ArrayList<>();
+
+    // Next id to generate for identity tables
+    private int nextId = 1;
+    // Rows by primary key, in insertion order
+    private final LinkedHashMap<Object, Object[]> rows = new LinkedHashMap<>();
+    // Secondary indexes: column position -> column value -> rows with that value
+    private final HashMap<Integer, HashMap<Object, LinkedHashSet<Object[]>>> indexes =
+        new HashMap<>();
+
+    /**
+     * Create an empty table.
+     *
+     * @param name name of the table
+     * @param columns column names
+     * @param primaryKey names of the primary key columns
+     * @param identity whether the `id` column is generated when not given
+     */
+    MemoryTable(String name, String[] columns, String[] primaryKey, boolean identity) {
+        this.name = name;
+        this.columns = columns;
+        for (int i = 0; i < columns.length; i++) {
+            columnIndex.put(columns[i].toLowerCase(), i);
+        }
+        this.primaryKey = new int[primaryKey.length];
+        for (int i = 0; i < primaryKey.length; i++) {
+            this.primaryKey[i] = column(primaryKey[i]);
+        }
+        this.identity = identity;
+        this.defaults = new Object[columns.length];
+    }
+
+    /**
+     * Get the position of a column.
+     *
+     * @param column column name (any case)
+     * @return column position, or -1 if there's no such column
+     */
+    int column(String column) {
+        Integer i = columnIndex.get(column.toLowerCase());
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * Set the value a column gets when an insert doesn't provide one.
+     */
+    void setDefault(String column, Object value) {
+        defaults[column(column)] = value;
+    }
+
+    /**
+     * Add a hash index on a column.
+     */
+    void addIndex(String column) {
+        int col = column(column);
+        if (isIndexed(col)) {
+            return;
+        }
+        HashMap<Object, LinkedHashSet<Object[]>> index = new HashMap<>();
+        for (Object[] row : rows.values()) {
+            index.computeIfAbsent(row[col], key -> new LinkedHashSet<>()).add(row);
+        }
+        indexes.put(col, index);
+    }
+
+    /**
+     * Add a unique constraint (and an index to check it) on a column.
+     */
+    void addUnique(String column) {
+        addIndex(column);
+        uniqueColumns.add(column(column));
+    }
+
+    /**
+     * @return whether lookups on a column can use a hash index
+     */
+    boolean isIndexed(int col) {
+        return (primaryKey.length == 1 && primaryKey[0] == col) || indexes.containsKey(col);
+    }
+
+    /**
+     * Find the rows with a value in a column using a hash index.
+     *
+     * @param col column position
+     * @param value value to look for
+     * @return matching rows, or null if the column isn't indexed
+     */
+    Collection<Object[]> lookup(int col, Object value) {
+        if (primaryKey.length == 1 && primaryKey[0] == col) {
+            Object[] row = rows.get(value);
+            return row == null ? Collections.<Object[]>emptyList() : Collections.singletonList(row);
+        }
+        HashMap<Object, LinkedHashSet<Object[]>> index = indexes.get(col);
+        if (index == null) {
+            return null;
+        }
+        LinkedHashSet<Object[]> matches = index.get(value);
+        return matches == null ? Collections.<Object[]>emptyList() : matches;
+    }
+
+    /**
+     * @return every row, in insertion order
+     */
+    Collection<Object[]> rows() {
+        return rows.values();
+    }
+
+    /**
+     * @return number of rows
+     */
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * Get a row by its (single column) primary key.
+     */
+    Object[] get(Object key) {
+        return rows.get(key);
+    }
+
+    /**
+     * @return the primary key of a row
+     */
+    Object key(Object[] row) {
+        if (primaryKey.length == 1) {
+            return row[primaryKey[0]];
+        }
+        Object[] key = new Object[primaryKey.length];
+        for (int i = 0; i < primaryKey.length; i++) {
+            key[i] = row[primaryKey[i]];
+        }
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Generate the next id of an identity table.
+     */
+    int generateId() {
+        return nextId++;
+    }
+
+    /**
+     * @return the id the next generated row will get
+     */
+    int peekNextId() {
+        return nextId;
+    }
+
+    /**
+     * Set the id the next generated row will get (e.g. when restoring a saved table).
+     */
+    void setNextId(int nextId) {
+        this.nextId = nextId;
+    }
+
+    /**
+     * Add a row, checking primary key and unique constraints.
+     *
+     * @param row column values
+     * @throws SQLException if the row breaks a constraint
+     */
+    void insert(Object[] row) throws SQLException {
+        Object key = key(row);
+        if (rows.containsKey(key)) {
+            throw new SQLIntegrityConstraintViolationException(
+                String.format("Duplicate primary key %s in %s", key, name)
+            );
+        }
+        checkUnique(row, null);
+        add(row);
+    }
+
+    /**
+     * Add a row without checking any constraints (e.g. to undo a delete).
+     */
+    void add(Object[] row) {
+        rows.put(key(row), row);
+        for (Map.Entry<Integer, HashMap<Object, LinkedHashSet<Object[]>>> entry : indexes.entrySet()) {
+            Object value = row[entry.getKey()];
+            entry.getValue().computeIfAbsent(value, k -> new LinkedHashSet<>()).add(row);
+        }
+        // Make sure generated ids don't collide with explicitly given ones
+        if (identity && (Integer) row[primaryKey[0]] >= nextId) {
+            nextId = (Integer) row[primaryKey[0]] + 1;
+        }
+    }
+
+    /**
+     * Remove a row.
+     */
+    void remove(Object[] row) {
+        rows.remove(key(row));
+        for (Map.Entry<Integer, HashMap<Object, LinkedHashSet<Object[]>>> entry : indexes.entrySet()) {
+            Object value = row[entry.getKey()];
+            LinkedHashSet<Object[]> matches = entry.getValue().get(value);
+            if (matches != null) {
+                matches.remove(row);
+                if (matches.isEmpty()) {
+                    entry.getValue().remove(value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the values of a row in place, keeping indexes up to date.
+     *
+     * @param row row to change
+     * @param values new column values
+     * @param check whether to check primary key and unique constraints
+     * @throws SQLException if the new values break a constraint
+     */
+    void replace(Object[] row, Object[] values, boolean check) throws SQLException {
+        Object oldKey = key(row);
+        Object newKey = key(values);
+        if (check) {
+            if (!oldKey.equals(newKey) && rows.containsKey(newKey)) {
+                throw new SQLIntegrityConstraintViolationException(
+                    String.format("Duplicate primary key %s in %s", newKey, name)
+                );
+            }
+            checkUnique(values, row);
+        }
+        remove(row);
+        System.arraycopy(values, 0, row, 0, row.length);
+        add(row);
+    }
+
+    /**
+     * Check that a row doesn't duplicate another row's unique column values.
+     *
+     * @param row values to check
+     * @param self row being replaced (ignored when checking), or null
+     * @throws SQLException if a unique value is already taken
+     */
+    private void checkUnique(Object[] row, Object[] self) throws SQLException {
+        for (int col : uniqueColumns) {
+            for (Object[] other : lookup(col, row[col])) {
+                if (other != self) {
+                    throw new SQLIntegrityConstraintViolationException(
+                        String.format(
+                            "Duplicate value %s for unique column %s.%s",
+                            row[col],
+                            name,
+                            columns[col]
+                        )
+                    );
+                }
+            }
+        }
+    }
+
+    /**
+     * @return names of the indexed columns (for describing query plans)
+     */
+    List<String> indexedColumns() {
+        ArrayList<String> names = new ArrayList<>();
+        if (primaryKey.length == 1) {
+            names.add(columns[primaryKey[0]]);
+        }
+        for (int col : indexes.keySet()) {
+            names.add(columns[col]);
+        }
+        return names;
+    }
+}
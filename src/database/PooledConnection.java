@@ -0,0 +1,177 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A physical database connection owned by a `ConnectionPool`.
+ *
+ * Closing a pooled connection hands it back to its pool instead of closing the underlying
+ * connection, so it can be used with try with resource syntax.
+ *
+ * Each connection keeps an LRU cache of its prepared statements so repeated SQL is only parsed
+ * once per connection. With a cache size of 0, every statement is prepared afresh and closed by
+ * `done`. Statements are checked out until `done`, and a statement still in use (e.g. its results
+ * are still being read when the same SQL runs again in a transaction) is neither handed out again
+ * nor evicted; a fresh uncached statement is prepared instead.
+ */
+class PooledConnection implements AutoCloseable {
+
+    // Pool this connection belongs to
+    private final ConnectionPool pool;
+    // Underlying JDBC connection
+    final Connection conn;
+    // When the connection was last handed back to the pool (ms since epoch)
+    long lastReturned;
+    // Whether the connection is bound to an open transaction (closing it then does nothing)
+    boolean inTransaction = false;
+    // Max number of prepared statements cached (0 or less to not cache them)
+    private final int statementCacheSize;
+    // Prepared statements by SQL text and generated key columns, least recently used first
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<>(
+        16,
+        0.75f,
+        true
+    );
+    // Statements handed out by `prepare` and not yet passed to `done`, mapped to whether they're
+    // cached
+    private final IdentityHashMap<PreparedStatement, Boolean> checkedOut = new IdentityHashMap<>();
+
+    PooledConnection(ConnectionPool pool, Connection conn, int statementCacheSize) {
+        this.pool = pool;
+        this.conn = conn;
+        this.lastReturned = System.currentTimeMillis();
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Get a cached prepared statement for some SQL, preparing it if it isn't cached yet.
+     *
+     * Pass the statement to `done` once finished with it (rather than closing it), which closes
+     * it if it isn't cached. Any parameters or batched rows left by a previous use are cleared.
+     *
+     * @param sql statement SQL
+     * @param generatedKeyColumns columns to return as generated keys (empty for none)
+     * @return prepared statement
+     * @throws SQLException if error preparing the statement
+     */
+    PreparedStatement prepare(String sql, String[] generatedKeyColumns) throws SQLException {
+        if (statementCacheSize <= 0) {
+            pool.recordStatementMiss();
+            return checkOut(newStatement(sql, generatedKeyColumns), false);
+        }
+        String key = generatedKeyColumns.length == 0
+            ? sql
+            : sql + "\0" + Arrays.toString(generatedKeyColumns);
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            if (checkedOut.containsKey(stmt)) {
+                // Still in use (e.g. its results are still being read), so leave it be
+                pool.recordStatementMiss();
+                return checkOut(newStatement(sql, generatedKeyColumns), false);
+            }
+            pool.recordStatementHit();
+            stmt.clearParameters();
+            // Rows queued by a batch that failed part way must not be sent with the next one
+            stmt.clearBatch();
+            return checkOut(stmt, true);
+        }
+        statements.remove(key);
+        pool.recordStatementMiss();
+        // Make room first, so the statement being returned (or one in use) is never evicted
+        Iterator<PreparedStatement> eldest = statements.values().iterator();
+        while (statements.size() >= statementCacheSize && eldest.hasNext()) {
+            PreparedStatement candidate = eldest.next();
+            if (!checkedOut.containsKey(candidate)) {
+                closeStatement(candidate);
+                eldest.remove();
+            }
+        }
+        stmt = newStatement(sql, generatedKeyColumns);
+        if (statements.size() >= statementCacheSize) {
+            // Every cached statement is in use
+            return checkOut(stmt, false);
+        }
+        statements.put(key, stmt);
+        return checkOut(stmt, true);
+    }
+
+    /**
+     * Get a cached prepared statement for some SQL that doesn't return generated keys.
+     *
+     * @param sql statement SQL
+     * @return prepared statement
+     * @throws SQLException if error preparing the statement
+     */
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, new String[] {});
+    }
+
+    /**
+     * Finish with a statement from `prepare`, closing it if it isn't cached.
+     *
+     * @param stmt statement to finish with
+     */
+    void done(PreparedStatement stmt) {
+        if (Boolean.FALSE.equals(checkedOut.remove(stmt))) {
+            closeStatement(stmt);
+        }
+    }
+
+    private PreparedStatement checkOut(PreparedStatement stmt, boolean cached) {
+        checkedOut.put(stmt, cached);
+        return stmt;
+    }
+
+    private PreparedStatement newStatement(String sql, String[] generatedKeyColumns)
+        throws SQLException {
+        return generatedKeyColumns.length == 0
+            ? conn.prepareStatement(sql)
+            : conn.prepareStatement(sql, generatedKeyColumns);
+    }
+
+    /**
+     * Close a statement, ignoring errors.
+     *
+     * @param stmt statement to close
+     */
+    private static void closeStatement(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // Statement is being thrown away anyway
+        }
+    }
+
+    /**
+     * Close the underlying connection for good.
+     */
+    void destroy() {
+        for (PreparedStatement stmt : statements.values()) {
+            closeStatement(stmt);
+        }
+        statements.clear();
+        checkedOut.clear();
+        // Try to close, but proceed even if there's an error
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            System.out.println("Error closing DB connection, but proceeding");
+        }
+    }
+
+    /**
+     * Return the connection to its pool, unless it's still needed by an open transaction.
+     */
+    @Override
+    public void close() {
+        if (!inTransaction) {
+            pool.release(this);
+        }
+    }
+}
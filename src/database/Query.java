@@ -0,0 +1,455 @@
+package database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Builder for SQL statements.
+ *
+ * Every value goes into a `?` parameter rather than the SQL text, so a statement's text only
+ * depends on its shape, and the statement cache (and the database's plan cache) hits no matter
+ * what values are bound. `in (...)` lists are padded to a power of two, so lists of any size only
+ * produce a handful of distinct statements, and are split into several statements once they grow
+ * past `DataStore.maxInListSize()`.
+ *
+ * Identifiers (tables, columns, aliases) and operators are checked as they're added, so only
+ * values can vary at runtime.
+ *
+ * Parameters are numbered in the order they appear in the SQL. Values given to the builder are
+ * bound by `binder`; parameters added without a value (e.g. the column values of an insert) are
+ * left for the caller to bind.
+ */
+public class Query {
+
+    // e.g. `name`, `fi.name`
+    private static final Pattern COLUMN = Pattern.compile(
+        "[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)?"
+    );
+    // e.g. `*`, `fi.*`, `fi.name`, `fi.name as name`
+    private static final Pattern SELECT_ITEM = Pattern.compile(
+        "(\\*|[A-Za-z_][A-Za-z0-9_$]*\\.\\*|" +
+        COLUMN.pattern() +
+        "( as [A-Za-z_][A-Za-z0-9_$]*)?)",
+        Pattern.CASE_INSENSITIVE
+    );
+    // e.g. `name`, `fi.name desc`
+    private static final Pattern ORDER_ITEM = Pattern.compile(
+        COLUMN.pattern() + "( asc| desc)?",
+        Pattern.CASE_INSENSITIVE
+    );
+    private static final HashSet<String> OPERATORS = new HashSet<>(
+        Arrays.asList("=", "<>", "!=", "<", "<=", ">", ">=")
+    );
+    // Marks a parameter bound by the caller
+    private static final Object UNBOUND = new Object();
+
+    /**
+     * A `where` condition.
+     */
+    private static class Condition {
+
+        final String column;
+        final String operator;
+        // Value of the parameter (`UNBOUND` if bound by the caller)
+        final Object value;
+        // Ids of an `in (...)` condition (null for a comparison)
+        final List<Integer> ids;
+
+        Condition(String column, String operator, Object value, List<Integer> ids) {
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+            this.ids = ids;
+        }
+    }
+
+    // `select`, `insert`, `update` or `delete`
+    private final String verb;
+    private final String table;
+    private final String alias;
+    private boolean distinct = false;
+    // Select list items, or the columns set by an insert/update
+    private final ArrayList<String> items = new ArrayList<>();
+    // `join` clauses
+    private final ArrayList<String> joins = new ArrayList<>();
+    private final ArrayList<Condition> conditions = new ArrayList<>();
+    private final ArrayList<String> orderBy = new ArrayList<>();
+    // Max number of rows to select (null for all of them)
+    private Integer limit;
+    // Whether to lock the selected rows until the transaction ends
+    private boolean forUpdate = false;
+
+    private Query(String verb, String table, String alias) {
+        this.verb = verb;
+        this.table = check(COLUMN, table);
+        this.alias = alias == null ? null : check(COLUMN, alias);
+    }
+
+    /**
+     * Start a select from a table.
+     *
+     * @param table name of the table
+     * @return query builder (selecting `*` unless columns are given)
+     */
+    public static Query select(String table) {
+        return new Query("select", table, null);
+    }
+
+    /**
+     * Start a select from an aliased table.
+     *
+     * @param table name of the table
+     * @param alias alias of the table
+     * @return query builder (selecting `*` unless columns are given)
+     */
+    public static Query select(String table, String alias) {
+        return new Query("select", table, alias);
+    }
+
+    /**
+     * Start an insert of a row, with a parameter for each column (bound by the caller).
+     *
+     * @param table name of the table
+     * @param columns columns to insert
+     * @return query builder
+     */
+    public static Query insertInto(String table, String... columns) {
+        Query query = new Query("insert", table, null);
+        for (String column : columns) {
+            query.items.add(check(COLUMN, column));
+        }
+        return query;
+    }
+
+    /**
+     * Start an update, with a parameter for each column set (bound by the caller, before any
+     * `where` parameters).
+     *
+     * @param table name of the table
+     * @param columns columns to set
+     * @return query builder
+     */
+    public static Query update(String table, String... columns) {
+        Query query = new Query("update", table, null);
+        for (String column : columns) {
+            query.items.add(check(COLUMN, column));
+        }
+        return query;
+    }
+
+    /**
+     * Start a delete from a table.
+     *
+     * @param table name of the table
+     * @return query builder
+     */
+    public static Query deleteFrom(String table) {
+        return new Query("delete", table, null);
+    }
+
+    /**
+     * Select particular columns (e.g. `fi.name as name`).
+     */
+    public Query columns(String... items) {
+        for (String item : items) {
+            this.items.add(check(SELECT_ITEM, item));
+        }
+        return this;
+    }
+
+    /**
+     * Only select distinct rows.
+     */
+    public Query distinct() {
+        distinct = true;
+        return this;
+    }
+
+    /**
+     * Inner join another table.
+     *
+     * @param table name of the table
+     * @param alias alias of the table
+     * @param leftColumn column compared in the `on` condition
+     * @param rightColumn column it must equal
+     * @return this builder
+     */
+    public Query join(String table, String alias, String leftColumn, String rightColumn) {
+        joins.add(
+            String.format(
+                "join %s %s on %s = %s",
+                check(COLUMN, table),
+                check(COLUMN, alias),
+                check(COLUMN, leftColumn),
+                check(COLUMN, rightColumn)
+            )
+        );
+        return this;
+    }
+
+    /**
+     * Add a condition comparing a column with a value.
+     *
+     * @param column column to compare
+     * @param operator comparison operator (`=`, `<>`, `!=`, `<`, `<=`, `>` or `>=`)
+     * @param value value to compare with (bound as a parameter)
+     * @return this builder
+     */
+    public Query where(String column, String operator, Object value) {
+        if (!OPERATORS.contains(operator)) {
+            throw new IllegalArgumentException("Unsupported operator: " + operator);
+        }
+        conditions.add(new Condition(check(COLUMN, column), operator, value, null));
+        return this;
+    }
+
+    /**
+     * Add a condition comparing a column with a parameter the caller binds.
+     */
+    public Query where(String column, String operator) {
+        return where(column, operator, UNBOUND);
+    }
+
+    /**
+     * Add a condition that a column is one of some ids.
+     *
+     * Only one such condition is allowed per query, since the list may be split across several
+     * statements.
+     *
+     * @param column column to check
+     * @param ids ids to look for (duplicates and nulls are ignored)
+     * @return this builder
+     */
+    public Query whereIn(String column, Collection<Integer> ids) {
+        for (Condition condition : conditions) {
+            if (condition.ids != null) {
+                throw new IllegalStateException("Only one `in` condition is allowed per query");
+            }
+        }
+        LinkedHashSet<Integer> unique = new LinkedHashSet<>(ids);
+        unique.remove(null);
+        conditions.add(
+            new Condition(check(COLUMN, column), "in", null, new ArrayList<>(unique))
+        );
+        return this;
+    }
+
+    /**
+     * Order the selected rows (e.g. `name desc`).
+     */
+    public Query orderBy(String... items) {
+        for (String item : items) {
+            orderBy.add(check(ORDER_ITEM, item));
+        }
+        return this;
+    }
+
+    /**
+     * Select at most some number of rows (bound as a parameter, so the text doesn't change).
+     */
+    public Query limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Lock the selected rows until the end of the transaction, so other transactions writing them
+     * (or locking them too) wait until it commits. Oracle doesn't allow this with a limit.
+     */
+    public Query forUpdate() {
+        forUpdate = true;
+        return this;
+    }
+
+    /**
+     * Get the SQL text of the statement (with an `in` list of any size padded to a power of two).
+     *
+     * @return SQL
+     */
+    public String sql() {
+        return sql(bucketSize(inIds().size(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Get a lambda binding the values given to the builder (with an `in` list of any size in one
+     * statement).
+     *
+     * @return lambda binding parameters
+     */
+    public ThrowingConsumer<PreparedStatement, SQLException> binder() {
+        List<Integer> ids = inIds();
+        return binder(ids, bucketSize(ids.size(), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Run the select, splitting an `in` list into several statements if it's longer than the
+     * store allows (in which case ordering and limits only apply within each statement).
+     *
+     * @param db store to run it on
+     * @param applyToRow lambda to run on each row
+     * @throws SQLException if error executing SQL
+     */
+    public void select(DataStore db, ThrowingConsumer<ResultSet, SQLException> applyToRow)
+        throws SQLException {
+        List<Integer> ids = inIds();
+        if (hasInList() && ids.isEmpty()) {
+            // Nothing can match
+            return;
+        }
+        int chunkSize = Math.max(1, db.maxInListSize());
+        int from = 0;
+        do {
+            List<Integer> chunk = ids.subList(from, Math.min(ids.size(), from + chunkSize));
+            int size = bucketSize(chunk.size(), chunkSize);
+            db.select(sql(size), applyToRow, binder(chunk, size));
+            from += chunkSize;
+        } while (from < ids.size());
+    }
+
+    /**
+     * Round an `in` list size up to a power of two (no larger than a full chunk).
+     */
+    private static int bucketSize(int size, int chunkSize) {
+        return size == 0 ? 0 : Math.min(chunkSize, Integer.highestOneBit(size * 2 - 1));
+    }
+
+    private boolean hasInList() {
+        for (Condition condition : conditions) {
+            if (condition.ids != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Integer> inIds() {
+        for (Condition condition : conditions) {
+            if (condition.ids != null) {
+                return condition.ids;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Generate the SQL text, with `inSize` parameters in the `in` list.
+     */
+    private String sql(int inSize) {
+        StringBuilder sql = new StringBuilder();
+        switch (verb) {
+            case "select":
+                sql.append(distinct ? "select distinct " : "select ");
+                sql.append(items.isEmpty() ? "*" : String.join(", ", items));
+                sql.append(" from ").append(table);
+                if (alias != null) {
+                    sql.append(" ").append(alias);
+                }
+                for (String join : joins) {
+                    sql.append(" ").append(join);
+                }
+                break;
+            case "insert":
+                return String.format(
+                    "insert into %s (%s) values (%s)",
+                    table,
+                    String.join(",", items),
+                    String.join(",", Collections.nCopies(items.size(), "?"))
+                );
+            case "update":
+                {
+                    String[] assignments = new String[items.size()];
+                    for (int i = 0; i < assignments.length; i++) {
+                        assignments[i] = items.get(i) + " = ?";
+                    }
+                    sql.append("update ").append(table);
+                    sql.append(" set ").append(String.join(",", assignments));
+                    break;
+                }
+            default:
+                sql.append("delete from ").append(table);
+        }
+        for (int i = 0; i < conditions.size(); i++) {
+            Condition condition = conditions.get(i);
+            sql.append(i == 0 ? " where " : " and ").append(condition.column);
+            if (condition.ids == null) {
+                sql.append(" ").append(condition.operator).append(" ?");
+            } else if (inSize == 0) {
+                // An empty list would be a syntax error, and matches nothing anyway
+                sql.append(" in (null)");
+            } else {
+                sql.append(" in (");
+                sql.append(String.join(",", Collections.nCopies(inSize, "?")));
+                sql.append(")");
+            }
+        }
+        if (!orderBy.isEmpty()) {
+            sql.append(" order by ").append(String.join(", ", orderBy));
+        }
+        if (limit != null) {
+            sql.append(" fetch first ? rows only");
+        }
+        if (forUpdate) {
+            sql.append(" for update");
+        }
+        return sql.toString();
+    }
+
+    /**
+     * Get a lambda binding the builder's values, with `ids` padded to `inSize` parameters.
+     */
+    private ThrowingConsumer<PreparedStatement, SQLException> binder(
+        List<Integer> ids,
+        int inSize
+    ) {
+        return stmt -> {
+            // Insert/update column values come first, and are bound by the caller
+            int index = verb.equals("select") || verb.equals("delete") ? 1 : items.size() + 1;
+            for (Condition condition : conditions) {
+                if (condition.ids != null) {
+                    for (int i = 0; i < inSize; i++) {
+                        // Pad by repeating the last id
+                        stmt.setInt(index++, ids.get(Math.min(i, ids.size() - 1)));
+                    }
+                    continue;
+                }
+                if (condition.value != UNBOUND) {
+                    bind(stmt, index, condition.value);
+                }
+                index++;
+            }
+            if (limit != null) {
+                stmt.setInt(index, limit);
+            }
+        };
+    }
+
+    private static void bind(PreparedStatement stmt, int index, Object value)
+        throws SQLException {
+        if (value instanceof Integer) {
+            stmt.setInt(index, (Integer) value);
+        } else if (value instanceof String) {
+            stmt.setString(index, (String) value);
+        } else {
+            stmt.setObject(index, value);
+        }
+    }
+
+    /**
+     * Check that an identifier (or other piece of SQL text) has the expected form.
+     */
+    private static String check(Pattern pattern, String text) {
+        if (text == null || !pattern.matcher(text).matches()) {
+            throw new IllegalArgumentException("Invalid SQL identifier: " + text);
+        }
+        return text;
+    }
+}
@@ -0,0 +1,540 @@
+package database;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and row count statistics for each SQL statement run by the data stores.
+ *
+ * Statements are grouped by template (their SQL with whitespace collapsed and literals replaced by
+ * `?`). Each template has a latency histogram with log-linear buckets (8 per power of two, so
+ * percentiles are within 12.5%), plus counters for executions, errors and rows. Recording only
+ * touches atomic counters, so it never blocks.
+ *
+ * Statistics are periodically added to the file named by the `recipe_mgmt.stats.file` system
+ * property (set it to an empty string to turn this off), so the file accumulates the statistics of
+ * every run of the app.
+ */
+public class QueryStats {
+
+    // File statistics are accumulated in (empty for none)
+    static final String STATS_FILE = System.getProperty(
+        "recipe_mgmt.stats.file",
+        "recipe_mgmt_stats.txt"
+    );
+    // How often statistics are added to the file
+    static final long DUMP_INTERVAL_MS = Long.getLong("recipe_mgmt.stats.dumpIntervalMs", 60000);
+    // Templates tracked separately before the rest are lumped together
+    static final int MAX_TEMPLATES = 1000;
+
+    private static final String FILE_HEADER = "# recipe_mgmt query stats v1";
+    private static final String OTHER_TEMPLATE = "(other statements)";
+
+    // Histogram buckets: 8 per power of two, up to 2^63 nanoseconds
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Statistics of a SQL template, recorded concurrently.
+     */
+    static class Recorder {
+
+        final String template;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Recorder(String template) {
+            this.template = template;
+        }
+
+        void record(long nanos, long rowCount, boolean failed) {
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            if (rowCount > 0) {
+                rows.add(rowCount);
+            }
+            totalNanos.add(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        /**
+         * Get the statistics recorded so far.
+         *
+         * @param reset whether to reset them (executions recorded meanwhile end up in either this
+         *     or the next summary)
+         * @return summary
+         */
+        Summary summarize(boolean reset) {
+            Summary summary = new Summary(template);
+            summary.count = reset ? count.sumThenReset() : count.sum();
+            summary.errors = reset ? errors.sumThenReset() : errors.sum();
+            summary.rows = reset ? rows.sumThenReset() : rows.sum();
+            summary.totalNanos = reset ? totalNanos.sumThenReset() : totalNanos.sum();
+            summary.maxNanos = reset ? maxNanos.getAndSet(0) : maxNanos.get();
+            for (int i = 0; i < BUCKETS; i++) {
+                summary.buckets[i] = reset ? buckets.getAndSet(i, 0) : buckets.get(i);
+            }
+            return summary;
+        }
+    }
+
+    /**
+     * Point in time statistics of a SQL template.
+     */
+    public static class Summary {
+
+        public final String template;
+        public long count;
+        public long errors;
+        public long rows;
+        public long totalNanos;
+        public long maxNanos;
+        final long[] buckets = new long[BUCKETS];
+
+        Summary(String template) {
+            this.template = template;
+        }
+
+        /**
+         * Add another summary's statistics to this one.
+         */
+        void add(Summary other) {
+            count += other.count;
+            errors += other.errors;
+            rows += other.rows;
+            totalNanos += other.totalNanos;
+            maxNanos = Math.max(maxNanos, other.maxNanos);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+
+        /**
+         * Estimate a latency percentile.
+         *
+         * @param percentile percentile to get (e.g. 99)
+         * @return upper bound of the bucket the percentile falls in, in nanoseconds (capped at the
+         *     max)
+         */
+        public long percentileNanos(double percentile) {
+            long total = 0;
+            for (long bucketCount : buckets) {
+                total += bucketCount;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(bucketUpperBound(i), maxNanos);
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+    // Recorders by normalized template
+    private static final ConcurrentHashMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+    // Recorders by raw SQL, so each statement is only normalized once
+    private static final ConcurrentHashMap<String, Recorder> bySql = new ConcurrentHashMap<>();
+    // Adds statistics to the file (started by the first recorded statement)
+    private static ScheduledExecutorService dumper = null;
+
+    /**
+     * Record an execution of a statement.
+     *
+     * @param sql statement that ran
+     * @param startNanos `System.nanoTime()` when it started
+     * @param rows rows returned or affected
+     * @param failed whether it threw
+     */
+    static void record(String sql, long startNanos, long rows, boolean failed) {
+        record(null, sql, null, startNanos, rows, failed);
+    }
+
+    /**
+     * Record an execution of a statement, adding it to `SlowQueryLog` if it was slow.
+     *
+     * @param store store it ran on (or null if it shouldn't be logged)
+     * @param sql statement that ran
+     * @param setValues lambda that bound its parameters (or null if unknown)
+     * @param startNanos `System.nanoTime()` when it started
+     * @param rows rows returned or affected
+     * @param failed whether it threw
+     */
+    static void record(
+        DataStore store,
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        long startNanos,
+        long rows,
+        boolean failed
+    ) {
+        long nanos = System.nanoTime() - startNanos;
+        Recorder recorder = bySql.get(sql);
+        if (recorder == null) {
+            recorder = recorderFor(sql);
+        }
+        recorder.record(nanos, rows, failed);
+        if (store != null && SlowQueryLog.isSlow(nanos)) {
+            SlowQueryLog.log(store, sql, setValues, nanos, rows, failed);
+        }
+    }
+
+    private static Recorder recorderFor(String sql) {
+        String template = template(sql);
+        if (recorders.size() >= MAX_TEMPLATES && !recorders.containsKey(template)) {
+            template = OTHER_TEMPLATE;
+        }
+        Recorder recorder = recorders.computeIfAbsent(template, Recorder::new);
+        if (bySql.size() < MAX_TEMPLATES * 4) {
+            bySql.put(sql, recorder);
+        }
+        startDumper();
+        return recorder;
+    }
+
+    private static synchronized void startDumper() {
+        if (dumper != null || STATS_FILE.isEmpty()) {
+            return;
+        }
+        dumper =
+            Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                    Thread thread = new Thread(runnable, "query-stats-dump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            );
+        dumper.scheduleWithFixedDelay(
+            QueryStats::dumpQuietly,
+            DUMP_INTERVAL_MS,
+            DUMP_INTERVAL_MS,
+            TimeUnit.MILLISECONDS
+        );
+    }
+
+    /**
+     * Get the template of a statement: whitespace collapsed, and string and number literals
+     * replaced by `?`.
+     *
+     * @param sql statement
+     * @return template
+     */
+    static String template(String sql) {
+        StringBuilder template = new StringBuilder(sql.length());
+        int n = sql.length();
+        int i = 0;
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                while (i < n && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (template.length() > 0 && i < n) {
+                    template.append(' ');
+                }
+            } else if (c == '\'') {
+                // Skip the string literal (a doubled quote is an escaped quote)
+                i++;
+                while (i < n) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < n && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                template.append('?');
+            } else if (Character.isDigit(c) && !isIdentifierChar(template)) {
+                while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                template.append('?');
+            } else {
+                template.append(c);
+                i++;
+            }
+        }
+        return template.toString();
+    }
+
+    /**
+     * @return whether the last character of some text is part of an identifier
+     */
+    private static boolean isIdentifierChar(StringBuilder text) {
+        if (text.length() == 0) {
+            return false;
+        }
+        char last = text.charAt(text.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_';
+    }
+
+    /**
+     * Get the histogram bucket of a latency.
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Get the largest latency that falls in a histogram bucket.
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1;
+    }
+
+    /**
+     * Get the statistics recorded by this process that haven't been added to the file yet.
+     *
+     * @return summaries by template
+     */
+    public static LinkedHashMap<String, Summary> pending() {
+        LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>();
+        for (Recorder recorder : recorders.values()) {
+            Summary summary = recorder.summarize(false);
+            if (summary.count > 0) {
+                summaries.put(summary.template, summary);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Add the statistics recorded since the last dump to the stats file.
+     *
+     * The file is locked while it's updated, so several processes can share it.
+     *
+     * @throws IOException if the file can't be read or written
+     */
+    public static synchronized void dump() throws IOException {
+        if (STATS_FILE.isEmpty()) {
+            return;
+        }
+        ArrayList<Summary> drained = new ArrayList<>();
+        for (Recorder recorder : recorders.values()) {
+            Summary summary = recorder.summarize(true);
+            if (summary.count > 0) {
+                drained.add(summary);
+            }
+        }
+        if (drained.isEmpty()) {
+            return;
+        }
+        try (
+            FileChannel channel = FileChannel.open(
+                Paths.get(STATS_FILE),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+            )
+        ) {
+            FileLock lock = channel.lock();
+            try {
+                LinkedHashMap<String, Summary> totals = parse(readAll(channel));
+                for (Summary summary : drained) {
+                    Summary total = totals.get(summary.template);
+                    if (total == null) {
+                        totals.put(summary.template, summary);
+                    } else {
+                        total.add(summary);
+                    }
+                }
+                byte[] bytes = format(totals.values()).getBytes(StandardCharsets.UTF_8);
+                channel.truncate(0);
+                channel.position(0);
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Dump statistics, reporting (rather than throwing) errors.
+     */
+    static void dumpQuietly() {
+        try {
+            dump();
+        } catch (IOException e) {
+            System.err.println("Couldn't save query stats: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the statistics accumulated in the stats file.
+     *
+     * @return summaries by template (empty if there's no file)
+     * @throws IOException if the file can't be read
+     */
+    public static LinkedHashMap<String, Summary> load() throws IOException {
+        Path path = Paths.get(STATS_FILE);
+        if (STATS_FILE.isEmpty() || !Files.exists(path)) {
+            return new LinkedHashMap<>();
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parse(readAll(channel));
+        }
+    }
+
+    /**
+     * Delete the stats file and forget the statistics recorded by this process.
+     *
+     * @throws IOException if the file can't be deleted
+     */
+    public static synchronized void reset() throws IOException {
+        for (Recorder recorder : recorders.values()) {
+            recorder.summarize(true);
+        }
+        if (!STATS_FILE.isEmpty()) {
+            Files.deleteIfExists(Paths.get(STATS_FILE));
+        }
+    }
+
+    private static String readAll(FileChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {}
+        return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Format summaries for the stats file: one tab separated line per template, with the non-empty
+     * histogram buckets as `bucket:count` pairs.
+     */
+    private static String format(Iterable<Summary> summaries) {
+        StringBuilder text = new StringBuilder(FILE_HEADER).append('\n');
+        for (Summary summary : summaries) {
+            text
+                .append(summary.count)
+                .append('\t')
+                .append(summary.errors)
+                .append('\t')
+                .append(summary.rows)
+                .append('\t')
+                .append(summary.totalNanos)
+                .append('\t')
+                .append(summary.maxNanos)
+                .append('\t');
+            boolean first = true;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (summary.buckets[i] != 0) {
+                    text.append(first ? "" : ",").append(i).append(':').append(summary.buckets[i]);
+                    first = false;
+                }
+            }
+            text.append('\t').append(summary.template).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Parse the contents of a stats file (skipping malformed lines).
+     */
+    private static LinkedHashMap<String, Summary> parse(String text) {
+        LinkedHashMap<String, Summary> summaries = new LinkedHashMap<>();
+        for (String line : text.split("\n")) {
+            String[] fields = line.split("\t", 7);
+            if (line.startsWith("#") || fields.length != 7) {
+                continue;
+            }
+            try {
+                Summary summary = new Summary(fields[6]);
+                summary.count = Long.parseLong(fields[0]);
+                summary.errors = Long.parseLong(fields[1]);
+                summary.rows = Long.parseLong(fields[2]);
+                summary.totalNanos = Long.parseLong(fields[3]);
+                summary.maxNanos = Long.parseLong(fields[4]);
+                if (!fields[5].isEmpty()) {
+                    for (String pair : fields[5].split(",")) {
+                        String[] parts = pair.split(":");
+                        summary.buckets[Integer.parseInt(parts[0])] = Long.parseLong(parts[1]);
+                    }
+                }
+                Summary existing = summaries.get(summary.template);
+                if (existing == null) {
+                    summaries.put(summary.template, summary);
+                } else {
+                    existing.add(summary);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // Skip it
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Get every statistic: those accumulated in the stats file plus those this process hasn't
+     * added to it yet.
+     *
+     * @return summaries, slowest (by total time) first
+     * @throws IOException if the stats file can't be read
+     */
+    public static synchronized List<Summary> all() throws IOException {
+        LinkedHashMap<String, Summary> totals = load();
+        for (Map.Entry<String, Summary> entry : pending().entrySet()) {
+            Summary total = totals.get(entry.getKey());
+            if (total == null) {
+                totals.put(entry.getKey(), entry.getValue());
+            } else {
+                total.add(entry.getValue());
+            }
+        }
+        ArrayList<Summary> summaries = new ArrayList<>(totals.values());
+        summaries.sort((a, b) -> Long.compare(b.totalNanos, a.totalNanos));
+        return summaries;
+    }
+}
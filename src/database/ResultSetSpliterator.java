@@ -0,0 +1,91 @@
+package database;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Lazily walks an open result set, mapping one row at a time.
+ *
+ * The result set (and whatever it came from, e.g. a pooled connection) is released as soon as the
+ * last row has been read, or when `close()` is called (whichever happens first). The query's time
+ * and row count are then added to `QueryStats` (and `SlowQueryLog` if it was slow).
+ *
+ * @param <T> type each row is mapped to
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> implements AutoCloseable {
+
+    private final ResultSet rs;
+    // Releases what the result set came from
+    private final Runnable onClose;
+    private final ThrowingFunction<ResultSet, T, SQLException> mapRow;
+    // Query being read, how it was bound, and when it started, for `QueryStats`
+    private final DataStore store;
+    private final String sql;
+    private final ThrowingConsumer<PreparedStatement, SQLException> setValues;
+    private final long startNanos;
+    private long rowCount = 0;
+    private boolean failed = false;
+    private boolean closed = false;
+
+    ResultSetSpliterator(
+        ResultSet rs,
+        Runnable onClose,
+        ThrowingFunction<ResultSet, T, SQLException> mapRow,
+        DataStore store,
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        long startNanos
+    ) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        this.rs = rs;
+        this.onClose = onClose;
+        this.mapRow = mapRow;
+        this.store = store;
+        this.sql = sql;
+        this.setValues = setValues;
+        this.startNanos = startNanos;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed) {
+            return false;
+        }
+        try {
+            if (!rs.next()) {
+                // No rows left, so release the result set right away
+                close();
+                return false;
+            }
+            rowCount++;
+            action.accept(mapRow.apply(rs));
+            return true;
+        } catch (SQLException e) {
+            failed = true;
+            close();
+            throw new UncheckedSQLException(e);
+        }
+    }
+
+    /**
+     * Close the result set and release what it came from.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            rs.close();
+        } catch (SQLException e) {
+            // Result set is being thrown away anyway
+        }
+        onClose.run();
+        QueryStats.record(store, sql, setValues, startNanos, rowCount, failed);
+    }
+}
@@ -0,0 +1,216 @@
+package database;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log of statements that took longer than a threshold.
+ *
+ * Each entry has the statement's SQL, bound parameter values, elapsed time, row count, and (where
+ * the engine supports it) execution plan. Parameters are captured by running the statement's
+ * binding lambda again against a recording statement, so this only happens for slow statements.
+ * Plans are fetched and entries are written on a background thread, so logging doesn't slow the
+ * statement's caller down further.
+ *
+ * The log is written to `recipe_mgmt.slowQuery.file`, which is rotated (`.1`, `.2`, etc.) when it
+ * reaches `recipe_mgmt.slowQuery.maxBytes`. Set `recipe_mgmt.slowQuery.thresholdMs` to a negative
+ * number to turn the log off.
+ */
+public class SlowQueryLog {
+
+    // Statements taking longer than this are logged (negative to log none)
+    static final long THRESHOLD_MS = Long.getLong("recipe_mgmt.slowQuery.thresholdMs", 200);
+    // File the log is written to
+    static final String LOG_FILE = System.getProperty(
+        "recipe_mgmt.slowQuery.file",
+        "recipe_mgmt_slow.log"
+    );
+    // Size the log can grow to before it's rotated
+    static final long MAX_BYTES = Long.getLong("recipe_mgmt.slowQuery.maxBytes", 1024 * 1024);
+    // Number of rotated logs to keep
+    static final int MAX_FILES = Integer.getInteger("recipe_mgmt.slowQuery.files", 5);
+
+    private static final long THRESHOLD_NANOS = THRESHOLD_MS < 0
+        ? Long.MAX_VALUE
+        : TimeUnit.MILLISECONDS.toNanos(THRESHOLD_MS);
+
+    // Writes entries (created when first needed)
+    private static ExecutorService writer = null;
+
+    /**
+     * @return whether a statement that took some time should be logged
+     */
+    static boolean isSlow(long nanos) {
+        return nanos > THRESHOLD_NANOS;
+    }
+
+    /**
+     * Log a slow statement.
+     *
+     * @param store store the statement ran on (used to get its plan)
+     * @param sql statement
+     * @param setValues lambda that bound its parameters (or null if unknown)
+     * @param nanos how long it took
+     * @param rows rows returned or affected
+     * @param failed whether it threw
+     */
+    static void log(
+        DataStore store,
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        long nanos,
+        long rows,
+        boolean failed
+    ) {
+        LocalDateTime time = LocalDateTime.now();
+        String params = setValues == null ? "(not captured)" : captureParams(setValues);
+        writer()
+            .execute(
+                () -> {
+                    StringBuilder entry = new StringBuilder();
+                    entry.append(
+                        String.format(
+                            "%s slow statement: %.2f ms, %d rows%s\n",
+                            time,
+                            nanos / 1e6,
+                            rows,
+                            failed ? ", failed" : ""
+                        )
+                    );
+                    entry.append("  sql: ").append(sql.replaceAll("\\s+", " ")).append('\n');
+                    entry.append("  params: ").append(params).append('\n');
+                    entry.append("  plan:\n");
+                    for (String line : explain(store, sql, setValues)) {
+                        entry.append("    ").append(line).append('\n');
+                    }
+                    write(entry.toString());
+                }
+            );
+    }
+
+    /**
+     * Wait for pending entries to be written (e.g. before the store they're explained on closes).
+     */
+    static void flush() {
+        Future<?> done;
+        synchronized (SlowQueryLog.class) {
+            if (writer == null) {
+                return;
+            }
+            done = writer.submit(() -> {});
+        }
+        try {
+            done.get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // Entries still pending are lost
+        }
+    }
+
+    private static synchronized ExecutorService writer() {
+        if (writer == null) {
+            writer =
+                Executors.newSingleThreadExecutor(
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "slow-query-log");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                );
+        }
+        return writer;
+    }
+
+    /**
+     * Describe a statement's bound parameters (e.g. `[1, 'eggs']`).
+     */
+    private static String captureParams(
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    ) {
+        JdbcProxies.ParameterCapture capture = new JdbcProxies.ParameterCapture();
+        try {
+            setValues.accept(capture.statement);
+        } catch (SQLException | RuntimeException e) {
+            return "(couldn't capture: " + e.getMessage() + ")";
+        }
+        ArrayList<String> values = new ArrayList<>();
+        for (Map.Entry<Integer, Object> param : new TreeMap<>(capture.boundValues()).entrySet()) {
+            Object value = param.getValue();
+            values.add(value instanceof String ? "'" + value + "'" : String.valueOf(value));
+        }
+        return values.toString();
+    }
+
+    /**
+     * Get a statement's plan, or a line saying why it couldn't be.
+     */
+    private static List<String> explain(
+        DataStore store,
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    ) {
+        try {
+            List<String> plan = store.explain(sql, setValues == null ? stmt -> {} : setValues);
+            if (!plan.isEmpty()) {
+                return plan;
+            }
+            ArrayList<String> none = new ArrayList<>();
+            none.add("(not available)");
+            return none;
+        } catch (SQLException | RuntimeException e) {
+            ArrayList<String> error = new ArrayList<>();
+            error.add("(couldn't explain: " + e.getMessage() + ")");
+            return error;
+        }
+    }
+
+    /**
+     * Append an entry to the log, rotating it first if it would get too big.
+     */
+    private static void write(String entry) {
+        Path path = Paths.get(LOG_FILE);
+        byte[] bytes = entry.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (Files.exists(path) && Files.size(path) + bytes.length > MAX_BYTES) {
+                rotate(path);
+            }
+            Files.write(path, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Couldn't write slow statement log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Shift `log.1` to `log.2` (and so on, dropping the oldest), then `log` to `log.1`.
+     */
+    private static void rotate(Path path) throws IOException {
+        Files.deleteIfExists(Paths.get(path + "." + MAX_FILES));
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            Path older = Paths.get(path + "." + i);
+            if (Files.exists(older)) {
+                Path newer = Paths.get(path + "." + (i + 1));
+                Files.move(older, newer, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (MAX_FILES > 0) {
+            Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package database;
+
+/**
+ * Based on `java.util.function.BiConsumer`, but allows functions to throw.
+ *
+ * @param <T> the type of the first input to the operation
+ * @param <U> the type of the second input to the operation
+ * @param <ExceptionType> type of exception that can be thrown
+ */
+@FunctionalInterface
+public interface ThrowingBiConsumer<T, U, ExceptionType extends Throwable> {
+    /**
+     * Performs this operation on the given arguments.
+     *
+     * @param t the first input argument
+     * @param u the second input argument
+     */
+    void accept(T t, U u) throws ExceptionType;
+}
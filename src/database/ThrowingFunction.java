@@ -0,0 +1,19 @@
+package database;
+
+/**
+ * Based on `java.util.function.Function`, but allows functions to throw.
+ *
+ * @param <T> the type of the input to the function
+ * @param <R> the type of the result of the function
+ * @param <ExceptionType> type of exception that can be thrown
+ */
+@FunctionalInterface
+public interface ThrowingFunction<T, R, ExceptionType extends Throwable> {
+    /**
+     * Applies this function to the given argument.
+     *
+     * @param t the function argument
+     * @return the function result
+     */
+    R apply(T t) throws ExceptionType;
+}
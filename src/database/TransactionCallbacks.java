@@ -0,0 +1,67 @@
+package database;
+
+import java.util.ArrayList;
+
+/**
+ * Actions to run once the transaction open on each thread ends, for keeping in-memory state (e.g.
+ * caches) in step with what was actually committed.
+ */
+class TransactionCallbacks {
+
+    /**
+     * Actions registered by one transaction.
+     */
+    private static class Pending {
+
+        final ArrayList<Runnable> afterCommit = new ArrayList<>();
+        final ArrayList<Runnable> afterRollback = new ArrayList<>();
+    }
+
+    // Actions of the transaction open on each thread (if any)
+    private final ThreadLocal<Pending> pending = new ThreadLocal<>();
+
+    /**
+     * Start collecting actions for a transaction being opened on this thread.
+     */
+    void begin() {
+        pending.set(new Pending());
+    }
+
+    /**
+     * Run an action once the current transaction commits, or right away if none is open.
+     */
+    void afterCommit(Runnable action) {
+        Pending actions = pending.get();
+        if (actions == null) {
+            action.run();
+        } else {
+            actions.afterCommit.add(action);
+        }
+    }
+
+    /**
+     * Run an action if the current transaction rolls back (nothing happens if none is open).
+     */
+    void afterRollback(Runnable action) {
+        Pending actions = pending.get();
+        if (actions != null) {
+            actions.afterRollback.add(action);
+        }
+    }
+
+    /**
+     * End this thread's transaction, running the actions registered for how it ended.
+     *
+     * @param committed whether the transaction committed
+     */
+    void end(boolean committed) {
+        Pending actions = pending.get();
+        pending.remove();
+        if (actions == null) {
+            return;
+        }
+        for (Runnable action : committed ? actions.afterCommit : actions.afterRollback) {
+            action.run();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package database;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps a `SQLException` so it can escape code that can't throw checked exceptions (e.g. the
+ * methods of a `java.util.stream.Stream`).
+ */
+public class UncheckedSQLException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedSQLException(SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
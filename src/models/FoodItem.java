@@ -1,17 +1,46 @@
 package models;
 
+import database.DataStore;
 import database.Database;
+import database.Query;
 import database.ThrowingConsumer;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Optional;
-import utils.ModelHelper;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import utils.ModelMeta;
+import utils.Page;
+import utils.SortSpec;
 
 public class FoodItem implements Comparable<FoodItem> {
 
+    // Table mapping (row column 0 is the id, then the listed columns in order)
+    public static final ModelMeta<FoodItem> META = new ModelMeta<>(
+        "FoodItem",
+        new String[] { "name", "nutritionFactsId", "foodGroup", "units" },
+        row ->
+            new FoodItem(
+                row.getInt(0),
+                row.getString(1),
+                row.getInt(2),
+                row.getString(3),
+                row.getInt(4)
+            ),
+        (stmt, item) -> {
+            stmt.setString(1, item.name);
+            stmt.setInt(2, item.nutritionFactsId);
+            stmt.setString(3, item.foodGroup);
+            stmt.setInt(4, item.units);
+        },
+        item -> item.id
+    );
+
     // Names of columns (excluding id)
-    public static String[] columns = { "name", "nutritionFactsId", "foodGroup", "units" };
+    public static String[] columns = META.columns;
 
     public Integer id;
     public String name;
@@ -28,21 +57,7 @@ public class FoodItem implements Comparable<FoodItem> {
     }
 
     public static Optional<FoodItem> get(Integer id) throws SQLException {
-        return Optional.ofNullable(
-            ModelHelper.get(
-                id,
-                "FoodItem",
-                rs -> {
-                    return new FoodItem(
-                        id,
-                        rs.getString("name"),
-                        rs.getInt("nutritionFactsId"),
-                        rs.getString("foodGroup"),
-                        rs.getInt("units")
-                    );
-                }
-            )
-        );
+        return META.get(id);
     }
 
     public static ArrayList<FoodItem> filter(
@@ -50,19 +65,74 @@ public class FoodItem implements Comparable<FoodItem> {
         ThrowingConsumer<PreparedStatement, SQLException> setValues
     )
         throws SQLException {
-        return ModelHelper.filter(
-            sql,
-            setValues,
-            rs -> {
-                return new FoodItem(
-                    rs.getInt("id"),
-                    rs.getString("name"),
-                    rs.getInt("nutritionFactsId"),
-                    rs.getString("foodGroup"),
-                    rs.getInt("units")
+        return META.filter(sql, setValues);
+    }
+
+    public static CompletableFuture<ArrayList<FoodItem>> filterAsync(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return META.filterAsync(sql, setValues);
+    }
+
+    /**
+     * Get a page of food items in id order.
+     *
+     * @param after only get rows with an id greater than this (null to start at the beginning)
+     * @param pageSize max number of rows to get
+     * @return page of instances
+     * @throws SQLException if error executing SQL
+     */
+    public static Page<FoodItem> page(Integer after, int pageSize) throws SQLException {
+        return META.page(after, pageSize);
+    }
+
+    /**
+     * Get food items sorted by a column (e.g. the top 10 by calories), sorting in the query.
+     *
+     * @param sortBy what to sort by (`id`, `name`, `group` or `calories`)
+     * @param descending whether to sort in descending order
+     * @param limit max number of food items to get (null for all of them)
+     * @return sorted food items
+     * @throws SQLException if error executing SQL
+     * @throws IllegalArgumentException if food items can't be sorted by `sortBy`
+     */
+    public static ArrayList<FoodItem> sorted(String sortBy, boolean descending, Integer limit)
+        throws SQLException {
+        String direction = descending ? " desc" : "";
+        Query query = Query.select("FoodItem", "fi").columns("fi.*");
+        switch (sortBy) {
+            case "id":
+                return META.filter(query, SortSpec.sql(limit, "fi.id" + direction));
+            case "name":
+                return META.filter(query, SortSpec.sql(limit, "fi.name" + direction, "fi.id"));
+            case "group":
+                return META.filter(
+                    query,
+                    SortSpec.sql(limit, "fi.foodGroup" + direction, "fi.id")
                 );
-            }
-        );
+            case "calories":
+                return META.filter(
+                    query.join("NutritionFacts", "nf", "nf.id", "fi.nutritionFactsId"),
+                    SortSpec.sql(limit, "nf.calories" + direction, "fi.id")
+                );
+            default:
+                throw new IllegalArgumentException(
+                    String.format(
+                        "Can't sort food items by \"%s\" (use id, name, group or calories)",
+                        sortBy
+                    )
+                );
+        }
+    }
+
+    public static Stream<FoodItem> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return META.stream(sql, setValues);
     }
 
     public static FoodItem create(
@@ -72,38 +142,65 @@ public class FoodItem implements Comparable<FoodItem> {
         Integer units
     )
         throws SQLException {
-        Database db = Database.getInstance();
-        Optional<Integer> id = db.insert(
-            "FoodItem",
-            columns,
-            stmt -> {
-                stmt.setString(1, name);
-                stmt.setInt(2, nutritionFactsId);
-                stmt.setString(3, foodGroup);
-                stmt.setInt(4, units);
-            },
-            true
-        );
-        return get(id.get()).get();
+        FoodItem foodItem = META.create(new FoodItem(0, name, nutritionFactsId, foodGroup, units));
+        IngredientIndex.setStock(Database.getInstance(), foodItem.id, foodItem.units);
+        return foodItem;
     }
 
-    public void update() throws SQLException {
-        Database db = Database.getInstance();
-        db.update(
-            "FoodItem",
-            columns,
-            id,
+    /**
+     * Create a food item along with its nutrition facts, in one round trip where the database
+     * supports it.
+     *
+     * @param name name of the food item
+     * @param foodGroup food group of the food item
+     * @param units number of units on hand
+     * @param nutritionFacts nutrition facts to create (its id is ignored)
+     * @return new food item
+     * @throws SQLException if error executing SQL
+     */
+    public static FoodItem createWithNutritionFacts(
+        String name,
+        String foodGroup,
+        int units,
+        NutritionFacts nutritionFacts
+    )
+        throws SQLException {
+        DataStore db = Database.getInstance();
+        // Bind every column except the reference to the nutrition facts (bound by the store)
+        String[] ownColumns = { "name", "foodGroup", "units" };
+        int[] ids = db.insertWithParent(
+            NutritionFacts.META.table,
+            NutritionFacts.META.columns,
+            NutritionFacts.META.binder(nutritionFacts),
+            META.table,
+            ownColumns,
+            "nutritionFactsId",
             stmt -> {
                 stmt.setString(1, name);
-                stmt.setInt(2, nutritionFactsId);
-                stmt.setString(3, foodGroup);
-                stmt.setInt(4, units);
+                stmt.setString(2, foodGroup);
+                stmt.setInt(3, units);
             }
         );
+        nutritionFacts.id = ids[0];
+        IngredientIndex.setStock(db, ids[1], units);
+        return new FoodItem(ids[1], name, ids[0], foodGroup, units);
+    }
+
+    public void update() throws SQLException {
+        Database.getInstance()
+            .inTransaction(
+                db -> {
+                    META.update(this);
+                    // The units held may have changed how many we need to buy
+                    FoodItemDemand.updateForUnits(db, id, units);
+                    IngredientIndex.setStock(db, id, units);
+                }
+            );
     }
 
     public void delete() throws SQLException {
-        ModelHelper.delete(id, "FoodItem");
+        META.delete(id);
+        IngredientIndex.removeFoodItem(Database.getInstance(), id);
     }
 
     /**
@@ -116,6 +213,27 @@ public class FoodItem implements Comparable<FoodItem> {
         return NutritionFacts.get(nutritionFactsId);
     }
 
+    /**
+     * Get the nutrition facts of many food items at once (in a constant number of queries).
+     *
+     * @param items food items
+     * @return nutrition facts by food item id
+     * @throws SQLException if error executing SQL
+     */
+    public static HashMap<Integer, NutritionFacts> getNutritionFacts(Collection<FoodItem> items)
+        throws SQLException {
+        ArrayList<Integer> nutritionFactsIds = new ArrayList<>();
+        for (FoodItem item : items) {
+            nutritionFactsIds.add(item.nutritionFactsId);
+        }
+        HashMap<Integer, NutritionFacts> byId = NutritionFacts.META.getMany(nutritionFactsIds);
+        HashMap<Integer, NutritionFacts> byItem = new HashMap<>();
+        for (FoodItem item : items) {
+            byItem.put(item.id, byId.get(item.nutritionFactsId));
+        }
+        return byItem;
+    }
+
     @Override
     public String toString() {
         return String.format("%s (%s)", name, foodGroup);
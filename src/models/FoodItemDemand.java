@@ -0,0 +1,385 @@
+package models;
+
+import database.DataStore;
+import database.Query;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Materialized demand for each food item: how many units the planned meals use (every meal uses
+ * one unit of each of its recipe's ingredients), and how many more of them we need to buy.
+ *
+ * The `FoodItemDemand` table is kept up to date incrementally by the writes that change it (each
+ * applying only its own difference), so reading the shopping list doesn't have to join every meal
+ * with every ingredient. Food items nothing needs have no row.
+ *
+ * Whether the table has been built is kept in the one row of `FoodItemDemandState`, so a database
+ * that had meal plans before the table existed gets it built by the next read, and writes leave it
+ * alone until then. Writes made with raw SQL outside of these hooks need a `rebuild`.
+ *
+ * `rebuild` and the hooks applying differences lock that row first, so a rebuild never misses the
+ * meals of a write that skipped the table (or adds to it) because it hadn't been built yet.
+ *
+ * Then they lock the `FoodItem` rows of the food items they change (updating a food item's units
+ * locks its row too), and only then read the rows they change, so a change in units doesn't
+ * overwrite a difference being applied to the same food item, or the other way around.
+ */
+public class FoodItemDemand {
+
+    private static final String TABLE = "FoodItemDemand";
+    private static final String STATE_TABLE = "FoodItemDemandState";
+
+    /**
+     * Whether the table has been built.
+     *
+     * @param db store to use
+     * @return whether the table is built
+     * @throws SQLException if error executing SQL
+     */
+    public static boolean isBuilt(DataStore db) throws SQLException {
+        return Boolean.TRUE.equals(built(db, false));
+    }
+
+    /**
+     * Get the required units of the food items the meal plans use.
+     *
+     * @param db store to use
+     * @param shortfallsOnly whether to only get food items we don't have enough of
+     * @return required units by food item id
+     * @throws SQLException if error executing SQL
+     */
+    public static HashMap<Integer, Integer> load(DataStore db, boolean shortfallsOnly)
+        throws SQLException {
+        HashMap<Integer, Integer> required = new HashMap<>();
+        Query query = Query.select(TABLE).columns("foodItemId", "required");
+        if (shortfallsOnly) {
+            query.where("shortfall", ">", 0);
+        }
+        query.select(
+            db,
+            rs -> {
+                required.put(rs.getInt("foodItemId"), rs.getInt("required"));
+            }
+        );
+        return required;
+    }
+
+    /**
+     * Recompute the demand of every food item from the meal plans.
+     *
+     * Streams one row per ingredient of each planned meal and counts them as they arrive (the
+     * in-memory engine has no `group by`), so only a counter per food item is held, however many
+     * meals are planned. Marks the table as built once done.
+     *
+     * @param db store to use (in a transaction)
+     * @throws SQLException if error executing SQL
+     */
+    public static void rebuild(DataStore db) throws SQLException {
+        // Wait for writes that skipped or changed the table to end, so their meals are counted
+        Boolean built = built(db, true);
+        // Units required by food item id (boxed once per food item, not once per row)
+        HashMap<Integer, int[]> required = new HashMap<>();
+        Query
+            .select("RecipeMealPlan", "rmp")
+            .columns("rfi.foodItemId as foodItemId")
+            .join("RecipeFoodItem", "rfi", "rfi.recipeId", "rmp.recipeId")
+            .select(
+                db,
+                rs -> {
+                    required.computeIfAbsent(rs.getInt("foodItemId"), id -> new int[1])[0]++;
+                }
+            );
+        HashMap<Integer, Integer> units = units(db, required.keySet());
+        ArrayList<int[]> rows = new ArrayList<>();
+        for (Map.Entry<Integer, int[]> entry : required.entrySet()) {
+            Integer have = units.get(entry.getKey());
+            if (have != null) {
+                int needed = entry.getValue()[0];
+                rows.add(new int[] { entry.getKey(), needed, Math.max(0, needed - have) });
+            }
+        }
+        Query delete = Query.deleteFrom(TABLE);
+        db.modify(delete.sql(), delete.binder());
+        db.insertBatch(
+            TABLE,
+            new String[] { "foodItemId", "required", "shortfall" },
+            rows,
+            (stmt, row) -> {
+                stmt.setInt(1, row[0]);
+                stmt.setInt(2, row[1]);
+                stmt.setInt(3, row[2]);
+            }
+        );
+        if (built == null) {
+            Query insert = Query.insertInto(STATE_TABLE, "id", "built");
+            db.modify(
+                insert.sql(),
+                stmt -> {
+                    stmt.setInt(1, 1);
+                    stmt.setInt(2, 1);
+                }
+            );
+        } else if (!built) {
+            Query update = Query.update(STATE_TABLE, "built").where("id", "=", 1);
+            db.modify(
+                update.sql(),
+                stmt -> {
+                    stmt.setInt(1, 1);
+                    update.binder().accept(stmt);
+                }
+            );
+        }
+    }
+
+    /**
+     * Update the demand for a recipe's ingredients being replaced.
+     *
+     * Call in the same transaction as the change, before the old ingredients are deleted.
+     *
+     * @param db store to use (in a transaction)
+     * @param recipeId id of the recipe
+     * @param ingredientIds ids of the recipe's new ingredients (empty if the recipe is being
+     *     deleted)
+     * @throws SQLException if error executing SQL
+     */
+    public static void updateForIngredients(
+        DataStore db,
+        int recipeId,
+        Collection<Integer> ingredientIds
+    )
+        throws SQLException {
+        if (!Boolean.TRUE.equals(built(db, true))) {
+            return;
+        }
+        // Number of meals using the recipe (each using one unit of each ingredient)
+        int[] meals = new int[1];
+        Query
+            .select("RecipeMealPlan")
+            .columns("recipeId")
+            .where("recipeId", "=", recipeId)
+            .select(
+                db,
+                rs -> {
+                    meals[0]++;
+                }
+            );
+        if (meals[0] == 0) {
+            return;
+        }
+        HashMap<Integer, Integer> deltas = new HashMap<>();
+        Query
+            .select("RecipeFoodItem")
+            .columns("foodItemId")
+            .where("recipeId", "=", recipeId)
+            .select(
+                db,
+                rs -> {
+                    deltas.merge(rs.getInt("foodItemId"), -meals[0], Integer::sum);
+                }
+            );
+        for (Integer ingredientId : ingredientIds) {
+            deltas.merge(ingredientId, meals[0], Integer::sum);
+        }
+        apply(db, deltas);
+    }
+
+    /**
+     * Update the demand for a meal plan's meals being replaced.
+     *
+     * Call in the same transaction as the change, before the old meals are deleted.
+     *
+     * @param db store to use (in a transaction)
+     * @param mealPlanId id of the meal plan
+     * @param recipeIds recipe ids of the plan's new meals (empty if the plan is being deleted)
+     * @throws SQLException if error executing SQL
+     */
+    public static void updateForMeals(DataStore db, int mealPlanId, Collection<Integer> recipeIds)
+        throws SQLException {
+        if (!Boolean.TRUE.equals(built(db, true))) {
+            return;
+        }
+        // Change in the number of meals using each recipe
+        HashMap<Integer, Integer> mealDeltas = new HashMap<>();
+        Query
+            .select("RecipeMealPlan")
+            .columns("recipeId")
+            .where("mealPlanId", "=", mealPlanId)
+            .select(
+                db,
+                rs -> {
+                    mealDeltas.merge(rs.getInt("recipeId"), -1, Integer::sum);
+                }
+            );
+        for (Integer recipeId : recipeIds) {
+            mealDeltas.merge(recipeId, 1, Integer::sum);
+        }
+        mealDeltas.values().removeIf(delta -> delta == 0);
+        HashMap<Integer, Integer> deltas = new HashMap<>();
+        Query
+            .select("RecipeFoodItem")
+            .columns("recipeId", "foodItemId")
+            .whereIn("recipeId", mealDeltas.keySet())
+            .select(
+                db,
+                rs -> {
+                    deltas.merge(
+                        rs.getInt("foodItemId"),
+                        mealDeltas.get(rs.getInt("recipeId")),
+                        Integer::sum
+                    );
+                }
+            );
+        apply(db, deltas);
+    }
+
+    /**
+     * Update the shortfall of a food item whose units changed.
+     *
+     * Call in the same transaction as the change, after the food item has been updated (which
+     * locks its row).
+     *
+     * @param db store to use (in a transaction)
+     * @param foodItemId id of the food item
+     * @param units the food item's new units
+     * @throws SQLException if error executing SQL
+     */
+    public static void updateForUnits(DataStore db, int foodItemId, int units)
+        throws SQLException {
+        HashMap<Integer, Integer> required = required(db, Collections.singletonList(foodItemId));
+        Integer needed = required.get(foodItemId);
+        if (needed != null) {
+            write(db, foodItemId, needed, units, true);
+        }
+    }
+
+    /**
+     * Read whether the table has been built.
+     *
+     * @param lock whether to lock the state row until the transaction ends
+     * @return whether the table is built (null if the state row is missing)
+     */
+    private static Boolean built(DataStore db, boolean lock) throws SQLException {
+        Boolean[] built = new Boolean[1];
+        Query query = Query.select(STATE_TABLE).columns("built").where("id", "=", 1);
+        if (lock) {
+            query.forUpdate();
+        }
+        query.select(
+            db,
+            rs -> {
+                built[0] = rs.getInt("built") != 0;
+            }
+        );
+        return built[0];
+    }
+
+    /**
+     * Add changes in required units to the table.
+     *
+     * @param deltas change in required units by food item id
+     */
+    private static void apply(DataStore db, HashMap<Integer, Integer> deltas)
+        throws SQLException {
+        deltas.values().removeIf(delta -> delta == 0);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        // Lock the food items before reading what they need
+        HashMap<Integer, Integer> units = units(db, deltas.keySet());
+        HashMap<Integer, Integer> required = required(db, deltas.keySet());
+        for (Map.Entry<Integer, Integer> entry : deltas.entrySet()) {
+            Integer foodItemId = entry.getKey();
+            if (!units.containsKey(foodItemId)) {
+                // Food item was deleted
+                continue;
+            }
+            boolean exists = required.containsKey(foodItemId);
+            int needed = required.getOrDefault(foodItemId, 0) + entry.getValue();
+            if (needed > 0) {
+                write(db, foodItemId, needed, units.get(foodItemId), exists);
+            } else if (exists) {
+                Query delete = Query.deleteFrom(TABLE).where("foodItemId", "=", foodItemId);
+                db.modify(delete.sql(), delete.binder());
+            }
+        }
+    }
+
+    /**
+     * Insert or update a food item's row.
+     */
+    private static void write(DataStore db, int foodItemId, int needed, int units, boolean exists)
+        throws SQLException {
+        int shortfall = Math.max(0, needed - units);
+        if (exists) {
+            Query update = Query
+                .update(TABLE, "required", "shortfall")
+                .where("foodItemId", "=", foodItemId);
+            db.modify(
+                update.sql(),
+                stmt -> {
+                    stmt.setInt(1, needed);
+                    stmt.setInt(2, shortfall);
+                    update.binder().accept(stmt);
+                }
+            );
+        } else {
+            Query insert = Query.insertInto(TABLE, "foodItemId", "required", "shortfall");
+            db.modify(
+                insert.sql(),
+                stmt -> {
+                    stmt.setInt(1, foodItemId);
+                    stmt.setInt(2, needed);
+                    stmt.setInt(3, shortfall);
+                }
+            );
+        }
+    }
+
+    /**
+     * Get the required units of some food items.
+     *
+     * @return required units by food item id (food items without a row are left out)
+     */
+    private static HashMap<Integer, Integer> required(DataStore db, Collection<Integer> ids)
+        throws SQLException {
+        HashMap<Integer, Integer> required = new HashMap<>();
+        Query
+            .select(TABLE)
+            .columns("foodItemId", "required")
+            .whereIn("foodItemId", ids)
+            .select(
+                db,
+                rs -> {
+                    required.put(rs.getInt("foodItemId"), rs.getInt("required"));
+                }
+            );
+        return required;
+    }
+
+    /**
+     * Get the units we have of some food items, locking their rows until the transaction ends
+     * (read from the table, not the entity cache, since this runs in a transaction).
+     *
+     * @return units by food item id (ids without a food item are left out)
+     */
+    private static HashMap<Integer, Integer> units(DataStore db, Collection<Integer> ids)
+        throws SQLException {
+        HashMap<Integer, Integer> units = new HashMap<>();
+        Query
+            .select("FoodItem")
+            .columns("id", "units")
+            .whereIn("id", ids)
+            .forUpdate()
+            .select(
+                db,
+                rs -> {
+                    units.put(rs.getInt("id"), rs.getInt("units"));
+                }
+            );
+        return units;
+    }
+}
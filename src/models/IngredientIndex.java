@@ -0,0 +1,253 @@
+package models;
+
+import database.DataStore;
+import database.Database;
+import database.Query;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * In-memory index of the recipes using each food item, for searching recipes by ingredient.
+ *
+ * Each food item maps to a bitmap of the ids of the recipes using it (built from
+ * `RecipeFoodItem`), and another bitmap holds the ids of the food items in stock (`units > 0`), so
+ * searches are a few bitmap AND/OR/ANDNOT operations rather than queries. Ids are small and dense
+ * (identity columns), so the bitmaps take a bit per recipe.
+ *
+ * The index is shared by the whole process and built on first use. Writes through the model
+ * classes update it once their transaction commits (so rolled back changes never reach it), and
+ * it's rebuilt `recipe_mgmt.ingredientIndex.ttlMs` after being built so changes made by other
+ * processes show up eventually. Searches run inside a transaction build an index of their own,
+ * since they may see changes that haven't committed.
+ */
+public class IngredientIndex {
+
+    // How long the index is used after being built
+    static final long TTL_MS = Long.getLong("recipe_mgmt.ingredientIndex.ttlMs", 60000);
+
+    // Index being used (null until built)
+    private static IngredientIndex instance;
+    // `System.nanoTime()` after which the index is rebuilt
+    private static long expiresAt;
+
+    // Ids of every recipe
+    private final BitSet recipes = new BitSet();
+    // Ids of the recipes using each food item, by food item id
+    private final HashMap<Integer, BitSet> recipesByFoodItem = new HashMap<>();
+    // Ids of the food items in stock
+    private final BitSet inStock = new BitSet();
+
+    private IngredientIndex() {}
+
+    /**
+     * Find recipes by their ingredients. Only the given criteria are applied, so with none of them
+     * every recipe is found.
+     *
+     * @param with ids of food items the recipes must all use
+     * @param any ids of food items the recipes must use at least one of (ignored if empty)
+     * @param without ids of food items the recipes must not use
+     * @param makeable whether the recipes must only use food items in stock
+     * @return ids of the recipes found
+     * @throws SQLException if error executing SQL (building the index)
+     */
+    public static synchronized BitSet search(
+        Collection<Integer> with,
+        Collection<Integer> any,
+        Collection<Integer> without,
+        boolean makeable
+    )
+        throws SQLException {
+        IngredientIndex index = get();
+        BitSet found = (BitSet) index.recipes.clone();
+        for (Integer foodItemId : with) {
+            found.and(index.recipesUsing(foodItemId));
+        }
+        if (!any.isEmpty()) {
+            BitSet usingAny = new BitSet();
+            for (Integer foodItemId : any) {
+                usingAny.or(index.recipesUsing(foodItemId));
+            }
+            found.and(usingAny);
+        }
+        for (Integer foodItemId : without) {
+            found.andNot(index.recipesUsing(foodItemId));
+        }
+        if (makeable) {
+            for (Map.Entry<Integer, BitSet> entry : index.recipesByFoodItem.entrySet()) {
+                if (!index.inStock.get(entry.getKey())) {
+                    found.andNot(entry.getValue());
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Update the index for a recipe being created, once the transaction commits.
+     *
+     * @param db store the recipe was created in
+     * @param recipeId id of the recipe
+     */
+    public static void addRecipe(DataStore db, int recipeId) {
+        updateAfterCommit(db, index -> index.recipes.set(recipeId));
+    }
+
+    /**
+     * Update the index for a recipe's ingredients being replaced, once the transaction commits.
+     *
+     * @param db store the ingredients were saved to
+     * @param recipeId id of the recipe
+     * @param ingredientIds ids of the recipe's new ingredients
+     */
+    public static void setIngredients(
+        DataStore db,
+        int recipeId,
+        Collection<Integer> ingredientIds
+    ) {
+        ArrayList<Integer> ids = new ArrayList<>(ingredientIds);
+        updateAfterCommit(
+            db,
+            index -> {
+                index.recipes.set(recipeId);
+                for (BitSet using : index.recipesByFoodItem.values()) {
+                    using.clear(recipeId);
+                }
+                for (Integer foodItemId : ids) {
+                    index.recipesByFoodItem
+                        .computeIfAbsent(foodItemId, id -> new BitSet())
+                        .set(recipeId);
+                }
+            }
+        );
+    }
+
+    /**
+     * Update the index for a recipe being deleted, once the transaction commits.
+     *
+     * @param db store the recipe was deleted from
+     * @param recipeId id of the recipe
+     */
+    public static void removeRecipe(DataStore db, int recipeId) {
+        updateAfterCommit(
+            db,
+            index -> {
+                index.recipes.clear(recipeId);
+                for (BitSet using : index.recipesByFoodItem.values()) {
+                    using.clear(recipeId);
+                }
+            }
+        );
+    }
+
+    /**
+     * Update the index for a food item's units changing (or the food item being created), once
+     * the transaction commits.
+     *
+     * @param db store the food item was saved to
+     * @param foodItemId id of the food item
+     * @param units the food item's new units
+     */
+    public static void setStock(DataStore db, int foodItemId, int units) {
+        updateAfterCommit(db, index -> index.inStock.set(foodItemId, units > 0));
+    }
+
+    /**
+     * Update the index for a food item being deleted (along with its links to recipes), once the
+     * transaction commits.
+     *
+     * @param db store the food item was deleted from
+     * @param foodItemId id of the food item
+     */
+    public static void removeFoodItem(DataStore db, int foodItemId) {
+        updateAfterCommit(
+            db,
+            index -> {
+                index.inStock.clear(foodItemId);
+                index.recipesByFoodItem.remove(foodItemId);
+            }
+        );
+    }
+
+    /**
+     * Apply an update to the index (if it's been built) once the transaction open on this thread
+     * commits, or right away if there isn't one.
+     */
+    private static void updateAfterCommit(DataStore db, Consumer<IngredientIndex> update) {
+        db.afterCommit(
+            () -> {
+                synchronized (IngredientIndex.class) {
+                    if (instance != null) {
+                        update.accept(instance);
+                    }
+                }
+            }
+        );
+    }
+
+    /**
+     * Get the index, building it if it hasn't been or has expired.
+     */
+    private static IngredientIndex get() throws SQLException {
+        DataStore db = Database.getInstance();
+        if (db.isInTransaction()) {
+            // Don't share an index that may hold changes that never commit
+            IngredientIndex index = new IngredientIndex();
+            index.build(db);
+            return index;
+        }
+        if (instance == null || System.nanoTime() - expiresAt > 0) {
+            IngredientIndex index = new IngredientIndex();
+            db.inTransaction(index::build);
+            instance = index;
+            expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TTL_MS);
+        }
+        return instance;
+    }
+
+    private void build(DataStore db) throws SQLException {
+        Query
+            .select("Recipe")
+            .columns("id")
+            .select(
+                db,
+                rs -> {
+                    recipes.set(rs.getInt("id"));
+                }
+            );
+        Query
+            .select("RecipeFoodItem")
+            .columns("recipeId", "foodItemId")
+            .select(
+                db,
+                rs -> {
+                    recipesByFoodItem
+                        .computeIfAbsent(rs.getInt("foodItemId"), id -> new BitSet())
+                        .set(rs.getInt("recipeId"));
+                }
+            );
+        Query
+            .select("FoodItem")
+            .columns("id")
+            .where("units", ">", 0)
+            .select(
+                db,
+                rs -> {
+                    inStock.set(rs.getInt("id"));
+                }
+            );
+    }
+
+    /**
+     * @return ids of the recipes using a food item (empty if none do)
+     */
+    private BitSet recipesUsing(int foodItemId) {
+        BitSet using = recipesByFoodItem.get(foodItemId);
+        return using == null ? new BitSet() : using;
+    }
+}
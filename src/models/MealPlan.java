@@ -5,11 +5,28 @@ import database.ThrowingConsumer;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Optional;
-import utils.ModelHelper;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import utils.ModelMeta;
+import utils.Page;
+import utils.SortSpec;
 
 public class MealPlan implements Comparable<MealPlan> {
 
+    // Table mapping (row column 0 is the id, then the listed columns in order)
+    public static final ModelMeta<MealPlan> META = new ModelMeta<>(
+        "MealPlan",
+        new String[] { "name", "day" },
+        row -> new MealPlan(row.getInt(0), row.getString(1), row.getString(2)),
+        (stmt, plan) -> {
+            stmt.setString(1, plan.name);
+            stmt.setString(2, plan.day);
+        },
+        plan -> plan.id
+    );
+
     public Integer id;
     public String name;
     public String day;
@@ -21,15 +38,18 @@ public class MealPlan implements Comparable<MealPlan> {
     }
 
     public static Optional<MealPlan> get(Integer id) throws SQLException {
-        return Optional.ofNullable(
-            ModelHelper.get(
-                id,
-                "MealPlan",
-                rs -> {
-                    return new MealPlan(id, rs.getString("name"), rs.getString("day"));
-                }
-            )
-        );
+        return META.get(id);
+    }
+
+    /**
+     * Get a meal plan by id on a background thread.
+     *
+     * @param id id of the meal plan
+     * @return future meal plan (empty if there's no such meal plan)
+     * @throws SQLException if error connecting to the database
+     */
+    public static CompletableFuture<Optional<MealPlan>> getAsync(Integer id) throws SQLException {
+        return META.getAsync(id);
     }
 
     public static ArrayList<MealPlan> filter(
@@ -37,44 +57,69 @@ public class MealPlan implements Comparable<MealPlan> {
         ThrowingConsumer<PreparedStatement, SQLException> setValues
     )
         throws SQLException {
-        return ModelHelper.filter(
-            sql,
-            setValues,
-            rs -> {
-                return new MealPlan(rs.getInt("id"), rs.getString("name"), rs.getString("day"));
-            }
+        return META.filter(sql, setValues);
+    }
+
+    /**
+     * Get a page of meal plans in id order.
+     *
+     * @param after only get rows with an id greater than this (null to start at the beginning)
+     * @param pageSize max number of rows to get
+     * @return page of instances
+     * @throws SQLException if error executing SQL
+     */
+    public static Page<MealPlan> page(Integer after, int pageSize) throws SQLException {
+        return META.page(after, pageSize);
+    }
+
+    /**
+     * Get meal plans sorted by a column, sorting in the query.
+     *
+     * @param sortBy what to sort by (`id`, `name` or `day`)
+     * @param descending whether to sort in descending order
+     * @param limit max number of meal plans to get (null for all of them)
+     * @return sorted meal plans
+     * @throws SQLException if error executing SQL
+     * @throws IllegalArgumentException if meal plans can't be sorted by `sortBy`
+     */
+    public static ArrayList<MealPlan> sorted(String sortBy, boolean descending, Integer limit)
+        throws SQLException {
+        if (!sortBy.equals("id") && !sortBy.equals("name") && !sortBy.equals("day")) {
+            throw new IllegalArgumentException(
+                String.format("Can't sort meal plans by \"%s\" (use id, name or day)", sortBy)
+            );
+        }
+        return META.filter(
+            META.query(),
+            SortSpec.sql(limit, sortBy + (descending ? " desc" : ""), "id")
         );
     }
 
+    public static Stream<MealPlan> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return META.stream(sql, setValues);
+    }
+
     public static MealPlan create(String name, String day) throws SQLException {
-        Database db = Database.getInstance();
-        Optional<Integer> id = db.insert(
-            "MealPlan",
-            new String[] { "name", "day" },
-            stmt -> {
-                stmt.setString(1, name);
-                stmt.setString(2, day);
-            },
-            true
-        );
-        return get(id.get()).get();
+        return META.create(new MealPlan(null, name, day));
     }
 
     public void update() throws SQLException {
-        Database db = Database.getInstance();
-        db.update(
-            "MealPlan",
-            new String[] { "name", "day" },
-            id,
-            stmt -> {
-                stmt.setString(1, name);
-                stmt.setString(2, day);
-            }
-        );
+        META.update(this);
     }
 
     public void delete() throws SQLException {
-        ModelHelper.delete(id, "MealPlan");
+        Database.getInstance()
+            .inTransaction(
+                db -> {
+                    // The meal plan's meals go with it
+                    FoodItemDemand.updateForMeals(db, id, Collections.emptyList());
+                    META.delete(id);
+                }
+            );
     }
 
     @Override
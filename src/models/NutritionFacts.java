@@ -1,15 +1,38 @@
 package models;
 
 import database.Database;
+import database.Query;
 import database.ThrowingConsumer;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Optional;
-import utils.ModelHelper;
+import utils.ModelMeta;
 
 public class NutritionFacts implements Comparable<NutritionFacts> {
 
+    // Table mapping (row column 0 is the id, then the listed columns in order)
+    public static final ModelMeta<NutritionFacts> META = new ModelMeta<>(
+        "NutritionFacts",
+        new String[] { "calories", "sugar", "protein", "sodium", "fat" },
+        row ->
+            new NutritionFacts(
+                row.getInt(0),
+                row.getInt(1),
+                row.getInt(2),
+                row.getInt(3),
+                row.getInt(4),
+                row.getInt(5)
+            ),
+        (stmt, facts) -> {
+            stmt.setInt(1, facts.calories);
+            stmt.setInt(2, facts.sugar);
+            stmt.setInt(3, facts.protein);
+            stmt.setInt(4, facts.sodium);
+            stmt.setInt(5, facts.fat);
+        },
+        facts -> facts.id
+    );
+
     public Integer id;
     public Integer calories;
     public Integer sugar;
@@ -27,20 +50,7 @@ public class NutritionFacts implements Comparable<NutritionFacts> {
     }
 
     public static NutritionFacts get(Integer id) throws SQLException {
-        return ModelHelper.get(
-            id,
-            "NutritionFacts",
-            rs -> {
-                return new NutritionFacts(
-                    id,
-                    rs.getInt("calories"),
-                    rs.getInt("sugar"),
-                    rs.getInt("protein"),
-                    rs.getInt("sodium"),
-                    rs.getInt("fat")
-                );
-            }
-        );
+        return META.get(id).orElse(null);
     }
 
     public static ArrayList<NutritionFacts> filter(
@@ -48,58 +58,40 @@ public class NutritionFacts implements Comparable<NutritionFacts> {
         ThrowingConsumer<PreparedStatement, SQLException> setValues
     )
         throws SQLException {
-        return ModelHelper.filter(
-            sql,
-            setValues,
-            rs -> {
-                return new NutritionFacts(
-                    rs.getInt("id"),
-                    rs.getInt("calories"),
-                    rs.getInt("sugar"),
-                    rs.getInt("protein"),
-                    rs.getInt("sodium"),
-                    rs.getInt("fat")
-                );
-            }
-        );
+        return META.filter(sql, setValues);
     }
 
     public static NutritionFacts create(int calories, int sugar, int protein, int sodium, int fat)
         throws SQLException {
-        Database db = Database.getInstance();
-        Optional<Integer> id = db.insert(
-            "NutritionFacts",
-            new String[] { "calories", "sugar", "protein", "sodium", "fat" },
-            stmt -> {
-                stmt.setInt(1, calories);
-                stmt.setInt(2, sugar);
-                stmt.setInt(3, protein);
-                stmt.setInt(4, sodium);
-                stmt.setInt(5, fat);
-            },
-            true
-        );
-        return get(id.get());
+        return META.create(new NutritionFacts(0, calories, sugar, protein, sodium, fat));
     }
 
     public void update() throws SQLException {
-        Database db = Database.getInstance();
-        db.update(
-            "NutritionFacts",
-            new String[] { "calories", "sugar", "protein", "sodium", "fat" },
-            id,
-            stmt -> {
-                stmt.setInt(1, calories);
-                stmt.setInt(2, sugar);
-                stmt.setInt(3, protein);
-                stmt.setInt(4, sodium);
-                stmt.setInt(5, fat);
-            }
-        );
+        META.update(this);
     }
 
     public void delete() throws SQLException {
-        ModelHelper.delete(id, "NutritionFacts");
+        Database.getInstance()
+            .inTransaction(
+                db -> {
+                    // The food items using these facts are deleted with them (on delete cascade)
+                    ArrayList<Integer> foodItemIds = new ArrayList<>();
+                    Query
+                        .select("FoodItem")
+                        .columns("id")
+                        .where("nutritionFactsId", "=", id)
+                        .select(
+                            db,
+                            rs -> {
+                                foodItemIds.add(rs.getInt("id"));
+                            }
+                        );
+                    META.delete(id);
+                    for (int foodItemId : foodItemIds) {
+                        IngredientIndex.removeFoodItem(db, foodItemId);
+                    }
+                }
+            );
     }
 
     @Override
@@ -0,0 +1,263 @@
+package models;
+
+import database.DataStore;
+import database.Database;
+import database.Query;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Nutrition totals of every recipe, meal plan and of the whole week.
+ *
+ * The nutrition facts of the food items are loaded into one `int[]` column per nutrient, and added
+ * up into columns for the recipes and for the meal plans. This takes one pass over each of
+ * `NutritionFacts`, `RecipeFoodItem` and `RecipeMealPlan` (the in-memory engine has no `group by`).
+ * Ids are mapped to dense column indexes as they're first seen, since identity values can be far
+ * apart (e.g. Oracle caches blocks of them), so the columns only grow with the number of rows. The
+ * ids are mapped with an open addressing table of `int`s, so nothing is boxed per row.
+ */
+public class NutritionRollup {
+
+    // Names of the nutrients, in column order
+    public static final String[] NUTRIENTS = { "calories", "sugar", "protein", "sodium", "fat" };
+
+    // Nutrient values by nutrient, then by food item index
+    private final int[][] foodItems = new int[NUTRIENTS.length][0];
+    // Totals by nutrient, then by recipe index
+    private final int[][] recipes = new int[NUTRIENTS.length][0];
+    // Totals by nutrient, then by meal plan index
+    private final int[][] mealPlans = new int[NUTRIENTS.length][0];
+    // Column indexes by id
+    private final Indexes foodItemIndexes = new Indexes();
+    private final Indexes recipeIndexes = new Indexes();
+    private final Indexes mealPlanIndexes = new Indexes();
+    // Totals of every meal plan, by nutrient
+    private final int[] week = new int[NUTRIENTS.length];
+
+    private NutritionRollup() {}
+
+    /**
+     * Load the nutrition facts and add them up.
+     *
+     * Reads in one serializable transaction, so every query sees the same snapshot and the totals
+     * agree with each other (under read committed, each query would see the commits made since the
+     * one before it).
+     *
+     * @return nutrition totals
+     * @throws SQLException if error executing SQL
+     */
+    public static NutritionRollup load() throws SQLException {
+        NutritionRollup rollup = new NutritionRollup();
+        Database.getInstance()
+            .inTransaction(
+                Connection.TRANSACTION_SERIALIZABLE,
+                db -> {
+                    rollup.loadFoodItems(db);
+                    rollup.addRecipes(db);
+                    rollup.addMealPlans(db);
+                }
+            );
+        return rollup;
+    }
+
+    /**
+     * @param recipeId id of the recipe
+     * @return total nutrition facts of the recipe's ingredients (with an id of 0)
+     */
+    public NutritionFacts recipe(int recipeId) {
+        return facts(recipes, recipeIndexes.get(recipeId));
+    }
+
+    /**
+     * @param mealPlanId id of the meal plan
+     * @return total nutrition facts of the plan's meals (with an id of 0)
+     */
+    public NutritionFacts mealPlan(int mealPlanId) {
+        return facts(mealPlans, mealPlanIndexes.get(mealPlanId));
+    }
+
+    /**
+     * Get the nutrient values of some nutrition facts, in the order of `NUTRIENTS`.
+     *
+     * @param facts nutrition facts
+     * @return nutrient values
+     */
+    public static int[] values(NutritionFacts facts) {
+        return new int[] { facts.calories, facts.sugar, facts.protein, facts.sodium, facts.fat };
+    }
+
+    /**
+     * @return total nutrition facts of every meal plan (with an id of 0)
+     */
+    public NutritionFacts week() {
+        return new NutritionFacts(0, week[0], week[1], week[2], week[3], week[4]);
+    }
+
+    private void loadFoodItems(DataStore db) throws SQLException {
+        Query
+            .select("FoodItem", "fi")
+            .columns(
+                "fi.id as id",
+                "nf.calories as calories",
+                "nf.sugar as sugar",
+                "nf.protein as protein",
+                "nf.sodium as sodium",
+                "nf.fat as fat"
+            )
+            .join("NutritionFacts", "nf", "fi.nutritionFactsId", "nf.id")
+            .select(
+                db,
+                rs -> {
+                    int foodItem = index(foodItemIndexes, foodItems, rs.getInt("id"));
+                    for (int n = 0; n < NUTRIENTS.length; n++) {
+                        foodItems[n][foodItem] = rs.getInt(NUTRIENTS[n]);
+                    }
+                }
+            );
+    }
+
+    private void addRecipes(DataStore db) throws SQLException {
+        Query
+            .select("RecipeFoodItem")
+            .columns("recipeId", "foodItemId")
+            .select(
+                db,
+                rs -> {
+                    int recipe = index(recipeIndexes, recipes, rs.getInt("recipeId"));
+                    int foodItem = foodItemIndexes.get(rs.getInt("foodItemId"));
+                    if (foodItem >= 0) {
+                        for (int n = 0; n < NUTRIENTS.length; n++) {
+                            recipes[n][recipe] += foodItems[n][foodItem];
+                        }
+                    }
+                }
+            );
+    }
+
+    private void addMealPlans(DataStore db) throws SQLException {
+        Query
+            .select("RecipeMealPlan")
+            .columns("recipeId", "mealPlanId")
+            .select(
+                db,
+                rs -> {
+                    int mealPlan = index(mealPlanIndexes, mealPlans, rs.getInt("mealPlanId"));
+                    int recipe = recipeIndexes.get(rs.getInt("recipeId"));
+                    if (recipe >= 0) {
+                        for (int n = 0; n < NUTRIENTS.length; n++) {
+                            mealPlans[n][mealPlan] += recipes[n][recipe];
+                            week[n] += recipes[n][recipe];
+                        }
+                    }
+                }
+            );
+    }
+
+    /**
+     * Get the column index of an id, adding one (and growing the columns, doubling them) the first
+     * time the id is seen.
+     */
+    private static int index(Indexes indexes, int[][] columns, int id) {
+        int index = indexes.add(id);
+        if (index >= columns[0].length) {
+            int length = Math.max(16, columns[0].length * 2);
+            for (int n = 0; n < columns.length; n++) {
+                columns[n] = Arrays.copyOf(columns[n], length);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Read the totals at one column index (zeros if there's no index, i.e. nothing to add up).
+     */
+    private static NutritionFacts facts(int[][] columns, int index) {
+        if (index < 0) {
+            return new NutritionFacts(0, 0, 0, 0, 0, 0);
+        }
+        return new NutritionFacts(
+            0,
+            columns[0][index],
+            columns[1][index],
+            columns[2][index],
+            columns[3][index],
+            columns[4][index]
+        );
+    }
+
+    /**
+     * Column indexes by id, in an open addressing hash table (with linear probing).
+     */
+    private static class Indexes {
+
+        // Ids in their slots
+        private int[] ids = new int[16];
+        // Column index + 1 of the id in each slot (0 for an empty slot)
+        private int[] slots = new int[16];
+        // Number of ids added
+        private int size = 0;
+
+        /**
+         * @return the id's column index (-1 if it hasn't been added)
+         */
+        int get(int id) {
+            int mask = ids.length - 1;
+            for (int slot = hash(id) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (ids[slot] == id) {
+                    return slots[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Get the id's column index, giving it the next one if it hasn't been added.
+         */
+        int add(int id) {
+            int mask = ids.length - 1;
+            int slot = hash(id) & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (ids[slot] == id) {
+                    return slots[slot] - 1;
+                }
+            }
+            ids[slot] = id;
+            slots[slot] = ++size;
+            // Keep at most half of the slots full, so probes stay short
+            if (size * 2 > ids.length) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        /**
+         * Double the number of slots, moving every id to its new slot.
+         */
+        private void grow() {
+            int[] oldIds = ids;
+            int[] oldSlots = slots;
+            ids = new int[oldIds.length * 2];
+            slots = new int[oldSlots.length * 2];
+            int mask = ids.length - 1;
+            for (int i = 0; i < oldIds.length; i++) {
+                if (oldSlots[i] != 0) {
+                    int slot = hash(oldIds[i]) & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    ids[slot] = oldIds[i];
+                    slots[slot] = oldSlots[i];
+                }
+            }
+        }
+
+        /**
+         * Spread consecutive ids over the slots (Fibonacci hashing).
+         */
+        private static int hash(int id) {
+            int hash = id * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
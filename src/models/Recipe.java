@@ -1,19 +1,103 @@
 package models;
 
+import database.DataStore;
 import database.Database;
+import database.Query;
 import database.ThrowingConsumer;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
-import utils.ModelHelper;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+import utils.ConstructInstanceLambda;
+import utils.ModelMeta;
+import utils.Page;
+import utils.SortSpec;
 
 public class Recipe implements Comparable<Recipe> {
 
+    // Selects the ingredients of a recipe
+    private static final String FOOD_ITEMS_SQL =
+        "select fi.* from FoodItem fi join RecipeFoodItem rfi on fi.id = rfi.foodItemId join Recipe r on rfi.recipeId = r.id where r.id = ?";
+
+    // Selects the instructions of a recipe
+    private static final String INSTRUCTIONS_SQL = "select instructions from Recipe where id = ?";
+
+    // Columns shown by list views (leaving out the instructions, which can be large)
+    public static final String[] SUMMARY_COLUMNS = { "name", "category" };
+
+    // Table mapping (row column 0 is the id, then the listed columns in order)
+    public static final ModelMeta<Recipe> META = new ModelMeta<>(
+        "Recipe",
+        new String[] { "name", "instructions", "category" },
+        row -> new Recipe(row.getInt(0), row.getString(1), row.getString(2), row.getString(3)),
+        (stmt, recipe) -> {
+            stmt.setString(1, recipe.name);
+            stmt.setString(2, recipe.instructions);
+            stmt.setString(3, recipe.category);
+        },
+        recipe -> recipe.id
+    );
+
+    /**
+     * A recipe along with its ingredients and their nutrition facts.
+     */
+    public static class Graph {
+
+        public final Recipe recipe;
+        // Ingredients, sorted
+        public final List<FoodItem> foodItems = new ArrayList<>();
+        // Nutrition facts of each ingredient, by food item id
+        public final HashMap<Integer, NutritionFacts> nutritionFacts = new HashMap<>();
+
+        Graph(Recipe recipe) {
+            this.recipe = recipe;
+        }
+
+        /**
+         * Add up the nutrition facts of every ingredient.
+         *
+         * @return total nutrition facts (with an id of 0)
+         */
+        public NutritionFacts totalNutrition() {
+            NutritionFacts total = new NutritionFacts(0, 0, 0, 0, 0, 0);
+            for (NutritionFacts facts : nutritionFacts.values()) {
+                total.calories += facts.calories;
+                total.sugar += facts.sugar;
+                total.protein += facts.protein;
+                total.sodium += facts.sodium;
+                total.fat += facts.fat;
+            }
+            return total;
+        }
+    }
+
+    // Selects a recipe, its ingredients and their nutrition facts in one go (the instructions are
+    // left to be loaded lazily, rather than being repeated on every row)
+    private static final String GRAPH_SQL = String.format(
+        "select %s, %s, %s from Recipe r " +
+        "join RecipeFoodItem rfi on rfi.recipeId = r.id " +
+        "join FoodItem fi on fi.id = rfi.foodItemId " +
+        "join NutritionFacts nf on nf.id = fi.nutritionFactsId " +
+        "where r.id = ?",
+        META.selectList("r", "r_", SUMMARY_COLUMNS),
+        FoodItem.META.selectList("fi", "fi_"),
+        NutritionFacts.META.selectList("nf", "nf_")
+    );
+
     public Integer id;
     public String name;
-    public String instructions;
+    // Null until loaded (see `getInstructions`)
+    private String instructions;
     public String category;
 
     public Recipe(int id, String name, String instructions, String category) {
@@ -23,21 +107,78 @@ public class Recipe implements Comparable<Recipe> {
         this.category = category;
     }
 
-    public static Optional<Recipe> get(Integer id) throws SQLException {
-        return Optional.ofNullable(
-            ModelHelper.get(
-                id,
-                "Recipe",
+    /**
+     * Get the recipe's instructions, loading them on first access if the recipe was read without
+     * them (e.g. by a list view).
+     *
+     * @return instructions
+     * @throws SQLException if error executing SQL
+     */
+    public String getInstructions() throws SQLException {
+        if (instructions == null) {
+            StringBuilder text = new StringBuilder();
+            streamInstructions(text);
+            instructions = text.toString();
+        }
+        return instructions;
+    }
+
+    public void setInstructions(String instructions) {
+        this.instructions = instructions;
+    }
+
+    /**
+     * Write the recipe's instructions out as they're read from the database, without holding
+     * them all in memory (unless they're already loaded).
+     *
+     * @param out where to write the instructions
+     * @throws SQLException if error executing SQL, or writing to `out`
+     */
+    public void streamInstructions(Appendable out) throws SQLException {
+        try {
+            if (instructions != null) {
+                out.append(instructions);
+                return;
+            }
+            DataStore db = Database.getInstance();
+            db.select(
+                INSTRUCTIONS_SQL,
                 rs -> {
-                    return new Recipe(
-                        id,
-                        rs.getString("name"),
-                        rs.getString("instructions"),
-                        rs.getString("category")
-                    );
+                    try (Reader reader = rs.getCharacterStream(1)) {
+                        if (reader == null) {
+                            return;
+                        }
+                        char[] buffer = new char[8192];
+                        int length;
+                        while ((length = reader.read(buffer)) != -1) {
+                            out.append(CharBuffer.wrap(buffer, 0, length));
+                        }
+                    } catch (IOException e) {
+                        throw new SQLException("Error streaming recipe instructions", e);
+                    }
+                },
+                stmt -> {
+                    stmt.setInt(1, id);
                 }
-            )
-        );
+            );
+        } catch (IOException e) {
+            throw new SQLException("Error streaming recipe instructions", e);
+        }
+    }
+
+    public static Optional<Recipe> get(Integer id) throws SQLException {
+        return META.get(id);
+    }
+
+    /**
+     * Get a recipe by id on a background thread.
+     *
+     * @param id id of the recipe
+     * @return future recipe (empty if there's no such recipe)
+     * @throws SQLException if error connecting to the database
+     */
+    public static CompletableFuture<Optional<Recipe>> getAsync(Integer id) throws SQLException {
+        return META.getAsync(id);
     }
 
     public static ArrayList<Recipe> filter(
@@ -45,63 +186,250 @@ public class Recipe implements Comparable<Recipe> {
         ThrowingConsumer<PreparedStatement, SQLException> setValues
     )
         throws SQLException {
-        return ModelHelper.filter(
-            sql,
-            setValues,
-            rs -> {
-                return new Recipe(
-                    rs.getInt("id"),
-                    rs.getString("name"),
-                    rs.getString("instructions"),
-                    rs.getString("category")
-                );
-            }
+        return META.filter(sql, setValues);
+    }
+
+    /**
+     * Get a page of recipes in id order, without their instructions (see `getInstructions`).
+     *
+     * @param after only get rows with an id greater than this (null to start at the beginning)
+     * @param pageSize max number of rows to get
+     * @return page of instances
+     * @throws SQLException if error executing SQL
+     */
+    public static Page<Recipe> page(Integer after, int pageSize) throws SQLException {
+        return META.page(after, pageSize, SUMMARY_COLUMNS);
+    }
+
+    /**
+     * Get recipes (without their instructions) by id.
+     *
+     * @param ids ids of the recipes
+     * @return recipes found, sorted by id
+     * @throws SQLException if error executing SQL
+     */
+    public static ArrayList<Recipe> getSummaries(Collection<Integer> ids) throws SQLException {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // Sorted in the JVM since the ids may be looked up in more than one query
+        return META.filter(
+            META.query(SUMMARY_COLUMNS).whereIn("id", ids),
+            SortSpec.inJvm(Comparator.<Recipe>naturalOrder(), null)
         );
     }
 
+    /**
+     * Get recipes (without their instructions) sorted by a column or by total calories.
+     *
+     * Columns are sorted in the query. Total calories are added up first (aggregates aren't
+     * supported by every storage engine), then the recipes are sorted in the JVM, only holding on
+     * to the top `limit` of them.
+     *
+     * @param sortBy what to sort by (`id`, `name`, `category` or `calories`)
+     * @param descending whether to sort in descending order
+     * @param limit max number of recipes to get (null for all of them)
+     * @return sorted recipes
+     * @throws SQLException if error executing SQL
+     * @throws IllegalArgumentException if recipes can't be sorted by `sortBy`
+     */
+    public static ArrayList<Recipe> sorted(String sortBy, boolean descending, Integer limit)
+        throws SQLException {
+        Query query = META.query(SUMMARY_COLUMNS);
+        String direction = descending ? " desc" : "";
+        switch (sortBy) {
+            case "id":
+                return META.filter(query, SortSpec.sql(limit, "id" + direction));
+            case "name":
+            case "category":
+                return META.filter(query, SortSpec.sql(limit, sortBy + direction, "id"));
+            case "calories":
+                {
+                    // Add up the calories of each recipe's ingredients
+                    HashMap<Integer, Integer> calories = new HashMap<>();
+                    Query
+                        .select("RecipeFoodItem", "rfi")
+                        .columns("rfi.recipeId", "nf.calories")
+                        .join("FoodItem", "fi", "fi.id", "rfi.foodItemId")
+                        .join("NutritionFacts", "nf", "nf.id", "fi.nutritionFactsId")
+                        .select(
+                            Database.getInstance(),
+                            rs -> {
+                                calories.merge(
+                                    rs.getInt("recipeId"),
+                                    rs.getInt("calories"),
+                                    Integer::sum
+                                );
+                            }
+                        );
+                    Comparator<Recipe> byCalories = Comparator.comparingInt(
+                        recipe -> calories.getOrDefault(recipe.id, 0)
+                    );
+                    if (descending) {
+                        byCalories = byCalories.reversed();
+                    }
+                    return META.filter(
+                        query,
+                        SortSpec.inJvm(byCalories.thenComparing(recipe -> recipe.id), limit)
+                    );
+                }
+            default:
+                throw new IllegalArgumentException(
+                    String.format(
+                        "Can't sort recipes by \"%s\" (use id, name, category or calories)",
+                        sortBy
+                    )
+                );
+        }
+    }
+
+    public static Stream<Recipe> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return META.stream(sql, setValues);
+    }
+
     public static Recipe create(String name, String instructions, String category)
         throws SQLException {
-        Database db = Database.getInstance();
-        Optional<Integer> id = db.insert(
-            "Recipe",
-            new String[] { "name", "instructions", "category" },
-            stmt -> {
-                stmt.setString(1, name);
-                stmt.setString(2, instructions);
-                stmt.setString(3, category);
-            },
-            true
-        );
-        return get(id.get()).get();
+        Recipe recipe = META.create(new Recipe(0, name, instructions, category));
+        DataStore db = Database.getInstance();
+        IngredientIndex.addRecipe(db, recipe.id);
+        RecipeTextIndex.update(db, recipe.id, name, instructions);
+        return recipe;
     }
 
     public void update() throws SQLException {
-        Database db = Database.getInstance();
-        db.update(
-            "Recipe",
-            new String[] { "name", "instructions", "category" },
-            id,
-            stmt -> {
-                stmt.setString(1, name);
-                stmt.setString(2, instructions);
-                stmt.setString(3, category);
-            }
-        );
+        // Every column is saved, so make sure the instructions are loaded
+        getInstructions();
+        META.update(this);
+        RecipeTextIndex.update(Database.getInstance(), id, name, instructions);
     }
 
     public void delete() throws SQLException {
-        ModelHelper.delete(id, "Recipe");
+        Database.getInstance()
+            .inTransaction(
+                db -> {
+                    // The recipe's meals and ingredients go with it
+                    FoodItemDemand.updateForIngredients(db, id, Collections.emptyList());
+                    META.delete(id);
+                    IngredientIndex.removeRecipe(db, id);
+                    RecipeTextIndex.delete(db, id);
+                }
+            );
     }
 
     public List<FoodItem> getFoodItems() throws SQLException {
         return FoodItem.filter(
-            "select fi.* from FoodItem fi join RecipeFoodItem rfi on fi.id = rfi.foodItemId join Recipe r on rfi.recipeId = r.id where r.id = ?",
+            FOOD_ITEMS_SQL,
             stmt -> {
                 stmt.setInt(1, id);
             }
         );
     }
 
+    /**
+     * Get the ingredients of a recipe on a background thread (e.g. while the recipe itself is
+     * being looked up).
+     *
+     * @param recipeId id of the recipe
+     * @return future list of ingredients
+     * @throws SQLException if error connecting to the database
+     */
+    public static CompletableFuture<ArrayList<FoodItem>> getFoodItemsAsync(Integer recipeId)
+        throws SQLException {
+        return FoodItem.filterAsync(
+            FOOD_ITEMS_SQL,
+            stmt -> {
+                stmt.setInt(1, recipeId);
+            }
+        );
+    }
+
+    /**
+     * Get a recipe along with its ingredients and their nutrition facts, using a single joined
+     * query (plus one more if the recipe has no ingredients).
+     *
+     * @param id id of the recipe
+     * @return recipe graph (empty if there's no such recipe)
+     * @throws SQLException if error executing SQL
+     */
+    public static Optional<Graph> getGraph(Integer id) throws SQLException {
+        DataStore db = Database.getInstance();
+        ConstructInstanceLambda<Recipe> recipeMapper = META.mapper("r_");
+        ConstructInstanceLambda<FoodItem> foodItemMapper = FoodItem.META.mapper("fi_");
+        ConstructInstanceLambda<NutritionFacts> nutritionFactsMapper = NutritionFacts.META.mapper(
+            "nf_"
+        );
+        Graph[] graph = new Graph[1];
+        db.select(
+            GRAPH_SQL,
+            rs -> {
+                // Every row has the recipe, so only construct it once
+                if (graph[0] == null) {
+                    graph[0] = new Graph(recipeMapper.run(rs));
+                }
+                FoodItem foodItem = foodItemMapper.run(rs);
+                graph[0].foodItems.add(foodItem);
+                graph[0].nutritionFacts.put(foodItem.id, nutritionFactsMapper.run(rs));
+            },
+            stmt -> {
+                stmt.setInt(1, id);
+            }
+        );
+        if (graph[0] == null) {
+            // Either there's no such recipe, or it has no ingredients
+            return get(id).map(Graph::new);
+        }
+        Collections.sort(graph[0].foodItems);
+        return Optional.of(graph[0]);
+    }
+
+    /**
+     * Get the ingredients of many recipes at once (in a constant number of queries).
+     *
+     * @param recipes recipes
+     * @return sorted ingredients by recipe id (every recipe has an entry)
+     * @throws SQLException if error executing SQL
+     */
+    public static HashMap<Integer, List<FoodItem>> getFoodItems(Collection<Recipe> recipes)
+        throws SQLException {
+        HashMap<Integer, List<FoodItem>> byRecipe = new HashMap<>();
+        ArrayList<Integer> recipeIds = new ArrayList<>();
+        for (Recipe recipe : recipes) {
+            byRecipe.put(recipe.id, new ArrayList<>());
+            recipeIds.add(recipe.id);
+        }
+        // Find which food items each recipe uses, then load all of them together
+        ArrayList<int[]> links = new ArrayList<>();
+        Query
+            .select("RecipeFoodItem")
+            .columns("recipeId", "foodItemId")
+            .whereIn("recipeId", recipeIds)
+            .select(
+                Database.getInstance(),
+                rs -> {
+                    links.add(new int[] { rs.getInt("recipeId"), rs.getInt("foodItemId") });
+                }
+            );
+        ArrayList<Integer> foodItemIds = new ArrayList<>();
+        for (int[] link : links) {
+            foodItemIds.add(link[1]);
+        }
+        HashMap<Integer, FoodItem> foodItems = FoodItem.META.getMany(foodItemIds);
+        for (int[] link : links) {
+            FoodItem foodItem = foodItems.get(link[1]);
+            if (foodItem != null) {
+                byRecipe.get(link[0]).add(foodItem);
+            }
+        }
+        for (List<FoodItem> ingredients : byRecipe.values()) {
+            Collections.sort(ingredients);
+        }
+        return byRecipe;
+    }
+
     @Override
     public int compareTo(Recipe that) {
         return this.id.compareTo(that.id);
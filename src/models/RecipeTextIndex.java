@@ -0,0 +1,612 @@
+package models;
+
+import database.DataStore;
+import database.Database;
+import database.Query;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text index of recipe names and instructions, ranking matches with BM25.
+ *
+ * Text is split into lowercase runs of letters and digits, which are stemmed (see `stem`). Each
+ * term maps to the positions it's at in each recipe (the name, then the instructions), so quoted
+ * phrases can be matched as well as single terms.
+ *
+ * The index is saved to the file named by the `recipe_mgmt.textIndex.file` system property (empty
+ * to only keep it in memory), so later runs don't have to read every recipe's instructions. The
+ * file records the identity of the store it was built from (see `DataStore.identity`), and is
+ * started over if it belongs to another store (stores whose data doesn't outlive the process
+ * don't use it at all). When it's loaded, recipes added or deleted since it was saved are indexed
+ * or dropped. Recipe writes through `Recipe` update it and save it again once their transaction
+ * commits; changes made any other way (e.g. raw SQL) need a `rebuild`.
+ */
+public class RecipeTextIndex {
+
+    // File the index is saved to (empty for none)
+    static final String INDEX_FILE = System.getProperty(
+        "recipe_mgmt.textIndex.file",
+        "recipe_mgmt_text_index.bin"
+    );
+
+    // BM25 term frequency saturation and document length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final int FILE_MAGIC = 0x52544958;
+    private static final int FILE_VERSION = 2;
+
+    // Quoted phrases of a query
+    private static final Pattern PHRASE = Pattern.compile("\"([^\"]*)\"");
+
+    /**
+     * A recipe matching a search.
+     */
+    public static class Hit {
+
+        public final int recipeId;
+        public final double score;
+
+        Hit(int recipeId, double score) {
+            this.recipeId = recipeId;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Positions of a term in a recipe, while the recipe is being indexed.
+     */
+    private static class Positions {
+
+        int[] values = new int[4];
+        int size;
+
+        void add(int position) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = position;
+        }
+    }
+
+    // Index being used (null until loaded)
+    private static RecipeTextIndex instance;
+
+    // Positions of each term in each recipe (ascending), by term, then by recipe id
+    private final HashMap<String, HashMap<Integer, int[]>> postings = new HashMap<>();
+    // Number of terms in each recipe, by recipe id
+    private final HashMap<Integer, Integer> lengths = new HashMap<>();
+    // Sum of `lengths`
+    private long totalLength;
+
+    private RecipeTextIndex() {}
+
+    /**
+     * Find the recipes best matching a query.
+     *
+     * Unquoted words are optional, with recipes using more of them (and more often) ranked higher.
+     * Quoted phrases must appear in the recipe word for word.
+     *
+     * @param text query, e.g. `garlic "bake for 30 minutes"`
+     * @param limit max number of recipes to get
+     * @return recipes found, best match first
+     * @throws SQLException if error executing SQL (loading the index)
+     */
+    public static synchronized List<Hit> search(String text, int limit) throws SQLException {
+        RecipeTextIndex index = get(Database.getInstance());
+        ArrayList<List<String>> phrases = new ArrayList<>();
+        Matcher matcher = PHRASE.matcher(text);
+        while (matcher.find()) {
+            phrases.add(terms(matcher.group(1)));
+        }
+        // Every term is scored, including those of phrases
+        LinkedHashSet<String> terms = new LinkedHashSet<>(
+            terms(PHRASE.matcher(text).replaceAll(" "))
+        );
+        for (List<String> phrase : phrases) {
+            terms.addAll(phrase);
+        }
+        return index.rank(terms, phrases, limit);
+    }
+
+    /**
+     * Index every recipe from scratch (e.g. after recipes were changed with raw SQL), and save the
+     * index.
+     *
+     * @throws SQLException if error executing SQL
+     */
+    public static synchronized void rebuild() throws SQLException {
+        DataStore db = Database.getInstance();
+        RecipeTextIndex index = new RecipeTextIndex();
+        db.inTransaction(index::reconcile);
+        instance = index;
+        index.save(db);
+    }
+
+    /**
+     * Index a recipe that was created or changed, once the transaction commits.
+     *
+     * Does nothing if the index isn't loaded or saved yet, since it'll be read from the database
+     * when it's built.
+     *
+     * @param db store the recipe was saved to
+     * @param recipeId id of the recipe
+     * @param name the recipe's name
+     * @param instructions the recipe's instructions
+     */
+    static void update(DataStore db, int recipeId, String name, String instructions) {
+        db.afterCommit(
+            () ->
+                change(
+                    db,
+                    index -> {
+                        index.remove(recipeId);
+                        try {
+                            index.add(
+                                recipeId,
+                                new StringReader(name),
+                                new StringReader(instructions)
+                            );
+                        } catch (IOException e) {
+                            // Reading a string doesn't fail
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                )
+        );
+    }
+
+    /**
+     * Drop a deleted recipe from the index, once the transaction commits.
+     *
+     * @param db store the recipe was deleted from
+     * @param recipeId id of the recipe
+     */
+    static void delete(DataStore db, int recipeId) {
+        db.afterCommit(() -> change(db, index -> index.remove(recipeId)));
+    }
+
+    /**
+     * Split text into terms.
+     *
+     * @param text text to split
+     * @return stemmed terms, in order
+     */
+    static List<String> terms(String text) {
+        ArrayList<String> terms = new ArrayList<>();
+        try {
+            tokenize(new StringReader(text), terms::add);
+        } catch (IOException e) {
+            // Reading a string doesn't fail
+            throw new IllegalStateException(e);
+        }
+        return terms;
+    }
+
+    /**
+     * Reduce a lowercase word to its stem, so different forms of it match each other.
+     *
+     * This is a light suffix stripper (a cut-down version of step 1 of the Porter stemmer): it
+     * removes plurals, "ed", "ing" and "ly", then a doubled final consonant and a final "e". For
+     * example, "bake", "bakes", "baked" and "baking" all become "bak".
+     *
+     * @param word word to stem
+     * @return stem of the word
+     */
+    static String stem(String word) {
+        String stem = word;
+        if (stem.endsWith("ies") && stem.length() > 4) {
+            stem = stem.substring(0, stem.length() - 3) + "y";
+        } else if (stem.endsWith("sses")) {
+            stem = stem.substring(0, stem.length() - 2);
+        } else if (
+            stem.endsWith("s") && !stem.endsWith("ss") && !stem.endsWith("us") && stem.length() > 3
+        ) {
+            stem = stem.substring(0, stem.length() - 1);
+        }
+        for (String suffix : new String[] { "ing", "ed", "ly" }) {
+            // Only if a stem of at least 3 letters with a vowel is left (e.g. not for "need")
+            int end = stem.length() - suffix.length();
+            if (stem.endsWith(suffix) && end >= 3 && hasVowel(stem, end)) {
+                stem = stem.substring(0, end);
+                break;
+            }
+        }
+        int length = stem.length();
+        char last = stem.charAt(length - 1);
+        if (length > 3 && last == stem.charAt(length - 2) && "aeiouylsz".indexOf(last) < 0) {
+            stem = stem.substring(0, length - 1);
+        }
+        if (stem.length() > 3 && stem.endsWith("e")) {
+            stem = stem.substring(0, stem.length() - 1);
+        }
+        return stem;
+    }
+
+    /**
+     * @return whether a word has a vowel before `end`
+     */
+    private static boolean hasVowel(String word, int end) {
+        for (int i = 0; i < end; i++) {
+            if ("aeiouy".indexOf(word.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read text and split it into stemmed terms as it's read.
+     */
+    private static void tokenize(Reader reader, Consumer<String> applyToTerm) throws IOException {
+        StringBuilder word = new StringBuilder();
+        char[] buffer = new char[8192];
+        int length;
+        while ((length = reader.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++) {
+                char c = buffer[i];
+                if (Character.isLetterOrDigit(c)) {
+                    word.append(Character.toLowerCase(c));
+                } else if (word.length() > 0) {
+                    applyToTerm.accept(stem(word.toString()));
+                    word.setLength(0);
+                }
+            }
+        }
+        if (word.length() > 0) {
+            applyToTerm.accept(stem(word.toString()));
+        }
+    }
+
+    /**
+     * Apply a change to the index and save it, unless the index isn't loaded or saved yet. If the
+     * index can't be loaded, it's dropped (file and all) so the next search rebuilds it.
+     */
+    private static synchronized void change(DataStore db, Consumer<RecipeTextIndex> change) {
+        Path file = file(db);
+        if (instance == null && (file == null || !Files.exists(file))) {
+            return;
+        }
+        try {
+            RecipeTextIndex index = get(db);
+            change.accept(index);
+            index.save(db);
+        } catch (SQLException e) {
+            System.err.println("Couldn't update text index: " + e.getMessage());
+            instance = null;
+            try {
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException deleteError) {
+                System.err.println("Couldn't delete text index: " + deleteError.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return file the index of a store is saved to (null if it isn't saved)
+     */
+    private static Path file(DataStore db) {
+        return INDEX_FILE.isEmpty() || db.identity() == null ? null : Paths.get(INDEX_FILE);
+    }
+
+    /**
+     * Get the index, loading it from its file (catching up with recipes added or deleted since it
+     * was saved) or building it if there's no file.
+     */
+    private static RecipeTextIndex get(DataStore db) throws SQLException {
+        if (instance != null) {
+            return instance;
+        }
+        RecipeTextIndex index = load(db);
+        boolean changed = db.computeInTransaction(index::reconcile);
+        instance = index;
+        if (changed) {
+            index.save(db);
+        }
+        return instance;
+    }
+
+    /**
+     * Read the index of a store from its file.
+     *
+     * @return index read (empty if there's no file, it belongs to another store, or it can't be
+     *     read)
+     */
+    private static RecipeTextIndex load(DataStore db) {
+        RecipeTextIndex index = new RecipeTextIndex();
+        Path file = file(db);
+        if (file == null || !Files.exists(file)) {
+            return index;
+        }
+        try (
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file))
+            )
+        ) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("not a text index file");
+            }
+            if (!in.readUTF().equals(db.identity())) {
+                // Built from another store's recipes, so start over
+                return index;
+            }
+            int recipes = in.readInt();
+            for (int i = 0; i < recipes; i++) {
+                int recipeId = in.readInt();
+                int length = in.readInt();
+                index.lengths.put(recipeId, length);
+                index.totalLength += length;
+            }
+            int terms = in.readInt();
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                int count = in.readInt();
+                HashMap<Integer, int[]> recipePositions = new HashMap<>();
+                for (int j = 0; j < count; j++) {
+                    int recipeId = in.readInt();
+                    int[] positions = new int[in.readInt()];
+                    // Positions are saved as the gap from the previous one
+                    int position = 0;
+                    for (int k = 0; k < positions.length; k++) {
+                        position += in.readInt();
+                        positions[k] = position;
+                    }
+                    recipePositions.put(recipeId, positions);
+                }
+                index.postings.put(term, recipePositions);
+            }
+            return index;
+        } catch (IOException e) {
+            // Start over from the database
+            System.err.println("Couldn't read text index: " + e.getMessage());
+            return new RecipeTextIndex();
+        }
+    }
+
+    /**
+     * Save the index of a store to its file, replacing the old one in one step.
+     */
+    private void save(DataStore db) {
+        Path path = file(db);
+        if (path == null) {
+            return;
+        }
+        Path temp = Paths.get(INDEX_FILE + ".tmp");
+        try {
+            try (
+                DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp))
+                )
+            ) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(db.identity());
+                out.writeInt(lengths.size());
+                for (Map.Entry<Integer, Integer> entry : lengths.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    out.writeInt(entry.getValue());
+                }
+                out.writeInt(postings.size());
+                for (Map.Entry<String, HashMap<Integer, int[]>> term : postings.entrySet()) {
+                    out.writeUTF(term.getKey());
+                    out.writeInt(term.getValue().size());
+                    for (Map.Entry<Integer, int[]> entry : term.getValue().entrySet()) {
+                        out.writeInt(entry.getKey());
+                        out.writeInt(entry.getValue().length);
+                        int previous = 0;
+                        for (int position : entry.getValue()) {
+                            out.writeInt(position - previous);
+                            previous = position;
+                        }
+                    }
+                }
+            }
+            Files.move(
+                temp,
+                path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (IOException e) {
+            // The index is rebuilt from the database whenever the file is missing or out of date
+            System.err.println("Couldn't save text index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Index the recipes that aren't indexed yet, and drop the ones that were deleted.
+     *
+     * @param db store to use
+     * @return whether the index changed
+     * @throws SQLException if error executing SQL
+     */
+    private boolean reconcile(DataStore db) throws SQLException {
+        HashSet<Integer> deleted = new HashSet<>(lengths.keySet());
+        ArrayList<Integer> added = new ArrayList<>();
+        Query
+            .select("Recipe")
+            .columns("id")
+            .select(
+                db,
+                rs -> {
+                    int recipeId = rs.getInt("id");
+                    if (!deleted.remove(recipeId)) {
+                        added.add(recipeId);
+                    }
+                }
+            );
+        for (Integer recipeId : deleted) {
+            remove(recipeId);
+        }
+        // Read the instructions of each new recipe as a stream
+        Query
+            .select("Recipe")
+            .columns("id", "name", "instructions")
+            .whereIn("id", added)
+            .select(
+                db,
+                rs -> {
+                    try (Reader instructions = rs.getCharacterStream("instructions")) {
+                        add(
+                            rs.getInt("id"),
+                            new StringReader(rs.getString("name")),
+                            instructions == null ? new StringReader("") : instructions
+                        );
+                    } catch (IOException e) {
+                        throw new SQLException("Error indexing recipe instructions", e);
+                    }
+                }
+            );
+        return !deleted.isEmpty() || !added.isEmpty();
+    }
+
+    /**
+     * Index a recipe's fields (which mustn't be indexed already).
+     */
+    private void add(int recipeId, Reader... fields) throws IOException {
+        HashMap<String, Positions> recipeTerms = new HashMap<>();
+        int[] position = new int[1];
+        for (Reader field : fields) {
+            tokenize(
+                field,
+                term -> {
+                    recipeTerms.computeIfAbsent(term, t -> new Positions()).add(position[0]++);
+                }
+            );
+            // Leave a gap so phrases don't run from one field into the next
+            position[0]++;
+        }
+        int length = 0;
+        for (Map.Entry<String, Positions> entry : recipeTerms.entrySet()) {
+            Positions positions = entry.getValue();
+            postings
+                .computeIfAbsent(entry.getKey(), term -> new HashMap<>())
+                .put(recipeId, Arrays.copyOf(positions.values, positions.size));
+            length += positions.size;
+        }
+        lengths.put(recipeId, length);
+        totalLength += length;
+    }
+
+    /**
+     * Drop a recipe from the index (if it's indexed).
+     */
+    private void remove(int recipeId) {
+        Integer length = lengths.remove(recipeId);
+        if (length == null) {
+            return;
+        }
+        totalLength -= length;
+        postings
+            .values()
+            .removeIf(
+                recipePositions -> {
+                    recipePositions.remove(recipeId);
+                    return recipePositions.isEmpty();
+                }
+            );
+    }
+
+    /**
+     * Score the recipes using any of the terms with BM25, keeping those with every phrase.
+     */
+    private List<Hit> rank(Iterable<String> terms, List<List<String>> phrases, int limit) {
+        int recipes = lengths.size();
+        if (recipes == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        double averageLength = Math.max(1.0, (double) totalLength / recipes);
+        // Score of each recipe (boxed once per recipe, not once per term)
+        HashMap<Integer, double[]> scores = new HashMap<>();
+        for (String term : terms) {
+            HashMap<Integer, int[]> recipePositions = postings.get(term);
+            if (recipePositions == null) {
+                continue;
+            }
+            int frequency = recipePositions.size();
+            double idf = Math.log(1 + (recipes - frequency + 0.5) / (frequency + 0.5));
+            for (Map.Entry<Integer, int[]> entry : recipePositions.entrySet()) {
+                int count = entry.getValue().length;
+                double norm = 1 - B + B * lengths.get(entry.getKey()) / averageLength;
+                scores.computeIfAbsent(entry.getKey(), id -> new double[1])[0] +=
+                    idf * count * (K1 + 1) / (count + K1 * norm);
+            }
+        }
+        // Keep the best hits in a heap with the worst of them on top
+        Comparator<Hit> order = Comparator
+            .comparingDouble((Hit hit) -> hit.score)
+            .thenComparing(hit -> -hit.recipeId);
+        PriorityQueue<Hit> top = new PriorityQueue<>(Math.min(limit, 1024) + 1, order);
+        for (Map.Entry<Integer, double[]> entry : scores.entrySet()) {
+            if (!hasPhrases(entry.getKey(), phrases)) {
+                continue;
+            }
+            top.add(new Hit(entry.getKey(), entry.getValue()[0]));
+            if (top.size() > limit) {
+                top.poll();
+            }
+        }
+        ArrayList<Hit> hits = new ArrayList<>(top);
+        hits.sort(order.reversed());
+        return hits;
+    }
+
+    /**
+     * @return whether a recipe has every phrase, word for word
+     */
+    private boolean hasPhrases(int recipeId, List<List<String>> phrases) {
+        for (List<String> phrase : phrases) {
+            if (phrase.isEmpty()) {
+                continue;
+            }
+            // Positions of each of the phrase's terms in the recipe
+            int[][] positions = new int[phrase.size()][];
+            for (int i = 0; i < phrase.size(); i++) {
+                HashMap<Integer, int[]> recipePositions = postings.get(phrase.get(i));
+                positions[i] = recipePositions == null ? null : recipePositions.get(recipeId);
+                if (positions[i] == null) {
+                    return false;
+                }
+            }
+            boolean found = false;
+            for (int start : positions[0]) {
+                found = true;
+                for (int i = 1; i < positions.length && found; i++) {
+                    found = Arrays.binarySearch(positions[i], start + i) >= 0;
+                }
+                if (found) {
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
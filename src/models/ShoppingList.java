@@ -0,0 +1,95 @@
+package models;
+
+import database.DataStore;
+import database.Database;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Food needed for the week's meal plans, compared with the food we have.
+ *
+ * Every planned meal (row of `RecipeMealPlan`) uses one unit of each of its recipe's ingredients.
+ */
+public class ShoppingList {
+
+    /**
+     * How much of a food item the meal plans need.
+     */
+    public static class Item implements Comparable<Item> {
+
+        public final FoodItem foodItem;
+        // Units used by all the planned meals
+        public final int required;
+
+        Item(FoodItem foodItem, int required) {
+            this.foodItem = foodItem;
+            this.required = required;
+        }
+
+        /**
+         * @return units we have to buy (0 if we have enough)
+         */
+        public int shortfall() {
+            return Math.max(0, required - foodItem.units);
+        }
+
+        @Override
+        public int compareTo(Item that) {
+            return foodItem.compareTo(that.foodItem);
+        }
+    }
+
+    // Food items on the list, sorted
+    public final List<Item> items;
+
+    private ShoppingList(List<Item> items) {
+        this.items = items;
+    }
+
+    /**
+     * Read the food items the meal plans use from the materialized demand (see
+     * `FoodItemDemand`), building it first if it hasn't been.
+     *
+     * Only reads the rows asked for, so the cost depends on the size of the list rather than on
+     * the number of meals planned.
+     *
+     * @param shortfallsOnly whether to only list food items we don't have enough of
+     * @return shopping list
+     * @throws SQLException if error executing SQL
+     */
+    public static ShoppingList load(boolean shortfallsOnly) throws SQLException {
+        DataStore db = Database.getInstance();
+        HashMap<Integer, Integer> required = db.computeInTransaction(
+            store -> {
+                if (!FoodItemDemand.isBuilt(store)) {
+                    FoodItemDemand.rebuild(store);
+                }
+                return FoodItemDemand.load(store, shortfallsOnly);
+            }
+        );
+        HashMap<Integer, FoodItem> foodItems = FoodItem.META.getMany(required.keySet());
+        ArrayList<Item> items = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> entry : required.entrySet()) {
+            FoodItem foodItem = foodItems.get(entry.getKey());
+            if (foodItem != null) {
+                items.add(new Item(foodItem, entry.getValue()));
+            }
+        }
+        Collections.sort(items);
+        return new ShoppingList(items);
+    }
+
+    /**
+     * Recompute the materialized demand from scratch (e.g. after the meal plans or ingredients
+     * were changed with raw SQL).
+     *
+     * @throws SQLException if error executing SQL
+     */
+    public static void rebuild() throws SQLException {
+        Database.getInstance().inTransaction(FoodItemDemand::rebuild);
+    }
+}
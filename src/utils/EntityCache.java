@@ -0,0 +1,167 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of model rows shared by every thread (and session) of the process.
+ *
+ * Rows are cached as their column values rather than as model instances, since instances are
+ * mutable and may be changed by whoever gets them; each hit constructs a fresh instance. Entries
+ * are evicted least recently used first once `recipe_mgmt.cache.capacity` rows are cached, and
+ * expire `recipe_mgmt.cache.ttlMs` after being loaded (so changes made by other processes show up
+ * eventually). Writes through the model classes invalidate the rows they change, and again once
+ * their transaction commits, since other threads may cache the old values until then.
+ *
+ * Set `recipe_mgmt.cache.capacity` to 0 to turn the cache off.
+ */
+public class EntityCache {
+
+    // Max number of rows cached
+    static final int CAPACITY = Integer.getInteger("recipe_mgmt.cache.capacity", 10000);
+    // How long a row stays cached after being loaded
+    static final long TTL_MS = Long.getLong("recipe_mgmt.cache.ttlMs", 60000);
+
+    /**
+     * Cached column values of a row.
+     */
+    private static class CachedRow {
+
+        final Object[] values;
+        // `System.nanoTime()` after which the entry is stale
+        final long expiresAt;
+
+        CachedRow(Object[] values, long expiresAt) {
+            this.values = values;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder expirations = new LongAdder();
+    private static final LongAdder invalidations = new LongAdder();
+
+    // Entries by table and id ("table:id"), least recently used first
+    private static final LinkedHashMap<String, CachedRow> entries =
+        new LinkedHashMap<String, CachedRow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedRow> eldest) {
+                if (size() <= CAPACITY) {
+                    return false;
+                }
+                evictions.increment();
+                return true;
+            }
+        };
+
+    /**
+     * @return whether the cache is turned on
+     */
+    static boolean isEnabled() {
+        return CAPACITY > 0;
+    }
+
+    /**
+     * Get the cached column values of a row.
+     *
+     * @param table name of the row's table
+     * @param id id of the row
+     * @return column values (id first), or null if not cached
+     */
+    static Object[] get(String table, Integer id) {
+        if (!isEnabled() || id == null) {
+            return null;
+        }
+        String key = table + ":" + id;
+        synchronized (entries) {
+            CachedRow entry = entries.get(key);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAt > 0) {
+                entries.remove(key);
+                expirations.increment();
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.values;
+        }
+    }
+
+    /**
+     * Cache the column values of a row just loaded from the database.
+     *
+     * @param table name of the row's table
+     * @param id id of the row
+     * @param values column values (id first, not changed after this)
+     */
+    static void put(String table, Integer id, Object[] values) {
+        if (!isEnabled() || id == null) {
+            return;
+        }
+        long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TTL_MS);
+        CachedRow entry = new CachedRow(values, expiresAt);
+        synchronized (entries) {
+            entries.put(table + ":" + id, entry);
+        }
+    }
+
+    /**
+     * Forget a row (e.g. because it was changed).
+     *
+     * @param table name of the row's table
+     * @param id id of the row
+     */
+    static void invalidate(String table, Integer id) {
+        if (!isEnabled() || id == null) {
+            return;
+        }
+        synchronized (entries) {
+            if (entries.remove(table + ":" + id) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Forget every row (e.g. because a delete may have cascaded to rows of other tables).
+     */
+    public static void invalidateAll() {
+        synchronized (entries) {
+            invalidations.add(entries.size());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Describe the cache's size and hit/miss/eviction counts so far.
+     *
+     * @return summary of the cache's metrics
+     */
+    public static String metrics() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return String.format(
+            "entity cache: %d/%d rows, %d hits, %d misses (%.1f%% hit rate), %d evictions, " +
+            "%d expirations, %d invalidations",
+            size,
+            CAPACITY,
+            hitCount,
+            misses.sum(),
+            lookups == 0 ? 0.0 : 100.0 * hitCount / lookups,
+            evictions.sum(),
+            expirations.sum(),
+            invalidations.sum()
+        );
+    }
+}
@@ -1,11 +1,20 @@
 package utils;
 
+import database.DataStore;
 import database.Database;
+import database.Query;
 import database.ThrowingConsumer;
+import database.ThrowingFunction;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 /**
  * Object that contains another object.
@@ -27,6 +36,150 @@ class Container<T> {
  */
 public class ModelHelper {
 
+    // Identity map of the session open on each thread (if any): instances loaded in the session,
+    // by `sessionKey()`
+    private static final ThreadLocal<ConcurrentHashMap<String, Object>> session =
+        new ThreadLocal<>();
+
+    /**
+     * Run some work (e.g. a CLI command) in a session.
+     *
+     * Within a session, rows fetched by id are only queried once, and every lookup of a row
+     * returns the same instance. Sessions are short lived, so instances can't go stale between
+     * commands. Writes through the model classes keep the session up to date; writes made with
+     * raw SQL should only touch tables that aren't cached (e.g. the many-to-many link tables).
+     *
+     * Joins the session already open on this thread, if there is one.
+     *
+     * @param <T> type of the result
+     * @param work work to run
+     * @return result of the work
+     * @throws SQLException if the work throws it
+     */
+    public static <T> T inSession(ThrowingFunction<DataStore, T, SQLException> work)
+        throws SQLException {
+        if (session.get() != null) {
+            return work.apply(Database.getInstance());
+        }
+        return withSession(new ConcurrentHashMap<>(), work);
+    }
+
+    /**
+     * Run some work with a particular session open on this thread (e.g. work passed from a thread
+     * with an open session to a background one).
+     */
+    private static <T> T withSession(
+        ConcurrentHashMap<String, Object> map,
+        ThrowingFunction<DataStore, T, SQLException> work
+    )
+        throws SQLException {
+        ConcurrentHashMap<String, Object> previous = session.get();
+        session.set(map);
+        try {
+            return work.apply(Database.getInstance());
+        } finally {
+            if (previous == null) {
+                session.remove();
+            } else {
+                session.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Run some work on a background thread, sharing this thread's session (if any) with it.
+     *
+     * @param <T> type of the result
+     * @param work work to run
+     * @return future result of the work
+     * @throws SQLException if error connecting to the database
+     */
+    public static <T> CompletableFuture<T> supplyAsync(
+        ThrowingFunction<DataStore, T, SQLException> work
+    )
+        throws SQLException {
+        DataStore db = Database.getInstance();
+        ConcurrentHashMap<String, Object> map = session.get();
+        if (map == null) {
+            return db.supplyAsync(work);
+        }
+        return db.supplyAsync(store -> withSession(map, work));
+    }
+
+    /**
+     * Get the instance of a row already loaded in this thread's session.
+     *
+     * @param <T> the model class type
+     * @param table name of the row's table
+     * @param id id of the row
+     * @return instance (null if not loaded, or there's no session)
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T sessionGet(String table, Integer id) {
+        ConcurrentHashMap<String, Object> map = session.get();
+        if (map == null || id == null) {
+            return null;
+        }
+        return (T) map.get(sessionKey(table, id));
+    }
+
+    /**
+     * Add a loaded instance to this thread's session (if there is one).
+     *
+     * @param <T> the model class type
+     * @param table name of the row's table
+     * @param id id of the row
+     * @param instance freshly loaded instance
+     * @return instance already in the session for the row if any, else `instance`
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T sessionPut(String table, Integer id, T instance) {
+        ConcurrentHashMap<String, Object> map = session.get();
+        if (map == null || id == null || instance == null) {
+            return instance;
+        }
+        Object existing = map.putIfAbsent(sessionKey(table, id), instance);
+        return existing == null ? instance : (T) existing;
+    }
+
+    /**
+     * Replace the instance of a row in this thread's session (e.g. after saving it).
+     *
+     * If a transaction is open, the instance is dropped from the session again should it roll
+     * back, so the session never holds values that weren't committed.
+     *
+     * @param db data store the row was saved to
+     * @param table name of the row's table
+     * @param id id of the row
+     * @param instance instance holding the row's saved values
+     */
+    static void sessionReplace(DataStore db, String table, Integer id, Object instance) {
+        ConcurrentHashMap<String, Object> map = session.get();
+        if (map != null && id != null) {
+            String key = sessionKey(table, id);
+            map.put(key, instance);
+            db.afterRollback(() -> map.remove(key, instance));
+        }
+    }
+
+    /**
+     * Forget everything loaded in this thread's session (e.g. after a delete, which may have
+     * cascaded to rows of other tables).
+     */
+    static void sessionClear() {
+        ConcurrentHashMap<String, Object> map = session.get();
+        if (map != null) {
+            map.clear();
+        }
+    }
+
+    /**
+     * @return key of a row in a session's identity map
+     */
+    private static String sessionKey(String table, Integer id) {
+        return table + "#" + id;
+    }
+
     /**
      * Helper for getting a single database row by id.
      *
@@ -43,21 +196,20 @@ public class ModelHelper {
         ConstructInstanceLambda<T> constructInstance
     )
         throws SQLException {
-        Database db = Database.getInstance();
+        DataStore db = Database.getInstance();
         // Container object to temporarily store instance in so it can later be returned
         Container<T> container = new Container<>(null);
         // Query by id
-        db.select(
-            String.format("select * from %s where id = ?", className),
-            rs -> {
-                // Construct and store model instance in container
-                container.obj = constructInstance.run(rs);
-            },
-            stmt -> {
-                // Bind id to query
-                stmt.setInt(1, id);
-            }
-        );
+        Query
+            .select(className)
+            .where("id", "=", id)
+            .select(
+                db,
+                rs -> {
+                    // Construct and store model instance in container
+                    container.obj = constructInstance.run(rs);
+                }
+            );
         // Return instance in container
         return container.obj;
     }
@@ -78,7 +230,7 @@ public class ModelHelper {
         ConstructInstanceLambda<T> constructInstance
     )
         throws SQLException {
-        Database db = Database.getInstance();
+        DataStore db = Database.getInstance();
         // For storing query results
         ArrayList<T> results = new ArrayList<>();
         // Run query
@@ -94,6 +246,225 @@ public class ModelHelper {
         return results;
     }
 
+    /**
+     * Helper for filtering rows by a query, sorted (and cut short) by a sort spec.
+     *
+     * SQL sorts are added to the query; JVM sorts with a limit only ever hold `limit + 1` rows.
+     *
+     * @param <T> the model class type
+     * @param query query to run, without an `order by` (must select all columns from model
+     *     relation)
+     * @param constructInstance lambda to construct model class instance from result set
+     * @param sort how to sort the rows
+     * @return sorted list of model class instances
+     * @throws SQLException if error executing SQL
+     */
+    public static <T> ArrayList<T> filter(
+        Query query,
+        ConstructInstanceLambda<T> constructInstance,
+        SortSpec<T> sort
+    )
+        throws SQLException {
+        DataStore db = Database.getInstance();
+        // For storing query results
+        ArrayList<T> results = new ArrayList<>();
+        if (!sort.isInJvm()) {
+            // Rows come back sorted already
+            sort
+                .applyTo(query)
+                .select(
+                    db,
+                    rs -> {
+                        results.add(constructInstance.run(rs));
+                    }
+                );
+            return results;
+        }
+        if (sort.limit == null) {
+            query.select(
+                db,
+                rs -> {
+                    results.add(constructInstance.run(rs));
+                }
+            );
+            results.sort(sort.comparator);
+            return results;
+        }
+        // Keep the top rows seen so far in a heap with the last of them on top, so each row past
+        // the limit only costs a comparison and a swap
+        int limit = sort.limit;
+        PriorityQueue<T> top = new PriorityQueue<>(
+            Math.min(limit, 1024) + 1,
+            sort.comparator.reversed()
+        );
+        query.select(
+            db,
+            rs -> {
+                top.add(constructInstance.run(rs));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        );
+        results.addAll(top);
+        results.sort(sort.comparator);
+        return results;
+    }
+
+    /**
+     * Helper for getting many database rows by id, in as few queries as the store allows.
+     *
+     * Ids are looked up with `id in (...)` lists of at most `DataStore.maxInListSize()` ids each
+     * (see `Query.whereIn`).
+     *
+     * @param <T> the model class type
+     * @param tableName name of the table
+     * @param ids row ids to get (duplicates and nulls are ignored)
+     * @param constructInstance lambda to construct model class instance from result set
+     * @return instances by id (ids without a row are left out)
+     * @throws SQLException if error executing SQL
+     */
+    public static <T> HashMap<Integer, T> getMany(
+        String tableName,
+        Collection<Integer> ids,
+        ConstructInstanceLambda<T> constructInstance
+    )
+        throws SQLException {
+        HashMap<Integer, T> results = new HashMap<>();
+        Query
+            .select(tableName)
+            .whereIn("id", ids)
+            .select(
+                Database.getInstance(),
+                rs -> {
+                    results.put(rs.getInt("id"), constructInstance.run(rs));
+                }
+            );
+        return results;
+    }
+
+    /**
+     * Helper for getting a page of a table's rows in `id` order.
+     *
+     * Uses keyset pagination (`where id > ?`) rather than skipping rows with an offset, so the
+     * primary key index finds the start of the page no matter how deep it is.
+     *
+     * @param <T> the model class type
+     * @param query select of the table's rows (must select `id`, and not be ordered yet)
+     * @param after only get rows with an id greater than this (null to start at the beginning)
+     * @param pageSize max number of rows to get
+     * @param constructInstance lambda to construct model class instance from result set
+     * @return page of instances
+     * @throws SQLException if error executing SQL
+     */
+    public static <T> Page<T> page(
+        Query query,
+        Integer after,
+        int pageSize,
+        ConstructInstanceLambda<T> constructInstance
+    )
+        throws SQLException {
+        DataStore db = Database.getInstance();
+        ArrayList<T> items = new ArrayList<>();
+        // Id of the last row of the page, and whether there are rows after it
+        int[] lastId = new int[1];
+        boolean[] hasMore = new boolean[1];
+        // Get one extra row to find out whether there's another page
+        query
+            .where("id", ">", after == null ? Integer.MIN_VALUE : after)
+            .orderBy("id")
+            .limit(pageSize + 1)
+            .select(
+                db,
+                rs -> {
+                    if (items.size() == pageSize) {
+                        hasMore[0] = true;
+                        return;
+                    }
+                    items.add(constructInstance.run(rs));
+                    lastId[0] = rs.getInt("id");
+                }
+            );
+        return new Page<>(items, hasMore[0] ? lastId[0] : null);
+    }
+
+    /**
+     * Async version of `get`, which runs the query on a background thread.
+     *
+     * @param <T> the model class type
+     * @param id row id to get
+     * @param className name of the model class
+     * @param constructInstance lambda to construct model class instance from result set
+     * @return future model class instance (null if there's no such row)
+     * @throws SQLException if error connecting to the database
+     */
+    public static <T> CompletableFuture<T> getAsync(
+        Integer id,
+        String className,
+        ConstructInstanceLambda<T> constructInstance
+    )
+        throws SQLException {
+        return supplyAsync(db -> get(id, className, constructInstance));
+    }
+
+    /**
+     * Async version of `filter`, which runs the query on a background thread.
+     *
+     * @param <T> the model class type
+     * @param sql query to run (must select all columns from model relation)
+     * @param setValues lambda to bind query parameters
+     * @param constructInstance lambda to construct model class instance from result set
+     * @return future sorted list of model class instances
+     * @throws SQLException if error connecting to the database
+     */
+    public static <T extends Comparable<T>> CompletableFuture<ArrayList<T>> filterAsync(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ConstructInstanceLambda<T> constructInstance
+    )
+        throws SQLException {
+        return supplyAsync(db -> filter(sql, setValues, constructInstance));
+    }
+
+    /**
+     * Helper for lazily streaming rows matched by a SQL query.
+     *
+     * Unlike `filter`, rows are constructed one at a time as the stream is consumed, so the whole
+     * result is never held in memory. Rows come back in the order given by the query (add an
+     * `order by` clause if needed). The stream must be closed when done with it.
+     *
+     * @param <T> the model class type
+     * @param sql query to run (must select all columns from model relation)
+     * @param setValues lambda to bind query parameters
+     * @param constructInstance lambda to construct model class instance from result set
+     * @param fetchSize number of rows to fetch from the database per round trip
+     * @return stream of model class instances
+     * @throws SQLException if error executing SQL
+     */
+    public static <T> Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ConstructInstanceLambda<T> constructInstance,
+        int fetchSize
+    )
+        throws SQLException {
+        DataStore db = Database.getInstance();
+        return db.stream(sql, setValues, constructInstance::run, fetchSize);
+    }
+
+    /**
+     * Helper for lazily streaming rows matched by a SQL query with the default fetch size.
+     */
+    public static <T> Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues,
+        ConstructInstanceLambda<T> constructInstance
+    )
+        throws SQLException {
+        DataStore db = Database.getInstance();
+        return db.stream(sql, setValues, constructInstance::run);
+    }
+
     /**
      * Helper for deleting a table entry by id.
      *
@@ -102,13 +473,11 @@ public class ModelHelper {
      * @throws SQLException if error executing SQL
      */
     public static void delete(Integer id, String tableName) throws SQLException {
-        Database db = Database.getInstance();
-        // Run query
-        db.modify(
-            String.format("delete from %s where id = ?", tableName),
-            stmt -> {
-                stmt.setInt(1, id);
-            }
-        );
+        DataStore db = Database.getInstance();
+        db.delete(tableName, id);
+        // The delete may have cascaded to rows of other tables, so forget every cached row (again
+        // once committed, in case readers outside the transaction cached the old rows meanwhile)
+        EntityCache.invalidateAll();
+        db.afterCommit(EntityCache::invalidateAll);
     }
 }
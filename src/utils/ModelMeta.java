@@ -0,0 +1,467 @@
+package utils;
+
+import database.DataStore;
+import database.Database;
+import database.Query;
+import database.ThrowingBiConsumer;
+import database.ThrowingConsumer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Description of how a model class maps to its table.
+ *
+ * Each model declares its table, columns, how to construct an instance from a row, and how to bind
+ * an instance's column values, all in one place. The row mapper, the column list used for inserts
+ * and updates, and the value binder are all derived from it, so they can't get out of sync.
+ *
+ * Mappers look up the position of each column once per result set, then read every row by
+ * position, instead of looking up each column label on every row.
+ *
+ * @param <T> the model class type
+ */
+public class ModelMeta<T extends Comparable<T>> {
+
+    /**
+     * Lambda that constructs a model instance from a row, reading columns by position.
+     */
+    public interface RowReader<T> {
+        T read(Row row) throws SQLException;
+    }
+
+    /**
+     * Current row of a result set (or cached row), with its columns numbered in the order of
+     * `columns` (the id being column 0).
+     *
+     * Columns a query didn't select read as 0/null (see `has`).
+     */
+    public static class Row {
+
+        // Result set being read (null when reading cached values)
+        private ResultSet rs;
+        // Result set column index of each model column (id first, 0 if not selected)
+        private int[] indexes;
+        // Whether every model column was selected
+        private boolean complete = true;
+        // Values read from the current row so far (or the cached values being read)
+        private Object[] values;
+
+        /**
+         * @param column model column number
+         * @return whether the query selected the column
+         */
+        public boolean has(int column) {
+            return rs == null || indexes[column] != 0;
+        }
+
+        public int getInt(int column) throws SQLException {
+            if (rs == null) {
+                return (Integer) values[column];
+            }
+            if (indexes[column] == 0) {
+                return 0;
+            }
+            int value = rs.getInt(indexes[column]);
+            values[column] = value;
+            return value;
+        }
+
+        public String getString(int column) throws SQLException {
+            if (rs == null) {
+                return (String) values[column];
+            }
+            if (indexes[column] == 0) {
+                return null;
+            }
+            String value = rs.getString(indexes[column]);
+            values[column] = value;
+            return value;
+        }
+    }
+
+    // Name of the table
+    public final String table;
+    // Names of columns (excluding id)
+    public final String[] columns;
+    // Names of all columns (id first)
+    private final String[] allColumns;
+    private final RowReader<T> reader;
+    private final ThrowingBiConsumer<PreparedStatement, T, SQLException> binder;
+    private final Function<T, Integer> getId;
+
+    /**
+     * @param table name of the table
+     * @param columns names of columns (excluding id)
+     * @param reader lambda to construct an instance from a row (id is column 0, then `columns`)
+     * @param binder lambda to bind an instance's values of `columns` to parameters 1, 2, etc.
+     * @param getId lambda to get an instance's id
+     */
+    public ModelMeta(
+        String table,
+        String[] columns,
+        RowReader<T> reader,
+        ThrowingBiConsumer<PreparedStatement, T, SQLException> binder,
+        Function<T, Integer> getId
+    ) {
+        this.table = table;
+        this.columns = columns;
+        this.allColumns = new String[columns.length + 1];
+        allColumns[0] = "id";
+        System.arraycopy(columns, 0, allColumns, 1, columns.length);
+        this.reader = reader;
+        this.binder = binder;
+        this.getId = getId;
+    }
+
+    /**
+     * Get a lambda constructing instances from rows.
+     *
+     * The lambda remembers column positions for the last result set it was given, so use a new
+     * one per query (they aren't thread safe).
+     *
+     * @return new row mapper
+     */
+    public ConstructInstanceLambda<T> mapper() {
+        Row row = new Row();
+        return rs -> read(row, rs, "");
+    }
+
+    /**
+     * Get the select list for reading some of the model's columns (a projection), e.g. to leave
+     * out large columns a view doesn't show.
+     *
+     * Instances read from a projection have the columns left out unset, and aren't cached.
+     *
+     * @param columns columns to select besides the id (all of them if none are given)
+     * @return select list (id first)
+     */
+    public String select(String... columns) {
+        return selectList(null, "", columns);
+    }
+
+    /**
+     * Start a query selecting some of the model's columns (a projection) from its table.
+     *
+     * @param columns columns to select besides the id (all of them if none are given)
+     * @return query builder
+     */
+    public Query query(String... columns) {
+        Query query = Query.select(table).columns("id");
+        return query.columns(columns.length == 0 ? this.columns : columns);
+    }
+
+    /**
+     * Get the select list for reading the model's columns out of a join, labelled so they don't
+     * clash with the columns of other tables (e.g. `fi.id as fi_id, fi.name as fi_name, ...`).
+     *
+     * @param alias alias of the table in the query (null for none)
+     * @param labelPrefix prefix of each column's label
+     * @param columns columns to select besides the id (all of them if none are given)
+     * @return select list
+     */
+    public String selectList(String alias, String labelPrefix, String... columns) {
+        if (columns.length == 0) {
+            columns = this.columns;
+        }
+        String[] items = new String[columns.length + 1];
+        for (int i = 0; i < items.length; i++) {
+            String column = i == 0 ? "id" : columns[i - 1];
+            items[i] = alias == null && labelPrefix.isEmpty()
+                ? column
+                : String.format(
+                    "%s%s as %s%s",
+                    alias == null ? "" : alias + ".",
+                    column,
+                    labelPrefix,
+                    column
+                );
+        }
+        return String.join(", ", items);
+    }
+
+    /**
+     * Get a row mapper for columns selected with `selectList`, which (like `filter`) adds rows to
+     * `EntityCache` and returns the session's instance for rows already loaded in it.
+     *
+     * @param labelPrefix prefix of each column's label
+     * @return new row mapper
+     * @throws SQLException if error connecting to the database
+     */
+    public ConstructInstanceLambda<T> mapper(String labelPrefix) throws SQLException {
+        return rememberingMapper(labelPrefix);
+    }
+
+    /**
+     * Construct an instance from the current row of a result set.
+     */
+    private T read(Row row, ResultSet rs, String labelPrefix) throws SQLException {
+        if (row.rs != rs) {
+            // New result set, so find where the model's columns are in it (if they were selected)
+            HashMap<String, Integer> positions = new HashMap<>();
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = metaData.getColumnCount(); i >= 1; i--) {
+                positions.put(metaData.getColumnLabel(i).toLowerCase(), i);
+            }
+            int[] indexes = new int[allColumns.length];
+            boolean complete = true;
+            for (int i = 0; i < allColumns.length; i++) {
+                Integer index = positions.get((labelPrefix + allColumns[i]).toLowerCase());
+                indexes[i] = index == null ? 0 : index;
+                complete &= index != null;
+            }
+            if (indexes[0] == 0) {
+                throw new SQLException("Query doesn't select the " + labelPrefix + "id column");
+            }
+            row.rs = rs;
+            row.indexes = indexes;
+            row.complete = complete;
+        }
+        row.values = new Object[columns.length + 1];
+        return reader.read(row);
+    }
+
+    /**
+     * Construct an instance of a row cached in `EntityCache`, adding it to the session.
+     *
+     * @return new instance (null if the row isn't cached)
+     */
+    private T fromCache(Integer id) throws SQLException {
+        Object[] cached = EntityCache.get(table, id);
+        if (cached == null) {
+            return null;
+        }
+        // Construct a new instance, since cached rows are shared between sessions
+        Row row = new Row();
+        row.values = cached;
+        return remember(reader.read(row));
+    }
+
+    /**
+     * Get a row mapper that also adds each row to `EntityCache`, and returns the session's
+     * instance for rows already loaded in it.
+     *
+     * Rows of projections are neither cached nor added to the session, since they're missing
+     * columns.
+     */
+    private ConstructInstanceLambda<T> rememberingMapper() throws SQLException {
+        return rememberingMapper("");
+    }
+
+    private ConstructInstanceLambda<T> rememberingMapper(String labelPrefix) throws SQLException {
+        // Rows read in a transaction might be rolled back, so only cache committed ones
+        boolean cache = EntityCache.isEnabled() && !Database.getInstance().isInTransaction();
+        Row row = new Row();
+        return rs -> {
+            T instance = read(row, rs, labelPrefix);
+            if (!row.complete) {
+                T loaded = ModelHelper.sessionGet(table, getId.apply(instance));
+                return loaded != null ? loaded : instance;
+            }
+            if (cache) {
+                EntityCache.put(table, getId.apply(instance), row.values);
+            }
+            return remember(instance);
+        };
+    }
+
+    /**
+     * Add a loaded instance to the session (if there is one).
+     *
+     * @return the session's instance for the row (`instance` unless the row was already loaded)
+     */
+    private T remember(T instance) {
+        return instance == null
+            ? null
+            : ModelHelper.sessionPut(table, getId.apply(instance), instance);
+    }
+
+    /**
+     * Get a lambda binding an instance's column values to a statement.
+     *
+     * @param instance model instance
+     * @return lambda binding `columns` to parameters 1, 2, etc.
+     */
+    public ThrowingConsumer<PreparedStatement, SQLException> binder(T instance) {
+        return stmt -> binder.accept(stmt, instance);
+    }
+
+    /**
+     * Get an instance by id.
+     *
+     * @param id row id to get
+     * @return instance (empty if there's no such row)
+     * @throws SQLException if error executing SQL
+     */
+    public Optional<T> get(Integer id) throws SQLException {
+        T loaded = ModelHelper.sessionGet(table, id);
+        if (loaded != null) {
+            return Optional.of(loaded);
+        }
+        T cached = fromCache(id);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        return Optional.ofNullable(ModelHelper.get(id, table, rememberingMapper()));
+    }
+
+    /**
+     * Get many instances by id, in a constant number of queries.
+     *
+     * Rows already loaded in the session or cached in `EntityCache` aren't queried again.
+     *
+     * @param ids ids of the rows to get
+     * @return instances by id (ids without a row are left out)
+     * @throws SQLException if error executing SQL
+     */
+    public HashMap<Integer, T> getMany(Collection<Integer> ids) throws SQLException {
+        HashMap<Integer, T> results = new HashMap<>();
+        ArrayList<Integer> missing = new ArrayList<>();
+        for (Integer id : ids) {
+            if (id == null || results.containsKey(id)) {
+                continue;
+            }
+            T loaded = ModelHelper.sessionGet(table, id);
+            if (loaded == null) {
+                loaded = fromCache(id);
+            }
+            if (loaded != null) {
+                results.put(id, loaded);
+            } else {
+                missing.add(id);
+            }
+        }
+        results.putAll(ModelHelper.getMany(table, missing, rememberingMapper()));
+        return results;
+    }
+
+    /**
+     * Get an instance by id on a background thread.
+     *
+     * @param id row id to get
+     * @return future instance (empty if there's no such row)
+     * @throws SQLException if error connecting to the database
+     */
+    public CompletableFuture<Optional<T>> getAsync(Integer id) throws SQLException {
+        return ModelHelper.supplyAsync(db -> get(id));
+    }
+
+    /**
+     * Get the instances matched by a query, sorted.
+     *
+     * @param sql query to run (columns it doesn't select are left unset, see `select`)
+     * @param setValues lambda to bind query parameters
+     * @return sorted list of instances
+     * @throws SQLException if error executing SQL
+     */
+    public ArrayList<T> filter(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return ModelHelper.filter(sql, setValues, rememberingMapper());
+    }
+
+    /**
+     * Get the instances matched by a query, sorted by a sort spec.
+     *
+     * @param query query to run, without an `order by` (columns it doesn't select are left unset)
+     * @param sort how to sort (and cut short) the rows
+     * @return sorted list of instances
+     * @throws SQLException if error executing SQL
+     */
+    public ArrayList<T> filter(Query query, SortSpec<T> sort) throws SQLException {
+        return ModelHelper.filter(query, rememberingMapper(), sort);
+    }
+
+    /**
+     * Async version of `filter`, which runs the query on a background thread.
+     */
+    public CompletableFuture<ArrayList<T>> filterAsync(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return ModelHelper.filterAsync(sql, setValues, rememberingMapper());
+    }
+
+    /**
+     * Get a page of rows in `id` order (see `ModelHelper.page`).
+     *
+     * @param after only get rows with an id greater than this (null to start at the beginning)
+     * @param pageSize max number of rows to get
+     * @param columns columns to select besides the id (all of them if none are given)
+     * @return page of instances
+     * @throws SQLException if error executing SQL
+     */
+    public Page<T> page(Integer after, int pageSize, String... columns) throws SQLException {
+        return ModelHelper.page(query(columns), after, pageSize, rememberingMapper());
+    }
+
+    /**
+     * Lazily stream the instances matched by a query.
+     *
+     * @param sql query to run (must select all columns from the table)
+     * @param setValues lambda to bind query parameters
+     * @return stream of instances (must be closed)
+     * @throws SQLException if error executing SQL
+     */
+    public Stream<T> stream(
+        String sql,
+        ThrowingConsumer<PreparedStatement, SQLException> setValues
+    )
+        throws SQLException {
+        return ModelHelper.stream(sql, setValues, rememberingMapper());
+    }
+
+    /**
+     * Insert an instance's values as a new row, getting the row back from the same statement.
+     *
+     * @param unsaved instance with the values to insert (its id is ignored)
+     * @return instance of the new row
+     * @throws SQLException if error executing SQL
+     */
+    public T create(T unsaved) throws SQLException {
+        DataStore db = Database.getInstance();
+        T created = db.insertReturning(table, columns, binder(unsaved), allColumns, mapper()::run);
+        // Add it to the session as if it had been saved (undone if the transaction rolls back)
+        ModelHelper.sessionReplace(db, table, getId.apply(created), created);
+        return created;
+    }
+
+    /**
+     * Save an instance's values to its row.
+     *
+     * @param instance instance to save
+     * @throws SQLException if error executing SQL
+     */
+    public void update(T instance) throws SQLException {
+        DataStore db = Database.getInstance();
+        Integer id = getId.apply(instance);
+        db.update(table, columns, id, binder(instance));
+        EntityCache.invalidate(table, id);
+        // Readers outside the transaction may cache the old row again until it commits
+        db.afterCommit(() -> EntityCache.invalidate(table, id));
+        ModelHelper.sessionReplace(db, table, id, instance);
+    }
+
+    /**
+     * Delete a row by id.
+     *
+     * @param id id of the row
+     * @throws SQLException if error executing SQL
+     */
+    public void delete(Integer id) throws SQLException {
+        ModelHelper.delete(id, table);
+        // Deletes may cascade to other tables, so forget everything
+        ModelHelper.sessionClear();
+    }
+}
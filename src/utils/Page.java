@@ -0,0 +1,21 @@
+package utils;
+
+import java.util.List;
+
+/**
+ * One page of rows, read in `id` order.
+ *
+ * @param <T> the model class type
+ */
+public class Page<T> {
+
+    // Rows of the page
+    public final List<T> items;
+    // Id to pass as `after` to get the next page (null if this is the last page)
+    public final Integer nextAfter;
+
+    public Page(List<T> items, Integer nextAfter) {
+        this.items = items;
+        this.nextAfter = nextAfter;
+    }
+}
@@ -0,0 +1,81 @@
+package utils;
+
+import database.Query;
+import java.util.Comparator;
+
+/**
+ * How to sort (and optionally cut short) the rows of a query.
+ *
+ * Sorts are pushed into the query as an `order by` (plus `fetch first n rows only` for top-N), so
+ * the database can use an index or stop early. Sorting in the JVM is only done when asked for
+ * (e.g. when the sort key isn't a column), and then only keeps the top `limit` rows in a heap
+ * rather than sorting every row.
+ *
+ * @param <T> the model class type
+ */
+public class SortSpec<T> {
+
+    // Items of the `order by` clause, e.g. `name desc` (null when sorting in the JVM)
+    public final String[] orderBy;
+    // Comparator to sort with in the JVM (null when sorting in SQL)
+    public final Comparator<T> comparator;
+    // Max number of rows to get (null for all of them)
+    public final Integer limit;
+
+    private SortSpec(String[] orderBy, Comparator<T> comparator, Integer limit) {
+        if (limit != null && limit < 1) {
+            throw new IllegalArgumentException("Limit must be at least 1, not " + limit);
+        }
+        this.orderBy = orderBy;
+        this.comparator = comparator;
+        this.limit = limit;
+    }
+
+    /**
+     * Sort in SQL.
+     *
+     * @param <T> the model class type
+     * @param limit max number of rows to get (null for all of them)
+     * @param orderBy items of the `order by` clause (end with a unique column so ties are broken
+     * the same way every time)
+     * @return sort spec
+     * @throws IllegalArgumentException if the limit is less than 1
+     */
+    public static <T> SortSpec<T> sql(Integer limit, String... orderBy) {
+        return new SortSpec<>(orderBy, null, limit);
+    }
+
+    /**
+     * Sort in the JVM, for sort keys the query can't order by.
+     *
+     * @param <T> the model class type
+     * @param comparator comparator to sort with
+     * @param limit max number of rows to keep (null for all of them)
+     * @return sort spec
+     * @throws IllegalArgumentException if the limit is less than 1
+     */
+    public static <T> SortSpec<T> inJvm(Comparator<T> comparator, Integer limit) {
+        return new SortSpec<>(null, comparator, limit);
+    }
+
+    /**
+     * @return whether rows are sorted in the JVM rather than by the query
+     */
+    public boolean isInJvm() {
+        return comparator != null;
+    }
+
+    /**
+     * Add the `order by` (and `fetch first`) clauses to a query.
+     *
+     * @param query query without an `order by`
+     * @return the query
+     */
+    public Query applyTo(Query query) {
+        query.orderBy(orderBy);
+        if (limit != null) {
+            query.limit(limit);
+        }
+        return query;
+    }
+}
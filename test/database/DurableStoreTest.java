@@ -0,0 +1,165 @@
+package database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DurableStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws SQLException {
+        dir = folder.getRoot().toPath();
+        DurableStore store = new DurableStore(dir);
+        try {
+            store.modify("insert into MealPlan (name, day) values ('Start', 'mon')");
+            store.inTransaction(
+                db -> {
+                    db.modify("insert into MealPlan (name, day) values ('Middle', 'wed')");
+                    db.modify("update MealPlan set name = 'First' where day = 'mon'");
+                }
+            );
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void recoversFromTheLog() throws SQLException {
+        assertEquals(Arrays.asList("1 First mon", "2 Middle wed"), mealPlans());
+    }
+
+    @Test
+    public void dropsTornLastRecord() throws IOException, SQLException {
+        Path last = segments().get(segments().size() - 1);
+        long size = Files.size(last);
+        // A record header claiming more bytes than were written before the crash
+        ByteBuffer torn = ByteBuffer.allocate(13).putInt(100).putInt(0x1234);
+        Files.write(last, torn.array(), StandardOpenOption.APPEND);
+        assertEquals(Arrays.asList("1 First mon", "2 Middle wed"), mealPlans());
+        assertEquals(size, Files.size(last));
+        // New records follow the intact ones
+        DurableStore store = new DurableStore(dir);
+        try {
+            store.modify("insert into MealPlan (name, day) values ('Last', 'fri')");
+        } finally {
+            store.close();
+        }
+        assertEquals(Arrays.asList("1 First mon", "2 Middle wed", "3 Last fri"), mealPlans());
+    }
+
+    @Test
+    public void skipsLogCoveredBySnapshot() throws IOException, SQLException {
+        HashMap<Path, byte[]> log = new HashMap<>();
+        for (Path segment : segments()) {
+            log.put(segment, Files.readAllBytes(segment));
+        }
+        DurableStore store = new DurableStore(dir);
+        try {
+            store.snapshot();
+        } finally {
+            store.close();
+        }
+        assertFalse(segments().containsAll(log.keySet()));
+        // Put the compacted segments back, as if the process stopped before deleting them
+        for (Path segment : log.keySet()) {
+            Files.write(segment, log.get(segment));
+        }
+        assertEquals(Arrays.asList("1 First mon", "2 Middle wed"), mealPlans());
+        store = new DurableStore(dir);
+        try {
+            // Replaying the log again would have left two rows in the day index
+            List<String> names = new ArrayList<>();
+            store.select(
+                "select name from MealPlan where day = 'mon'",
+                rs -> {
+                    names.add(rs.getString("name"));
+                }
+            );
+            assertEquals(Arrays.asList("First"), names);
+            store.modify("insert into MealPlan (name, day) values ('Last', 'fri')");
+        } finally {
+            store.close();
+        }
+        assertEquals(Arrays.asList("1 First mon", "2 Middle wed", "3 Last fri"), mealPlans());
+    }
+
+    @Test
+    public void replaysLogAfterCompaction() throws IOException, SQLException {
+        DurableStore store = new DurableStore(dir);
+        try {
+            store.snapshot();
+            store.modify("update MealPlan set name = 'Monday' where id = 1");
+            store.delete("MealPlan", 2);
+            store.modify("insert into MealPlan (name, day) values ('Last', 'fri')");
+        } finally {
+            store.close();
+        }
+        assertTrue(Files.exists(dir.resolve("snapshot.dat")));
+        assertEquals(1, segments().size());
+        assertEquals(Arrays.asList("1 Monday mon", "3 Last fri"), mealPlans());
+        // Compacting again leaves only the snapshot's data
+        store = new DurableStore(dir);
+        try {
+            store.snapshot();
+        } finally {
+            store.close();
+        }
+        assertEquals(0, Files.size(segments().get(0)));
+        assertEquals(Arrays.asList("1 Monday mon", "3 Last fri"), mealPlans());
+    }
+
+    /**
+     * Reopen the store and read every meal plan.
+     */
+    private List<String> mealPlans() throws SQLException {
+        List<String> rows = new ArrayList<>();
+        DurableStore store = new DurableStore(dir);
+        try {
+            store.select(
+                "select id, name, day from MealPlan order by id",
+                rs -> {
+                    rows.add(
+                        rs.getInt("id") + " " + rs.getString("name") + " " + rs.getString("day")
+                    );
+                }
+            );
+        } finally {
+            store.close();
+        }
+        return rows;
+    }
+
+    /**
+     * @return log segment files, oldest first
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                .filter(path -> path.getFileName().toString().startsWith("wal-"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import org.junit.Test;
+
+public class MemorySqlTest {
+
+    @Test
+    public void parsesSelectWithJoinWhereOrderAndLimit() throws SQLException {
+        MemorySql.Select select = (MemorySql.Select) MemorySql.parse(
+            "select distinct r.name as recipe, fi.* from Recipe r " +
+            "inner join RecipeFoodItem rfi on rfi.recipeId = r.id " +
+            "join FoodItem fi on fi.id = rfi.foodItemId " +
+            "where r.category = ? and fi.units > 0 and fi.id in (1, ?, 3) " +
+            "order by r.name desc, fi.id fetch first ? rows only;"
+        );
+        assertTrue(select.distinct);
+        assertEquals(2, select.items.size());
+        assertEquals("r", select.items.get(0).qualifier);
+        assertEquals("name", select.items.get(0).column);
+        assertEquals("recipe", select.items.get(0).label);
+        assertEquals("fi", select.items.get(1).qualifier);
+        assertNull(select.items.get(1).column);
+        assertEquals(3, select.from.size());
+        assertEquals("Recipe", select.from.get(0).table);
+        assertEquals("r", select.from.get(0).alias);
+        assertEquals("FoodItem", select.from.get(2).table);
+        // Join conditions come first, then the where conditions
+        assertEquals(5, select.conditions.size());
+        assertEquals("rfi.recipeId = r.id", select.conditions.get(0).toString());
+        assertEquals("r.category = ?", select.conditions.get(2).toString());
+        assertEquals("fi.id in (3 values)", select.conditions.get(4).toString());
+        assertEquals(2, select.orderBy.size());
+        assertTrue(select.orderBy.get(0).descending);
+        assertFalse(select.orderBy.get(1).descending);
+        assertEquals(2, select.limit.param);
+        assertEquals(3, select.paramCount);
+    }
+
+    @Test
+    public void parsesTableWithoutAlias() throws SQLException {
+        MemorySql.Select select = (MemorySql.Select) MemorySql.parse(
+            "select * from MealPlan where day <> 'mon'"
+        );
+        assertEquals("MealPlan", select.from.get(0).alias);
+        assertNull(select.items.get(0).column);
+        assertEquals("day <> mon", select.conditions.get(0).toString());
+        assertNull(select.limit);
+        // Row locks are accepted (transactions already lock everything)
+        MemorySql.parse("select id, units from FoodItem where id in (?, ?) for update");
+    }
+
+    @Test
+    public void parsesInsert() throws SQLException {
+        MemorySql.Insert insert = (MemorySql.Insert) MemorySql.parse(
+            "insert into MealPlan (name, day) values ('It''s Monday', ?)"
+        );
+        assertEquals("MealPlan", insert.table);
+        assertEquals(2, insert.columns.size());
+        assertEquals("It's Monday", insert.values.get(0).literal);
+        assertEquals(0, insert.values.get(1).param);
+        assertEquals(1, insert.paramCount);
+    }
+
+    @Test
+    public void parsesUpdateAndDelete() throws SQLException {
+        MemorySql.Update update = (MemorySql.Update) MemorySql.parse(
+            "update FoodItem set units = ?, name = null where id = ?"
+        );
+        assertEquals("FoodItem", update.table);
+        assertEquals(2, update.columns.size());
+        assertNull(update.values.get(1).literal);
+        assertEquals(1, update.conditions.size());
+        assertEquals(2, update.paramCount);
+        MemorySql.Delete delete = (MemorySql.Delete) MemorySql.parse(
+            "delete from Recipe where id != 7"
+        );
+        assertEquals("Recipe", delete.table);
+        assertEquals("id <> 7", delete.conditions.get(0).toString());
+    }
+
+    @Test
+    public void rejectsUnsupportedSyntax() throws SQLException {
+        assertUnsupported("select count(*) from Recipe");
+        assertUnsupported("select * from Recipe where id = 1 or id = 2");
+        assertUnsupported(
+            "select * from Recipe r left join RecipeFoodItem rfi on rfi.recipeId = r.id"
+        );
+        assertUnsupported("select * from Recipe where name like 'P%'");
+        assertUnsupported("create table Foo (id number)");
+        assertUnsupported("select * from Recipe; select * from Recipe");
+    }
+
+    private static void assertUnsupported(String sql) throws SQLException {
+        try {
+            MemorySql.parse(sql);
+            fail("Parsed " + sql);
+        } catch (SQLFeatureNotSupportedException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryStoreTest {
+
+    private MemoryStore store;
+
+    @Before
+    public void setUp() throws SQLException {
+        store = new MemoryStore(null);
+        store.modify(
+            "insert into NutritionFacts (calories, sugar, protein, sodium, fat) " +
+            "values (100, 1, 2, 3, 4)"
+        );
+        store.modify(
+            "insert into NutritionFacts (calories, sugar, protein, sodium, fat) " +
+            "values (200, 5, 6, 7, 8)"
+        );
+        store.modify(
+            "insert into FoodItem (name, foodGroup, nutritionFactsId) " +
+            "values ('Egg', 'Protein', 1)"
+        );
+        store.modify(
+            "insert into FoodItem (name, foodGroup, units, nutritionFactsId) " +
+            "values ('Flour', 'Grain', 3, 2)"
+        );
+        store.modify(
+            "insert into Recipe (name, instructions, category) " +
+            "values ('Pancakes', 'Mix and fry', 'Breakfast')"
+        );
+        store.modify(
+            "insert into Recipe (name, instructions, category) " +
+            "values ('Omelette', 'Whisk and fry', 'Breakfast')"
+        );
+        store.modify("insert into RecipeFoodItem (recipeId, foodItemId) values (1, 1)");
+        store.modify("insert into RecipeFoodItem (recipeId, foodItemId) values (1, 2)");
+        store.modify("insert into RecipeFoodItem (recipeId, foodItemId) values (2, 1)");
+    }
+
+    @Test
+    public void generatesIdsAndDefaults() throws SQLException {
+        assertEquals(
+            Arrays.asList("1 Egg 0", "2 Flour 3"),
+            rows("select id, name, units from FoodItem order by id")
+        );
+        int id = store
+            .insert(
+                "Recipe",
+                new String[] { "name", "instructions", "category" },
+                stmt -> {
+                    stmt.setString(1, "Toast");
+                    stmt.setString(2, "Toast it");
+                    stmt.setString(3, "Breakfast");
+                },
+                true
+            )
+            .get();
+        assertEquals(3, id);
+    }
+
+    @Test
+    public void joinsFiltersAndOrders() throws SQLException {
+        assertEquals(
+            Arrays.asList("Omelette Egg", "Pancakes Flour", "Pancakes Egg"),
+            rows(
+                "select r.name as recipe, fi.name as item from Recipe r " +
+                "join RecipeFoodItem rfi on rfi.recipeId = r.id " +
+                "join FoodItem fi on fi.id = rfi.foodItemId " +
+                "order by r.name, fi.name desc"
+            )
+        );
+        List<String> found = new ArrayList<>();
+        store.select(
+            "select distinct r.name from Recipe r " +
+            "join RecipeFoodItem rfi on rfi.recipeId = r.id " +
+            "where rfi.foodItemId in (?, ?) order by r.name fetch first 1 rows only",
+            rs -> found.add(rs.getString("name")),
+            stmt -> {
+                stmt.setInt(1, 1);
+                stmt.setInt(2, 2);
+            }
+        );
+        assertEquals(Arrays.asList("Omelette"), found);
+    }
+
+    @Test
+    public void cascadesDeletes() throws SQLException {
+        store.delete("NutritionFacts", 1);
+        assertEquals(Arrays.asList("2"), rows("select id from FoodItem"));
+        assertEquals(
+            Arrays.asList("1 2"),
+            rows("select recipeId, foodItemId from RecipeFoodItem")
+        );
+        store.modify("delete from Recipe where id = 1");
+        assertEquals(new ArrayList<String>(), rows("select recipeId from RecipeFoodItem"));
+    }
+
+    @Test
+    public void checksConstraints() throws SQLException {
+        assertViolation("insert into RecipeFoodItem (recipeId, foodItemId) values (9, 1)");
+        assertViolation("insert into RecipeFoodItem (recipeId, foodItemId) values (1, 1)");
+        assertViolation(
+            "insert into FoodItem (name, foodGroup, nutritionFactsId) values ('X', 'Y', 9)"
+        );
+        assertViolation("insert into Recipe (name, category) values ('No instructions', 'Lunch')");
+        assertViolation("update FoodItem set nutritionFactsId = 9 where id = 1");
+        store.modify("insert into MealPlan (name, day) values ('Start', 'mon')");
+        assertViolation("insert into MealPlan (name, day) values ('Again', 'mon')");
+    }
+
+    @Test
+    public void rollsBackFailedTransactions() throws SQLException {
+        try {
+            store.inTransaction(
+                db -> {
+                    db.modify("update FoodItem set units = 10 where id = 2");
+                    db.modify("insert into MealPlan (name, day) values ('Start', 'mon')");
+                    db.delete("Recipe", 1);
+                    // Nested transactions join the open one
+                    db.inTransaction(inner -> inner.modify("delete from FoodItem where id = 1"));
+                    throw new SQLException("Abort");
+                }
+            );
+            fail("Transaction didn't fail");
+        } catch (SQLException e) {
+            assertEquals("Abort", e.getMessage());
+        }
+        assertFalse(store.isInTransaction());
+        assertEquals(
+            Arrays.asList("1 0", "2 3"),
+            rows("select id, units from FoodItem order by id")
+        );
+        assertEquals(new ArrayList<String>(), rows("select id from MealPlan"));
+        assertEquals(
+            Arrays.asList("1 1", "1 2", "2 1"),
+            rows("select recipeId, foodItemId from RecipeFoodItem order by recipeId, foodItemId")
+        );
+        // Unique and primary key indexes were restored too
+        assertViolation("insert into RecipeFoodItem (recipeId, foodItemId) values (1, 1)");
+        store.modify("insert into MealPlan (name, day) values ('Start', 'mon')");
+    }
+
+    @Test
+    public void runsCallbacksWhenTransactionsEnd() throws SQLException {
+        List<String> ran = new ArrayList<>();
+        store.afterCommit(() -> ran.add("no transaction"));
+        store.afterRollback(() -> ran.add("never"));
+        store.inTransaction(
+            db -> {
+                db.afterCommit(() -> ran.add("committed"));
+                db.afterRollback(() -> ran.add("never"));
+                db.inTransaction(inner -> inner.afterCommit(() -> ran.add("nested")));
+                assertEquals(Arrays.asList("no transaction"), ran);
+            }
+        );
+        try {
+            store.inTransaction(
+                db -> {
+                    db.afterCommit(() -> ran.add("never"));
+                    db.afterRollback(() -> ran.add("rolled back"));
+                    throw new SQLException("Abort");
+                }
+            );
+            fail("Transaction didn't fail");
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertEquals(Arrays.asList("no transaction", "committed", "nested", "rolled back"), ran);
+    }
+
+    private List<String> rows(String sql) throws SQLException {
+        List<String> rows = new ArrayList<>();
+        store.select(
+            sql,
+            rs -> {
+                StringBuilder row = new StringBuilder();
+                for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                    row.append(i > 1 ? " " : "").append(rs.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        );
+        return rows;
+    }
+
+    private void assertViolation(String sql) throws SQLException {
+        try {
+            store.modify(sql);
+            fail("Didn't reject " + sql);
+        } catch (SQLIntegrityConstraintViolationException e) {
+            // Expected
+        }
+    }
+}
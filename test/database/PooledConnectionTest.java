@@ -0,0 +1,95 @@
+package database;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PooledConnectionTest {
+
+    private PooledConnection pooled;
+
+    @Before
+    public void setUp() throws SQLException {
+        // No connections are opened up front with a min size of 0
+        ConnectionPool pool = new ConnectionPool("jdbc:test", "", "", 0, 1, 60000, 1000, 1, 2);
+        Connection conn = (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[] { Connection.class },
+            (proxy, method, args) -> {
+                if (method.getName().equals("prepareStatement")) {
+                    return statement();
+                }
+                return null;
+            }
+        );
+        pooled = new PooledConnection(pool, conn, 2);
+    }
+
+    @Test
+    public void reusesStatementsOnceDone() throws SQLException {
+        PreparedStatement first = pooled.prepare("select 1");
+        pooled.done(first);
+        PreparedStatement second = pooled.prepare("select 1");
+        assertSame(first, second);
+        pooled.done(second);
+        assertFalse(second.isClosed());
+    }
+
+    @Test
+    public void preparesFreshStatementWhileCachedOneIsInUse() throws SQLException {
+        PreparedStatement outer = pooled.prepare("select 1");
+        PreparedStatement inner = pooled.prepare("select 1");
+        assertNotSame(outer, inner);
+        pooled.done(inner);
+        // The extra statement isn't cached, so it's closed once done
+        assertTrue(inner.isClosed());
+        assertFalse(outer.isClosed());
+        pooled.done(outer);
+        assertSame(outer, pooled.prepare("select 1"));
+    }
+
+    @Test
+    public void neverEvictsStatementsInUse() throws SQLException {
+        PreparedStatement inUse = pooled.prepare("select 1");
+        for (int i = 2; i <= 5; i++) {
+            pooled.done(pooled.prepare("select " + i));
+        }
+        assertFalse(inUse.isClosed());
+        pooled.done(inUse);
+        assertSame(inUse, pooled.prepare("select 1"));
+    }
+
+    /**
+     * Create a statement that only tracks whether it's closed.
+     */
+    private static PreparedStatement statement() {
+        boolean[] closed = new boolean[1];
+        return (PreparedStatement) Proxy.newProxyInstance(
+            PreparedStatement.class.getClassLoader(),
+            new Class<?>[] { PreparedStatement.class },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "close":
+                        closed[0] = true;
+                        return null;
+                    case "isClosed":
+                        return closed[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                }
+            }
+        );
+    }
+}